@@ -0,0 +1,28 @@
+package com.blakfx.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with its allocation rate
+ * (<code>gc.alloc.rate.norm</code> is bytes allocated per operation).
+ * Takes the usual JMH command line, e.g. <code>DispatchBenchmark -p sessions=1000</code>.
+ */
+public class BenchmarkMain {
+
+    /**
+     * Run the benchmarks.
+     * @param args JMH command line options
+     * @throws Exception The options are invalid, or a benchmark failed
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,129 @@
+package com.blakfx.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+import com.blakfx.model.Device;
+import com.blakfx.websocket.DeviceSessionHandler;
+
+/**
+ * Sets up the server the way every benchmark needs it.
+ * Must be touched before any server class is loaded, as the server reads its settings once, on class load:
+ * rate limiting is turned off, since the benchmarks send as fast as they can on purpose,
+ * and the offline mailbox and the device journal go to scratch directories. Settings given with <code>-D</code> are kept.
+ */
+public class BenchmarkSupport {
+
+    static {
+        if (System.getProperty("com.blakfx.server.rate.enabled") == null) {
+            System.setProperty("com.blakfx.server.rate.enabled", "false");
+        }
+        if (System.getProperty("com.blakfx.server.mailbox.dir") == null) {
+            try {
+                System.setProperty("com.blakfx.server.mailbox.dir",
+                                   Files.createTempDirectory("blakfx-bench-mailbox").toString());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        if (System.getProperty("com.blakfx.server.devices.dir") == null) {
+            try {
+                System.setProperty("com.blakfx.server.devices.dir",
+                                   Files.createTempDirectory("blakfx-bench-devices").toString());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Create a session handler, with no sessions and no devices.
+     * @return the handler
+     */
+    public static DeviceSessionHandler newHandler() {
+        return new DeviceSessionHandler();
+    }
+
+    /**
+     * Open sessions on a handler, each identified as <code>user-N</code>.
+     * @param handler The handler to open the sessions on
+     * @param count The number of sessions
+     * @param useJSON Whether the sessions use JSON or PB
+     * @return the sessions, session N being user N
+     */
+    public static FakeSession[] connect(DeviceSessionHandler handler, int count, boolean useJSON) {
+        return connect(handler, count, useJSON, false);
+    }
+
+    /**
+     * Open sessions on a handler, each identified as <code>user-N</code>.
+     * @param handler The handler to open the sessions on
+     * @param count The number of sessions
+     * @param useJSON Whether the sessions use JSON or PB
+     * @param binaryChat Whether the sessions negotiate global chat messages via PB
+     * @return the sessions, session N being user N
+     */
+    public static FakeSession[] connect(DeviceSessionHandler handler, int count, boolean useJSON, boolean binaryChat) {
+        FakeSession[] sessions = new FakeSession[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new FakeSession(Integer.toString(i));
+            handler.addSession(sessions[i], useJSON);
+            handler.bindUserToSession(username(i), sessions[i], binaryChat);
+        }
+        awaitIdle(handler);
+        return sessions;
+    }
+
+    /**
+     * Add devices to a handler.
+     * @param handler The handler to add the devices to
+     * @param count The number of devices
+     * @param useJSON Whether to announce them via JSON or PB
+     */
+    public static void addDevices(DeviceSessionHandler handler, int count, boolean useJSON) {
+        for (int i = 0; i < count; i++) {
+            handler.addDevice(newDevice(i), useJSON);
+        }
+        awaitIdle(handler);
+    }
+
+    /**
+     * Wait until a handler has applied every change made so far, as changes are applied on its event loops.
+     * @param handler The handler to wait for
+     */
+    public static void awaitIdle(DeviceSessionHandler handler) {
+        if (!handler.awaitIdle(60_000)) {
+            throw new IllegalStateException("Handler did not catch up in time");
+        }
+    }
+
+    /**
+     * Create a device, the way the server does when a client adds one.
+     * @param i Tells the device apart from others
+     * @return the device
+     */
+    public static Device newDevice(int i) {
+        Device device = new Device();
+        device.setName("Device " + i);
+        device.setDescription("Benchmark device " + i);
+        device.setType("Appliance");
+        device.setStatus("Off");
+        return device;
+    }
+
+    /**
+     * Get the username of session N.
+     * @param i The session index
+     * @return the username
+     */
+    public static String username(int i) {
+        return "user-" + i;
+    }
+
+    /**
+     * Make sure the settings above are applied; does nothing else.
+     */
+    static void init() {
+    }
+}
@@ -0,0 +1,87 @@
+package com.blakfx.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.blakfx.model.Device;
+import com.blakfx.websocket.DeviceSessionHandler;
+
+/**
+ * Device mutations, each fanned out to every session, via JSON or PB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceBenchmark {
+
+    /**
+     * The number of devices in the registry; see <code>SessionReplayBenchmark</code> for larger registries.
+     */
+    private static final int DEVICES = 1000;
+
+    /**
+     * The number of connected sessions.
+     */
+    @Param({"10", "1000", "100000"})
+    public int sessions;
+
+    /**
+     * Whether the mutations come in via JSON or PB.
+     */
+    @Param({"false", "true"})
+    public boolean useJSON;
+
+    /**
+     * The handler under test.
+     */
+    private DeviceSessionHandler handler;
+    /**
+     * The IDs of the registered devices.
+     */
+    private int[] ids;
+    /**
+     * The next device to toggle.
+     */
+    private int next;
+    /**
+     * Tells added devices apart.
+     */
+    private int added;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        handler = BenchmarkSupport.newHandler();
+        // devices first, so each session only gets them once, in its snapshot
+        BenchmarkSupport.addDevices(handler, DEVICES, useJSON);
+        BenchmarkSupport.connect(handler, sessions, useJSON);
+        List<Device> devices = handler.getDevices();
+        ids = new int[devices.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = devices.get(i).getId();
+        }
+    }
+
+    /**
+     * Add a device, then remove it, so the registry keeps its size however long the benchmark runs.
+     * @return the ID of the added device
+     */
+    @Benchmark
+    public int addDevice() {
+        Device device = BenchmarkSupport.newDevice(added++);
+        handler.addDevice(device, useJSON);
+        handler.removeDevice(device.getId(), useJSON);
+        return device.getId();
+    }
+
+    @Benchmark
+    public void toggleDevice() {
+        int id = ids[next];
+        next = (next + 1) % ids.length;
+        handler.toggleDevice(id, useJSON);
+    }
+}
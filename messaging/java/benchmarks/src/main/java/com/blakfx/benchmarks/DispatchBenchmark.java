@@ -0,0 +1,140 @@
+package com.blakfx.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.blakfx.protocols.DeviceProtocol;
+import com.blakfx.websocket.DeviceSessionHandler;
+import com.blakfx.websocket.JsonCodec;
+import com.google.protobuf.ByteString;
+
+/**
+ * Chat dispatch: a global chat message, received via JSON or PB, fanned out to every session,
+ * and a private PB message routed to a single session.
+ * The JSON message is read from its text, as the endpoint does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    /**
+     * Max number of distinct private message targets, each with its own encoded frame.
+     */
+    private static final int MAX_TARGETS = 1024;
+
+    /**
+     * The number of identified sessions.
+     */
+    @Param({"10", "1000", "100000"})
+    public int sessions;
+
+    /**
+     * Whether the sessions negotiated global chat messages via PB.
+     */
+    @Param({"false", "true"})
+    public boolean binaryChat;
+
+    /**
+     * The size of a private message's encrypted content, in bytes.
+     */
+    @Param({"256", "16384"})
+    public int contentSize;
+
+    /**
+     * The handler under test.
+     */
+    private DeviceSessionHandler handler;
+    /**
+     * The connected sessions; the first one sends everything.
+     */
+    private FakeSession[] connected;
+    /**
+     * The global chat message, as received from a JSON client.
+     */
+    private String globalChat;
+    /**
+     * The global chat message, as parsed by the endpoint from a PB client.
+     */
+    private DeviceProtocol.Device globalChatPb;
+    /**
+     * The global chat message, as received from a PB client.
+     */
+    private byte[] globalChatFrame;
+    /**
+     * The private messages, one per target, as parsed by the endpoint.
+     */
+    private DeviceProtocol.Device[] privateChats;
+    /**
+     * The private messages, one per target, as received.
+     */
+    private byte[][] privateFrames;
+    /**
+     * The next private message to send.
+     */
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        handler = BenchmarkSupport.newHandler();
+        connected = BenchmarkSupport.connect(handler, sessions, false, binaryChat);
+
+        globalChat = JsonCodec.write()
+                .field("action", "chat")
+                .beginObject("message")
+                    .field("username", BenchmarkSupport.username(0))
+                    .field("content", "Hello everyone, this is a benchmark message")
+                .endObject()
+                .end();
+        globalChatFrame = DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.CHAT)
+                .setMessage(DeviceProtocol.ChatMsg.newBuilder()
+                        .setUsername(BenchmarkSupport.username(0))
+                        .setContent(ByteString.copyFromUtf8("Hello everyone, this is a benchmark message")))
+                .build()
+                .toByteArray();
+        globalChatPb = DeviceProtocol.Device.parseFrom(globalChatFrame);
+
+        byte[] content = new byte[contentSize];
+        new Random(42).nextBytes(content);
+        int targets = Math.min(sessions, MAX_TARGETS);
+        privateChats = new DeviceProtocol.Device[targets];
+        privateFrames = new byte[targets][];
+        for (int i = 0; i < targets; i++) {
+            DeviceProtocol.ChatMsg message = DeviceProtocol.ChatMsg.newBuilder()
+                    .setUsername(BenchmarkSupport.username(0))
+                    .setTarget(BenchmarkSupport.username(i))
+                    .setContent(ByteString.copyFrom(content))
+                    .build();
+            privateFrames[i] = DeviceProtocol.Device.newBuilder()
+                    .setActionCode(DeviceProtocol.Action.CHAT)
+                    .setMessage(message)
+                    .build()
+                    .toByteArray();
+            privateChats[i] = DeviceProtocol.Device.parseFrom(privateFrames[i]);
+        }
+    }
+
+    @Benchmark
+    public void globalChatJson() {
+        JsonCodec.Message message = JsonCodec.read(globalChat);
+        handler.dispatchChatMessage(connected[0], message.getMessageUsername(), message.getContent());
+    }
+
+    @Benchmark
+    public void globalChatPb() {
+        handler.dispatchChatMessage(connected[0], globalChatPb, globalChatFrame);
+    }
+
+    @Benchmark
+    public void privateChatPb() {
+        int target = next;
+        next = (next + 1) % privateChats.length;
+        handler.dispatchChatMessage(connected[0], privateChats[target], privateFrames[target]);
+    }
+}
@@ -0,0 +1,300 @@
+package com.blakfx.benchmarks;
+
+import javax.websocket.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * An in-memory websocket session for benchmarks.
+ * Every send completes at once on the calling thread, like a client that is never behind,
+ * and only the number of frames and bytes sent is kept, so the server's own cost is what gets measured.
+ */
+public class FakeSession implements Session {
+
+    /**
+     * A send result shared by every completed send.
+     */
+    private static final SendResult OK = new SendResult();
+
+    /**
+     * The async remote of a fake session.
+     */
+    private class FakeAsync implements RemoteEndpoint.Async {
+
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            framesSent++;
+            bytesSent += text.length();
+            handler.onResult(OK);
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer data, SendHandler handler) {
+            framesSent++;
+            bytesSent += data.remaining();
+            handler.onResult(OK);
+        }
+
+        @Override
+        public Future<Void> sendText(String text) {
+            sendText(text, result -> { });
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public Future<Void> sendBinary(ByteBuffer data) {
+            sendBinary(data, result -> { });
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public Future<Void> sendObject(Object data) {
+            throw new UnsupportedOperationException("Objects are not sent by the server");
+        }
+
+        @Override
+        public void sendObject(Object data, SendHandler handler) {
+            throw new UnsupportedOperationException("Objects are not sent by the server");
+        }
+
+        @Override
+        public long getSendTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setSendTimeout(long timeout) {
+        }
+
+        @Override
+        public void setBatchingAllowed(boolean allowed) {
+        }
+
+        @Override
+        public boolean getBatchingAllowed() {
+            return false;
+        }
+
+        @Override
+        public void flushBatch() {
+        }
+
+        @Override
+        public void sendPing(ByteBuffer data) {
+        }
+
+        @Override
+        public void sendPong(ByteBuffer data) {
+        }
+    }
+
+    /**
+     * The session ID.
+     */
+    private final String id;
+    /**
+     * The session's async remote.
+     */
+    private final RemoteEndpoint.Async async = new FakeAsync();
+    /**
+     * The session's user properties.
+     */
+    private final Map<String, Object> userProperties = new HashMap<>();
+    /**
+     * The number of frames sent to this session.
+     */
+    private long framesSent;
+    /**
+     * The number of bytes sent to this session, in chars for text frames.
+     */
+    private long bytesSent;
+    /**
+     * Whether the session is still open.
+     */
+    private boolean open = true;
+    /**
+     * The max size of a binary message.
+     */
+    private int maxBinaryMessageBufferSize = 8192;
+    /**
+     * The max size of a text message.
+     */
+    private int maxTextMessageBufferSize = 8192;
+
+    /**
+     * Constructs an open session.
+     * @param id The session ID
+     */
+    public FakeSession(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Get the number of frames sent to this session.
+     * @return the frame count
+     */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * Get the number of bytes sent to this session.
+     * @return the byte count, in chars for text frames
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public RemoteEndpoint.Async getAsyncRemote() {
+        return async;
+    }
+
+    @Override
+    public RemoteEndpoint.Basic getBasicRemote() {
+        throw new UnsupportedOperationException("The server only sends asynchronously");
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public void close(CloseReason closeReason) {
+        open = false;
+    }
+
+    @Override
+    public WebSocketContainer getContainer() {
+        return null;
+    }
+
+    @Override
+    public void addMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, MessageHandler.Whole<T> handler) {
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, MessageHandler.Partial<T> handler) {
+    }
+
+    @Override
+    public Set<MessageHandler> getMessageHandlers() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void removeMessageHandler(MessageHandler handler) {
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return "13";
+    }
+
+    @Override
+    public String getNegotiatedSubprotocol() {
+        return "";
+    }
+
+    @Override
+    public List<Extension> getNegotiatedExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isSecure() {
+        return false;
+    }
+
+    @Override
+    public long getMaxIdleTimeout() {
+        return 0;
+    }
+
+    @Override
+    public void setMaxIdleTimeout(long milliseconds) {
+    }
+
+    @Override
+    public void setMaxBinaryMessageBufferSize(int length) {
+        maxBinaryMessageBufferSize = length;
+    }
+
+    @Override
+    public int getMaxBinaryMessageBufferSize() {
+        return maxBinaryMessageBufferSize;
+    }
+
+    @Override
+    public void setMaxTextMessageBufferSize(int length) {
+        maxTextMessageBufferSize = length;
+    }
+
+    @Override
+    public int getMaxTextMessageBufferSize() {
+        return maxTextMessageBufferSize;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return URI.create("ws://localhost:8080/server/actions");
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestParameterMap() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getQueryString() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getPathParameters() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<String, Object> getUserProperties() {
+        return userProperties;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public Set<Session> getOpenSessions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public String toString() {
+        return "FakeSession[" + id + "]";
+    }
+}
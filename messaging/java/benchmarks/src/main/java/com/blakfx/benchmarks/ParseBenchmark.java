@@ -0,0 +1,82 @@
+package com.blakfx.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.blakfx.protocols.DeviceProtocol;
+import com.blakfx.websocket.DeviceWebSocketServer;
+import com.google.protobuf.ByteString;
+
+/**
+ * Receiving a binary frame: the copy out of the container's buffer, the action peek, the rate limit check
+ * and the PB parse. The frame is a file chunk for a user that isn't connected,
+ * which the server drops right after parsing, so nothing else is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    /**
+     * The size of the chunk's encrypted content, in bytes.
+     */
+    @Param({"1024", "262144"})
+    public int contentSize;
+
+    /**
+     * The endpoint under test.
+     */
+    private DeviceWebSocketServer server;
+    /**
+     * The session the frame comes from.
+     */
+    private FakeSession session;
+    /**
+     * The frame, as received.
+     */
+    private ByteBuffer frame;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkSupport.init();
+        server = new DeviceWebSocketServer();
+        session = new FakeSession("parser");
+        server.open(session);
+
+        byte[] content = new byte[contentSize];
+        new Random(42).nextBytes(content);
+        DeviceProtocol.FileTransfer transfer = DeviceProtocol.FileTransfer.newBuilder()
+                .setTransferId("benchmark")
+                .setChunkIndex(0)
+                .setChunkCount(1)
+                .setTotalSize(contentSize)
+                .build();
+        DeviceProtocol.ChatMsg message = DeviceProtocol.ChatMsg.newBuilder()
+                .setUsername("sender")
+                .setTarget("nobody")
+                .setContent(ByteString.copyFrom(content))
+                .setTransfer(transfer)
+                .build();
+        frame = ByteBuffer.wrap(DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.FILE_CHUNK)
+                .setMessage(message)
+                .build()
+                .toByteArray());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close(session);
+    }
+
+    @Benchmark
+    public void handleBinaryMessage() {
+        server.handleBinaryMessage(frame, session);
+    }
+}
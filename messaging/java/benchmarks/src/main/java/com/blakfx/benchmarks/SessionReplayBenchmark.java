@@ -0,0 +1,58 @@
+package com.blakfx.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.blakfx.websocket.DeviceSessionHandler;
+
+/**
+ * A session connecting, and getting the whole device registry replayed to it as snapshot frames, then leaving.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionReplayBenchmark {
+
+    /**
+     * The number of devices in the registry.
+     */
+    @Param({"10", "1000", "100000"})
+    public int devices;
+
+    /**
+     * Whether the session uses JSON or PB.
+     */
+    @Param({"false", "true"})
+    public boolean useJSON;
+
+    /**
+     * The handler under test.
+     */
+    private DeviceSessionHandler handler;
+    /**
+     * Tells sessions apart.
+     */
+    private int opened;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        handler = BenchmarkSupport.newHandler();
+        BenchmarkSupport.addDevices(handler, devices, useJSON);
+    }
+
+    /**
+     * Open a session, which gets the snapshot, and close it again.
+     * @return the number of bytes the session was sent
+     */
+    @Benchmark
+    public long addSession() {
+        FakeSession session = new FakeSession("replay-" + opened++);
+        handler.addSession(session, useJSON);
+        handler.removeSession(session);
+        return session.getBytesSent();
+    }
+}
@@ -6,7 +6,9 @@ import com.blakfx.helix.HelixModule.EncryptionException;
 import com.blakfx.helix.HelixModule.HelixException;
 import com.blakfx.helix.HelixModule.InvalidTargetException;
 import com.blakfx.protocols.DeviceProtocol;
+import com.blakfx.util.PayloadCompression;
 import com.blakfx.util.Utility;
+import com.blakfx.websocket.JsonCodec;
 import com.blakfx.websocket.WebsocketClientEndpoint;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -14,24 +16,20 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
-import javax.json.spi.JsonProvider;
 import javax.websocket.Session;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.io.StringReader;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
 
 /**
  * Chat client object, the real core of the application.
@@ -44,6 +42,11 @@ public class Chat {
 
     protected static final String EVERYONE = "EVERYONE";
 
+    /**
+     * Marks a room, both in user input and in the names of room contacts in the shared cache.
+     */
+    protected static final char ROOM_MARK = '%';
+
     /**
      * The cache/history of private messages sent/received per counterparty.
      */
@@ -54,6 +57,17 @@ public class Chat {
      */
     private final MessageCache sharedMessageCache;
 
+    /**
+     * The devices currently registered on the chat server, indexed by device ID.
+     * Kept up to date from the snapshot sent on connect, and the device events after it.
+     */
+    private final ConcurrentMap<Integer, DeviceProtocol.Device> knownDevices = new ConcurrentHashMap<>();
+
+    /**
+     * The rooms this client has joined, as confirmed by the chat server.
+     */
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+
     /**
      * The endpoint to communicate with the chat server.
      */
@@ -74,6 +88,41 @@ public class Chat {
      */
     private static final ExecutorService executorService = Executors.newFixedThreadPool(MAX_EXECUTOR_THREADS);
 
+    /**
+     * Holds number of threads writing received files to disk.
+     */
+    private static final int MAX_IO_THREADS = Integer.getInteger("com.blakfx.chat.io.threads", 2);
+
+    /**
+     * Holds number of file writes that may wait for an I/O thread.
+     * Once full, the thread handing over the write runs it itself, which slows down further file receipts.
+     */
+    private static final int MAX_IO_QUEUE = Integer.getInteger("com.blakfx.chat.io.queue", 64);
+
+    /**
+     * Whether a received file is also kept in its encrypted form, next to the decrypted one.
+     */
+    private static final boolean KEEP_ENCRYPTED_FILES =
+            Boolean.parseBoolean(System.getProperty("com.blakfx.chat.io.keepEncrypted", "true"));
+
+    /**
+     * Whether to ask the chat server for global chat messages via PB, rather than JSON.
+     */
+    private static final boolean BINARY_CHAT =
+            Boolean.parseBoolean(System.getProperty("com.blakfx.chat.binaryChat", "true"));
+
+    /**
+     * Whether the chat server agreed to global chat messages via PB, for both sending and receiving.
+     */
+    private volatile boolean binaryGlobalChat = false;
+
+    /**
+     * Responsible for writing received files to disk, so file receipts never hold up decryption of text messages.
+     */
+    private static final ExecutorService ioExecutorService = new ThreadPoolExecutor(
+            MAX_IO_THREADS, MAX_IO_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_IO_QUEUE), new ThreadPoolExecutor.CallerRunsPolicy());
+
     /**
      * The client user's display name.
      * Will be used to connect to both helix and chat servers.
@@ -85,6 +134,11 @@ public class Chat {
      */
     private final HelixModule helixModule;
 
+    /**
+     * Sends and receives files too large for a single message.
+     */
+    private final ChunkedFileTransfer fileTransfers;
+
     /**
      * Total number of received private messages for this client.
      * Used to assign message ID's for easier logging.
@@ -149,6 +203,8 @@ public class Chat {
         sharedMessageCache = sharedCache;
         sharedMessageCache.addContact(EVERYONE);
         helixModule = libHelix;
+        fileTransfers = new ChunkedFileTransfer(localChatUsername, helixModule, chatEndpoint, executorService,
+                                                ioExecutorService, privateMessageCache);
 
         log.info("Start chat client");
         chatEndpoint.addMessageHandler(new WebsocketClientEndpoint.MessageHandler() {
@@ -169,7 +225,7 @@ public class Chat {
         });
 
         log.info("Attempting to register with chat server as {}", localChatUsername);
-        chatEndpoint.registerIdentity(localChatUsername);
+        chatEndpoint.registerIdentity(localChatUsername, BINARY_CHAT);
 
         Utility.setupChatBackupOnLocalDrive();
         log.info("Chat client started");
@@ -243,6 +299,10 @@ public class Chat {
                         executeCmd_RetrieveChatHistory(userInput, out);
                         break;
                     }
+                    case ROOM_MARK : {
+                        executeCmd_SendRoomMessage(localChatUsername, userInput, out);
+                        break;
+                    }
                     default: {
                         // broadcast a global (insecure) message
                         log.info("Attempting to send insecure global message with content: {}", () -> userInput);
@@ -267,8 +327,10 @@ public class Chat {
     protected boolean executeCmd_ChatControl(@NotNull PrintStream anOutStream, String aChatCommand) {
         boolean stayActive = true;
 
-        //user asked for control action with chat-command
-        final String userCommand = aChatCommand.substring(1).trim().toLowerCase();
+        //user asked for control action with chat-command, possibly followed by an argument
+        final String[] commandParts = aChatCommand.substring(1).trim().split("\\s+", 2);
+        final String userCommand = commandParts[0].toLowerCase();
+        final String commandArgument = (commandParts.length > 1) ? commandParts[1] : "";
         switch (userCommand) {
             case "quit": {
                 stayActive = false;
@@ -278,6 +340,30 @@ public class Chat {
                 executeCommand_Help(anOutStream);
                 break;
             }
+            case "devices": {
+                executeCommand_ListDevices(anOutStream);
+                break;
+            }
+            case "join": {
+                executeCommand_JoinRoom(anOutStream, commandArgument, true);
+                break;
+            }
+            case "leave": {
+                executeCommand_JoinRoom(anOutStream, commandArgument, false);
+                break;
+            }
+            case "rooms": {
+                executeCommand_ListRooms(anOutStream);
+                break;
+            }
+            case "subscribe": {
+                executeCommand_SubscribeDevice(anOutStream, commandArgument, true);
+                break;
+            }
+            case "unsubscribe": {
+                executeCommand_SubscribeDevice(anOutStream, commandArgument, false);
+                break;
+            }
             default: {
                 log.info("User entered an unknown command: {}", userCommand);
                 anOutStream.printf("!! Unknown command: %s\n", userCommand);
@@ -296,22 +382,111 @@ public class Chat {
         anOutStream.println("?? HELP ??");
         anOutStream.println("-----");
         anOutStream.println("You can enter commands as &command, private text messages as @target content, private text messages as #target filename");
-        anOutStream.println("Commands:\n\thelp: this help dialog\n\tquit: quit the application");
+        anOutStream.println("Commands:\n\thelp: this help dialog\n\tdevices: list the devices registered on the server\n\tjoin room: join a chat room\n\tleave room: leave a chat room\n\trooms: list the rooms you joined\n\tsubscribe id: follow the changes of a device owned by another user\n\tunsubscribe id: stop following them\n\tquit: quit the application");
         anOutStream.println("Private messages are 1-1, secure, and delivered via PB");
         anOutStream.println("Global messages are to everyone, insecure, and delivered via JSON");
-        anOutStream.println("You can view past message history by using $contact, where contact is either blank (for shared messages) or the contact to print the history of");
+        anOutStream.println("Room messages are entered as %room content, go to the members of the room only, are insecure, and delivered via JSON");
+        anOutStream.println("You can view past message history by using $contact, where contact is either blank (for shared messages), %room for a room, or the contact to print the history of");
         anOutStream.println("-----");
     }
 
+    /**
+     * Execute the devices command, printing the devices currently registered on the server.
+     * @param anOutStream The output stream to write the list to
+     */
+    protected void executeCommand_ListDevices(@NotNull PrintStream anOutStream) {
+        if(knownDevices.isEmpty()) {
+            anOutStream.println("- There are no devices registered on the server.");
+            return;
+        }
+        for(DeviceProtocol.Device device : knownDevices.values()) {
+            anOutStream.printf("[%d] %s (%s) - %s\n", device.getId(), device.getName(), device.getType(), device.getStatus());
+        }
+    }
+
+    /**
+     * Execute the join/leave command, asking the server to add or remove this client from a room.
+     * The room is only joined/left once the server confirms it.
+     * @param anOutStream The output stream to write errors to
+     * @param aRoomName The name of the room
+     * @param join Whether to join or leave the room
+     */
+    protected void executeCommand_JoinRoom(@NotNull PrintStream anOutStream, final String aRoomName, boolean join) {
+        if(aRoomName.isBlank()) {
+            anOutStream.printf("Syntax: &%s room\n", join ? "join" : "leave");
+            return;
+        }
+        if(join == joinedRooms.contains(aRoomName)) {
+            anOutStream.printf("- You are %s in room %s.\n", join ? "already" : "not", aRoomName);
+            return;
+        }
+        log.info("Asking to {} room {}", join ? "join" : "leave", aRoomName);
+        if(join) {
+            chatEndpoint.joinRoom(aRoomName);
+        }
+        else {
+            chatEndpoint.leaveRoom(aRoomName);
+        }
+    }
+
+    /**
+     * Execute the subscribe/unsubscribe command, asking the server to send this client the changes of a device.
+     * Changes of a device only go to its owner and subscribers, so this is how to follow a device added by someone else.
+     * @param anOutStream The output stream to write errors to
+     * @param anId The id of the device, as entered
+     * @param subscribe Whether to subscribe or unsubscribe
+     */
+    protected void executeCommand_SubscribeDevice(@NotNull PrintStream anOutStream, final String anId, boolean subscribe) {
+        final int id;
+        try {
+            id = Integer.parseInt(anId.strip());
+        }
+        catch (final NumberFormatException e) {
+            anOutStream.printf("Syntax: &%s id\n", subscribe ? "subscribe" : "unsubscribe");
+            return;
+        }
+        if(!knownDevices.containsKey(id)) {
+            anOutStream.printf("- There is no device with id %d.\n", id);
+            return;
+        }
+        log.info("Asking to {} device {}", subscribe ? "subscribe to" : "unsubscribe from", id);
+        chatEndpoint.subscribeDevice(id, subscribe);
+    }
+
+    /**
+     * Execute the rooms command, printing the rooms this client has joined.
+     * @param anOutStream The output stream to write the list to
+     */
+    protected void executeCommand_ListRooms(@NotNull PrintStream anOutStream) {
+        if(joinedRooms.isEmpty()) {
+            anOutStream.println("- You have not joined any rooms.");
+            return;
+        }
+        for(String room : joinedRooms) {
+            anOutStream.printf("%c%s\n", ROOM_MARK, room);
+        }
+    }
+
+    /**
+     * Get the name of the shared cache contact that holds the history of a room.
+     * @param aRoomName The name of the room
+     * @return the contact name
+     */
+    private static String roomContact(final String aRoomName) {
+        return ROOM_MARK + aRoomName;
+    }
+
     /**
      * Shutdown actions for the chat application. 
      * First, close the WS endpoint. 
-     * Then, shutdown the thread pool. 
+     * Then, stop file transfers and shutdown the thread pools. 
      * Finally, shut down helix module.
      */
     protected void shutdown() {
         chatEndpoint.close();
+        fileTransfers.shutdown();
         executorService.shutdown();
+        ioExecutorService.shutdown();
         helixModule.shutdown();
     }
 
@@ -338,6 +513,21 @@ public class Chat {
                 }
             }
         }
+        else if(contactName.charAt(0) == ROOM_MARK) {
+            // room history, kept in the shared cache
+            final String roomName = contactName.substring(1);
+            if(sharedMessageCache.contactExists(contactName)) {
+                log.info("Retrieving chat history for room {}", roomName);
+                out.println();
+                for(String screenMessage: sharedMessageCache.getContactMessages(contactName)) {
+                    out.printf("%s\n", screenMessage);
+                }
+            }
+            else {
+                log.info("Cannot get chat history for unknown room {}", roomName);
+                out.println("Error: room does not exist");
+            }
+        }
         else {
             if(privateMessageCache.contactExists(contactName)) {
                 // private cache
@@ -394,6 +584,20 @@ public class Chat {
                 Chat.totalSent_Chat_PrivateFile_Initiated.incrementAndGet();
                 privateMessageCache.saveContactMessage(recipientName, Utility.formatPrivateFileNotice(fileName, recipientName, false), true);
 
+                if (Utility.resolveLocalPath(fileName).toFile().length() > ChunkedFileTransfer.CHUNK_SIZE) {
+                    // large files go in resumable chunks, so they never sit whole in memory
+                    log.info("Sending to {} an encrypted file {} in chunks", recipientName, fileName);
+                    try {
+                        fileTransfers.send(recipientName, fileName, messageID);
+                        Chat.totalSent_Chat_PrivateFile_SuccessfullyDispatched.incrementAndGet();
+                    } catch (final IOException e) {
+                        log.error("Could not start transfer of {} to {}: {}", fileName, recipientName, e.getMessage());
+                        out.printf("Error: cannot read file '%s'\n", fileName);
+                        Chat.totalSent_Chat_PrivateFile_FailedProcessing.incrementAndGet();
+                    }
+                    return;
+                }
+
                 log.info("Sending to {} an encrypted file {}", recipientName, fileName);
                 final SendPMFileTask sendPMFileTask = new SendPMFileTask(aLocalChatUsername, recipientName, fileName, messageID);
                 final Future<?> promiseToSendPMFileChat = Chat.executorService.submit(sendPMFileTask);
@@ -460,6 +664,38 @@ public class Chat {
         }
     }
 
+    /**
+     * Execute the send room message command, sending an insecure message to the members of a room via JSON.
+     * @param aLocalChatUsername The user's local chat name
+     * @param aRoomTextMessage The room and the text message content to send
+     * @param out The print stream to write to
+     */
+    protected void executeCmd_SendRoomMessage(final String aLocalChatUsername, final String aRoomTextMessage,
+                                              @NotNull PrintStream out) {
+        log.info("Processing room message: {}", aRoomTextMessage);
+        final Pattern tag = Pattern.compile("%(\\S+)");
+        Matcher m = tag.matcher(aRoomTextMessage);
+        if (m.find(0)) {
+            final String roomName = m.group().substring(1);
+            if (roomName.length() != aRoomTextMessage.length() - 1) {
+                final String roomMessage = aRoomTextMessage.substring(m.end() + 1);
+                if(!joinedRooms.contains(roomName)) {
+                    log.warn("Attempted to send to room {} without joining it", roomName);
+                    out.printf("Error: join room %s first, with &join %s\n", roomName, roomName);
+                    return;
+                }
+                log.info("Sending to room {} a message: {}", roomName, roomMessage);
+                final SendGlobalChatTask task = new SendGlobalChatTask(aLocalChatUsername, roomName, roomMessage);
+                final Future<?> result = Chat.executorService.submit(task);
+            } else {
+                log.warn("Attempted to send empty room message");
+                out.println("You cannot send an empty message");
+            }
+        } else {
+            out.println("Syntax: %room 'message to send'");
+        }
+    }
+
     /**
      * Sends some plaintext message to everyone as a global message.
      *
@@ -469,15 +705,37 @@ public class Chat {
     private void sendGlobalMessage(final String aSenderName, final String aPlaintext) {
         totalSent_Chat_GlobalMessages_Initiated.incrementAndGet();
         log.info("Preparing message payload");
-        final JsonObject payload = prepareGlobalPayload(aSenderName, aPlaintext);
-        log.info("Prepare message payload - returned {}", payload.toString());
-        chatEndpoint.sendMessage(payload.toString());
+        if (binaryGlobalChat) {
+            final DeviceProtocol.Device payload = prepareGlobalPayloadPB(aSenderName, aPlaintext);
+            chatEndpoint.sendMessage(ByteBuffer.wrap(payload.toByteArray()));
+        } else {
+            final String payload = prepareGlobalPayload(aSenderName, null, aPlaintext);
+            log.info("Prepare message payload - returned {}", payload);
+            chatEndpoint.sendMessage(payload);
+        }
         sharedMessageCache.saveContactMessage("EVERYONE", Utility.formatGlobalMessageNotice(aPlaintext, false), false);
         Chat.totalSent_Packets_SuccessfullyDispatched.incrementAndGet();
         log.info("Payload sent");
         totalSent_Chat_GlobalMessages_SuccessfullyDispatched.incrementAndGet();
     }
 
+    /**
+     * Sends some plaintext message to the members of a room.
+     *
+     * @param aSenderName    the user sending the message
+     * @param aRoomName  the room to send the message to
+     * @param aPlaintext the plaintext contents of the message
+     */
+    private void sendRoomMessage(final String aSenderName, final String aRoomName, final String aPlaintext) {
+        totalSent_Chat_GlobalMessages_Initiated.incrementAndGet();
+        final String payload = prepareGlobalPayload(aSenderName, aRoomName, aPlaintext);
+        log.info("Prepare room message payload - returned {}", payload);
+        chatEndpoint.sendMessage(payload);
+        sharedMessageCache.saveContactMessage(roomContact(aRoomName), Utility.formatRoomMessageNotice(aPlaintext, aRoomName, false), false);
+        Chat.totalSent_Packets_SuccessfullyDispatched.incrementAndGet();
+        totalSent_Chat_GlobalMessages_SuccessfullyDispatched.incrementAndGet();
+    }
+
     /**
      * Task to send a global chat message, as a Runnable.
      * Will run on one of the threads managed by the thread pool, <code>executorService</code>.
@@ -488,6 +746,10 @@ public class Chat {
          * The sender's chat name.
          */
         private final String localChatUsername;
+        /**
+         * The room to send the message to, or null to send it to everyone.
+         */
+        private final String roomName;
         /**
          * The message content to be sent.
          */
@@ -499,43 +761,76 @@ public class Chat {
          * @param aMessageContent The message content to be sent
          */
         public SendGlobalChatTask(final String aLocalChatUsername, final String aMessageContent) {
+            this(aLocalChatUsername, null, aMessageContent);
+        }
+
+        /**
+         * Constructor for the send room chat message task.
+         * @param aLocalChatUsername The sender's chat name
+         * @param aRoomName The room to send the message to, or null to send it to everyone
+         * @param aMessageContent The message content to be sent
+         */
+        public SendGlobalChatTask(final String aLocalChatUsername, final String aRoomName, final String aMessageContent) {
             this.localChatUsername = aLocalChatUsername;
+            this.roomName = aRoomName;
             this.messageContent = aMessageContent;
         }
 
         /**
          * The task to perform when running this task.
-         * In this case, run the <code>sendGlobalMessage</code> function.
+         * In this case, run the <code>sendGlobalMessage</code> function, or <code>sendRoomMessage</code> for a room.
          */
         @Override
         public void run() {
-            sendGlobalMessage(localChatUsername, messageContent);
+            if (roomName == null) {
+                sendGlobalMessage(localChatUsername, messageContent);
+            } else {
+                sendRoomMessage(localChatUsername, roomName, messageContent);
+            }
         }
     }
 
     /**
-     * Prepares a global payload, in JSON format, to send to everyone in <code>sendGlobalMessage</code>.
+     * Prepares a global payload, in JSON format, to send to everyone in <code>sendGlobalMessage</code>,
+     * or to the members of a room in <code>sendRoomMessage</code>.
      * No encryption here, contents sent as-is for everyone.
      *
      * @param aSender    the user sending the message
+     * @param aRoomName  the room to send the message to, or null to send it to everyone
      * @param aPlaintext the plaintexts contents of the message
-     * @return the payload to send, as a JsonObject
+     * @return the payload to send, as JSON text
      */
-    private JsonObject prepareGlobalPayload(final String aSender, final String aPlaintext) {
-        final JsonProvider provider = JsonProvider.provider();
+    private String prepareGlobalPayload(final String aSender, final String aRoomName, final String aPlaintext) {
+        final JsonCodec.Writer writer = JsonCodec.write()
+                .field("action", DeviceProtocol.Action.CHAT);
+        if (aRoomName != null) {
+            writer.field("room", aRoomName);
+        }
+        return writer.beginObject("message")
+                .field("username", aSender)
+                .field("content", aPlaintext)
+                .endObject()
+                .end();
+    }
 
-        final JsonObject _message = provider.createObjectBuilder()
-                .add("username", aSender)
-                .add("content", aPlaintext)
-                .build();
 
-        return provider.createObjectBuilder()
-                .add("action", "chat")
-                .add("message", _message)
+    /**
+     * Prepares a global payload, via PB, to send to everyone in <code>sendGlobalMessage</code>
+     * once the server agreed to it. No encryption here either; having no target is what makes it global.
+     *
+     * @param aSender    the user sending the message
+     * @param aPlaintext the plaintexts contents of the message
+     * @return the payload to send, as a PB message
+     */
+    private DeviceProtocol.Device prepareGlobalPayloadPB(final String aSender, final String aPlaintext) {
+        return DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.CHAT)
+                .setMessage(DeviceProtocol.ChatMsg.newBuilder()
+                        .setUsername(aSender)
+                        .setContent(ByteString.copyFromUtf8(aPlaintext)))
                 .build();
     }
 
-
     /**
      * Receive JSON String message from a given session.
      *
@@ -544,25 +839,40 @@ public class Chat {
      */
     private void receiveGlobalMessage(final String message, final Session session) {
         log.info("Parsing JSON message");
-        try (JsonReader reader = Json.createReader(new StringReader(message))) {
-            JsonObject jsonMessage = reader.readObject();
+        try {
+            final JsonCodec.Message jsonMessage = JsonCodec.read(message);
+            final DeviceProtocol.Action action = jsonMessage.getAction();
+            final String error = (jsonMessage.getError() == null) ? "" : jsonMessage.getError();
+
+            // Process the answer to a room request, whether it went through or not
+            if (action == DeviceProtocol.Action.JOIN || action == DeviceProtocol.Action.LEAVE) {
+                receiveRoomReply(action == DeviceProtocol.Action.JOIN, JsonCodec.require(jsonMessage.getRoom(), "room"), error);
+                return;
+            }
+
+            // The server turned down a request, e.g. when sending too fast
+            if (!error.isEmpty() && action != DeviceProtocol.Action.IDENTIFY) {
+                log.warn("Server rejected {} request with code: {}", JsonCodec.actionName(action), error);
+                return;
+            }
 
             // Process a global chat message
-            if ("chat".equals(jsonMessage.getString("action"))) {
+            if (action == DeviceProtocol.Action.CHAT) {
                 totalReceived_Chat_GlobalMessages.incrementAndGet();
                 final ProcessGlobalChatTask task = new ProcessGlobalChatTask(this.sharedMessageCache, jsonMessage);
                 final Future<Void> result = Chat.executorService.submit(task);
             }
 
             // Process a server identification request response
-            if ("identify".equals(jsonMessage.getString("action"))) {
+            if (action == DeviceProtocol.Action.IDENTIFY) {
                 log.info("Processing identification request");
-                String error = jsonMessage.getString("error");
                 if (!error.isEmpty()) {
                     log.error("Username is already taken. Please rejoin with another one");
                     shutdown();
                 }
-                log.info("Identification success");
+                // servers that don't know about PB global chat don't say so, and stay on JSON
+                binaryGlobalChat = "pb".equals(jsonMessage.getChat());
+                log.info("Identification success, global chat via {}", binaryGlobalChat ? "PB" : "JSON");
             }
             log.info("JSON Message parsed");
         } catch (RuntimeException e) {
@@ -571,15 +881,47 @@ public class Chat {
         }
     }
 
+    /**
+     * Apply the server's answer to a join/leave request, keeping track of the rooms joined.
+     * A joined room gets its own contact in the shared cache, so its history is kept apart from global messages.
+     * @param join Whether the request was to join or to leave
+     * @param roomName The room of the request
+     * @param error Contains the error if any, or empty if none
+     */
+    private void receiveRoomReply(boolean join, final String roomName, final String error) {
+        if (!error.isEmpty()) {
+            log.warn("Server rejected {} request for room {} with code: {}", join ? "join" : "leave", roomName, error);
+            System.out.printf("\n!! Could not %s room %s (%s)\n", join ? "join" : "leave", roomName, error);
+        } else if (join) {
+            joinedRooms.add(roomName);
+            sharedMessageCache.addContact(roomContact(roomName));
+            log.info("Joined room {}", roomName);
+            System.out.printf("\n- Joined room %s, send to it with %c%s\n", roomName, ROOM_MARK, roomName);
+        } else {
+            joinedRooms.remove(roomName);
+            log.info("Left room {}", roomName);
+            System.out.printf("\n- Left room %s\n", roomName);
+        }
+        System.out.print(prompt);
+    }
+
     /**
      * Task to process a global chat message, as a callable.
      * Will run on one of the threads managed by the thread pool, <code>executorService</code>.
      */
     public class ProcessGlobalChatTask implements Callable<Void> {
         /**
-         * The JSON message received.
+         * The user who sent the message.
+         */
+        private final String username;
+        /**
+         * The content of the message, as formatted by the server.
          */
-        private final JsonObject message;
+        private final String content;
+        /**
+         * The room the message was sent to, or null if sent to everyone.
+         */
+        private final String roomName;
         /**
          * The message cache that this message belongs to.
          */
@@ -588,12 +930,39 @@ public class Chat {
         /**
          * Constructor for a global chat message processing task.
          * @param aCacheService The cache that this message belongs to
-         * @param aJSONMessage The JSON message to be processed
+         * @param aJSONMessage The JSON message to be processed; only read here, so it can be reused once constructed
+         */
+        public ProcessGlobalChatTask(final MessageCache aCacheService,
+                                 final JsonCodec.Message aJSONMessage) {
+            this(aCacheService, JsonCodec.require(aJSONMessage.getMessageUsername(), "username"),
+                 JsonCodec.require(aJSONMessage.getContent(), "content"), aJSONMessage.getRoom());
+        }
+
+        /**
+         * Constructor for a global chat message processing task, from a PB message.
+         * PB messages carry the content as sent, so it is formatted here the way the server formats JSON ones.
+         * @param aCacheService The cache that this message belongs to
+         * @param aMessage The PB message to be processed
          */
         public ProcessGlobalChatTask(final MessageCache aCacheService,
-                                 final JsonObject aJSONMessage) {
+                                     final DeviceProtocol.ChatMsg aMessage) {
+            this(aCacheService, aMessage.getUsername(),
+                 aMessage.getUsername() + " said: " + aMessage.getContent().toStringUtf8(), null);
+        }
+
+        /**
+         * Constructor for a global chat message processing task.
+         * @param aCacheService The cache that this message belongs to
+         * @param aUsername The user who sent the message
+         * @param aContent The content of the message, as formatted by the server
+         * @param aRoomName The room the message was sent to, or null if sent to everyone
+         */
+        private ProcessGlobalChatTask(final MessageCache aCacheService, final String aUsername,
+                                      final String aContent, final String aRoomName) {
             this.messageCache = aCacheService;
-            this.message = aJSONMessage;
+            this.username = aUsername;
+            this.content = aContent;
+            this.roomName = aRoomName;
         }
 
         /**
@@ -603,8 +972,7 @@ public class Chat {
          */
         @Override
         public Void call() {
-            JsonObject msg = message.getJsonObject("message");
-            boolean ownMessage = msg.getString("username").equals(localChatUsername);
+            boolean ownMessage = username.equals(localChatUsername);
 
             if(ownMessage) {
                 log.info("Received a global message that looks like was sent by me - ignoring it");
@@ -612,8 +980,16 @@ public class Chat {
                 return null;
             }
 
-            log.info("Adding chat message from {} to global cache", msg.getString("username"));
-            messageCache.saveContactMessage(EVERYONE, Utility.formatGlobalMessageNotice(msg.getString("content"), true), true);
+            if(roomName != null) {
+                log.info("Adding chat message from {} to room {} cache", username, roomName);
+                messageCache.saveContactMessage(roomContact(roomName), Utility.formatRoomMessageNotice(content, roomName, true), true);
+                System.out.print(prompt);
+                Chat.totalReceived_Chat_GlobalMessages_SuccessfullyProcessed.incrementAndGet();
+                return null;
+            }
+
+            log.info("Adding chat message from {} to global cache", username);
+            messageCache.saveContactMessage(EVERYONE, Utility.formatGlobalMessageNotice(content, true), true);
             System.out.print(prompt);
             Chat.totalReceived_Chat_GlobalMessages_SuccessfullyProcessed.incrementAndGet();
             return null;
@@ -721,6 +1097,13 @@ public class Chat {
         }
         assert plainMessageBytes != null;
 
+        // Compress first, if worth it: less to encrypt, and the ciphertext itself won't compress
+        final byte[] compressed = PayloadCompression.compress(plainMessageBytes);
+        if (compressed != null) {
+            log.debug("Compressed {} bytes to {} (message #{})", plainMessageBytes.length, compressed.length, messageID);
+            plainMessageBytes = compressed;
+        }
+
         // Encrypt method is "unaware" that it is encrypting a file - it doesn't care
         EncryptTask encryptTask = new EncryptTask(this.helixModule, plainMessageBytes, recipientName, messageID);
         int msWaitInterval = 1 * 500; // 0.5 minutes
@@ -739,9 +1122,10 @@ public class Chat {
                 .setContent(ByteString.copyFrom(content))
                 .setTarget(recipientName)
                 .setFileName((fileName == null ? "" : fileName))
+                .setCompression(compressed != null ? DeviceProtocol.Compression.DEFLATE_BASE64 : DeviceProtocol.Compression.NONE)
                 .build();
 
-        return payload.setAction("chat")
+        return payload.setActionCode(DeviceProtocol.Action.CHAT)
                 .setMessage(chatMsg)
                 .build();
     }
@@ -760,35 +1144,150 @@ public class Chat {
                                        final long aMessageID) throws InvalidProtocolBufferException
     {
         log.info("Starting to process packet (blob #{})", aMessageID);
-        DeviceProtocol.Device device = DeviceProtocol.Device.parseFrom(incomingPacket);
+        receiveDevice(DeviceProtocol.Device.parseFrom(incomingPacket), aMessageID);
+    }//eo receive private message
+
+    /**
+     * Handles a single PB message, either received on its own or as part of a batch.
+     *
+     * @param device The message received
+     * @param aMessageID The message's internal ID for logging
+     */
+    private void receiveDevice(final DeviceProtocol.Device device, final long aMessageID) {
+        final DeviceProtocol.Action action = resolveAction(device);
+        switch (action) {
+            case UNKNOWN: {
+                log.error("Packet is malformed, missing [action] field; packet is: {}", () -> device.toString());
+                Chat.totalReceived_Packets_FailedProcessing.incrementAndGet();
+                break;
+            }
+            case CHAT: {
+                // Avoid further processing if there was an error with the private (file/text) message
+                final String error = device.getError();
+                if (! error.isEmpty()) {
+                    log.error("Received invalid private message from Chat Server (blob {}) with code: {}", aMessageID, error);
+                    Chat.totalReceived_Chat_PrivateMessages_FailedProcessing.incrementAndGet();
+                    return;
+                }
+
+                if (! device.getMessage().hasTarget()) {
+                    // no target, a global chat message via PB
+                    totalReceived_Chat_GlobalMessages.incrementAndGet();
+                    final ProcessGlobalChatTask task = new ProcessGlobalChatTask(this.sharedMessageCache, device.getMessage());
+                    Chat.executorService.submit(task);
+                    break;
+                }
+
+                //TODO: verify memory buffer will not be deallocated by WS internal threads after Callable task is scheduled
+                // if so, we need to take copy of data to pass into the callable
+                DeviceProtocol.ChatMsg aWSPacket = device.getMessage();
+
+                final ProcessPMChatTask task = new ProcessPMChatTask(this.helixModule, this.privateMessageCache,
+                                                                     localChatUsername, aWSPacket, aMessageID);
+                final Future<Void> result = Chat.executorService.submit(task);
+
+                // TODO: if task returns results, use "result.wait" and "result.isDone" here
+                break;
+            }
+            case FILE_OFFER:
+            case FILE_CHUNK:
+            case FILE_ACK: {
+                final String error = device.getError();
+                if (! error.isEmpty()) {
+                    log.error("Received invalid file transfer message from Chat Server (blob {}) with code: {}", aMessageID, error);
+                    Chat.totalReceived_Chat_PrivateFiles_FailedProcessing.incrementAndGet();
+                    return;
+                }
+                fileTransfers.receive(action, device.getMessage(), aMessageID);
+                break;
+            }
+            case BATCH: {
+                // the server combined several messages into one frame, handle them in order
+                log.debug("Packet (blob #{}) is a batch of {} messages", aMessageID, device.getBatch().getDevicesCount());
+                for (DeviceProtocol.Device batched : device.getBatch().getDevicesList()) {
+                    receiveDevice(batched, aMessageID);
+                }
+                break;
+            }
+            default: {
+                receiveDeviceMessage(device, action, aMessageID);
+                break;
+            }
+        }
+    }
 
+    /**
+     * Get the action of a PB message.
+     * Uses the enum action if set, and falls back to the legacy string action otherwise,
+     * resolved the same way <code>JsonCodec</code> resolves the action of a JSON message.
+     * @param device The message to get the action of
+     * @return The action, or <code>UNKNOWN</code> if none could be resolved
+     */
+    private static DeviceProtocol.Action resolveAction(final DeviceProtocol.Device device) {
+        if (device.hasActionCode()) {
+            return device.getActionCode();
+        }
         final String action = device.getAction();
-        if(action == null || action.isEmpty() || action.isBlank()) {
-            log.error("Packet is malformed, missing [action] field; packet is: {}", () -> device.toString());
-            Chat.totalReceived_Packets_FailedProcessing.incrementAndGet();
+        return JsonCodec.resolveAction(action, 0, action.length());
+    }
+
+    /**
+     * Applies a device event, in PB format, to the local view of the server's devices.
+     * A snapshot is applied in a single pass; its first chunk replaces the whole view.
+     *
+     * @param device The device event received
+     * @param action The resolved action of the event
+     * @param aMessageID The message's internal ID for logging
+     */
+    private void receiveDeviceMessage(final DeviceProtocol.Device device, final DeviceProtocol.Action action,
+                                      final long aMessageID) {
+        Chat.totalReceived_IoT_Messages.incrementAndGet();
+        if (device.hasError()) {
+            log.warn("Server rejected {} request (blob #{}) with code: {}", action, aMessageID, device.getError());
+            Chat.totalReceived_IoT_Messages_FailedProcessing.incrementAndGet();
             return;
         }
-
-        if (action.trim().toLowerCase().equals("chat")) {
-            // Avoid further processing if there was an error with the private (file/text) message
-            final String error = device.getError();
-            if (! error.isEmpty()) {
-                log.error("Received invalid private message from Chat Server (blob {}) with code: {}", aMessageID, error);
-                Chat.totalReceived_Chat_PrivateMessages_FailedProcessing.incrementAndGet();
+        switch (action) {
+            case SNAPSHOT: {
+                final DeviceProtocol.DeviceSnapshot snapshot = device.getSnapshot();
+                if (snapshot.getChunk() == 0) {
+                    knownDevices.clear();
+                }
+                for (DeviceProtocol.Device entry : snapshot.getDevicesList()) {
+                    knownDevices.put(entry.getId(), entry);
+                }
+                log.info("Applied device snapshot chunk {}/{} with {} devices (blob #{})", snapshot.getChunk() + 1,
+                         snapshot.getChunkCount(), snapshot.getDevicesCount(), aMessageID);
+                break;
+            }
+            case ADD: {
+                knownDevices.put(device.getId(), device);
+                break;
+            }
+            case REMOVE: {
+                knownDevices.remove(device.getId());
+                break;
+            }
+            case TOGGLE:
+            case SUBSCRIBE: {
+                // a subscription is answered with the current state, applied like a toggle
+                // updates no newer than the known state are stale, e.g. sent again by a later coalescing window
+                knownDevices.computeIfPresent(device.getId(), (id, known) -> device.getVersion() <= known.getVersion()
+                        ? known : known.toBuilder().setStatus(device.getStatus()).setVersion(device.getVersion()).build());
+                break;
+            }
+            case UNSUBSCRIBE: {
+                log.info("Unsubscribed from device {} (blob #{})", device.getId(), aMessageID);
+                break;
+            }
+            default: {
+                log.warn("Received device message with unsupported action {} (blob #{})", action, aMessageID);
+                Chat.totalReceived_IoT_Messages_FailedProcessing.incrementAndGet();
                 return;
             }
-
-            //TODO: verify memory buffer will not be deallocated by WS internal threads after Callable task is scheduled
-            // if so, we need to take copy of data to pass into the callable
-            DeviceProtocol.ChatMsg aWSPacket = device.getMessage();
-
-            final ProcessPMChatTask task = new ProcessPMChatTask(this.helixModule, this.privateMessageCache,
-                                                                 localChatUsername, aWSPacket, aMessageID);
-            final Future<Void> result = Chat.executorService.submit(task);
-
-            // TODO: if task returns results, use "result.wait" and "result.isDone" here
         }
-    }//eo receive private message
+        Chat.totalReceived_IoT_Messages_SuccessfullyProcessed.incrementAndGet();
+    }
 
     /**
      * A Helix encryption task, as a Callable.
@@ -907,58 +1406,86 @@ public class Chat {
             log.info("Received private message (blob #{}) from contact {}", messageID, sender);
 
             // Decrypt method is "unaware" that it is decrypting a file - it doesn't care
-            byte[] encryptedBytesReceived = message.getContent().toByteArray();
-            byte[] plainData = helixModule.decrypt(encryptedBytesReceived, messageID);
-
-            String onScreenMessage;
+            final byte[] decrypted = helixModule.decrypt(message.getContent().toByteArray(), messageID);
+            if (decrypted == null) {
+                log.error("Could not decrypt private message (blob #{}) from contact {}", messageID, sender);
+                Chat.totalReceived_Packets_FailedProcessing.incrementAndGet();
+                return null;
+            }
+            final byte[] plainData;
+            try {
+                plainData = (message.getCompression() == DeviceProtocol.Compression.DEFLATE_BASE64)
+                        ? PayloadCompression.decompress(decrypted) : decrypted;
+            } catch (final DataFormatException e) {
+                log.error("Could not decompress private message (blob #{}) from contact {}: {}", messageID, sender, e.getMessage());
+                Chat.totalReceived_Packets_FailedProcessing.incrementAndGet();
+                return null;
+            }
 
             // Determine if we processing a message or a file
-            final String fileName = message.getFileName();
-            if (fileName.isEmpty()) {
-                Chat.totalReceived_Chat_PrivateMessages_SuccessfullyProcessed.incrementAndGet();
-                onScreenMessage = Utility.formatPrivateMessageNotice(new String(plainData), sender, true);
-            } else {
+            if (! message.getFileName().isEmpty()) {
                 log.info("Private message (blob #{}) contains a file", messageID);
+                final String fileName = Utility.localFileName(message.getFileName());
+                if (fileName == null) {
+                    log.warn("Ignoring file from {} with invalid file name '{}' (blob #{})", sender, message.getFileName(), messageID);
+                    Chat.totalReceived_Chat_PrivateFiles_FailedProcessing.incrementAndGet();
+                    Chat.totalReceived_Packets_FailedProcessing.incrementAndGet();
+                    return null;
+                }
+                // Hand the disk writes over, so this thread can go back to decrypting
+                ioExecutorService.execute(() -> writeReceivedFile(sender, fileName, plainData));
+                return null;
+            }
 
-                // Create the contact directory under shared if not exists
-                final String currentDirectory = Paths.get("").toAbsolutePath().toString();
-                Path contactDirectory = Path.of(currentDirectory, "shared", sender);
-                log.info("Creating contact directory " + contactDirectory.toString() + "(blob #" + messageID + ")");
-                Utility.createFolderIfNotExists(contactDirectory);
+            Chat.totalReceived_Chat_PrivateMessages_SuccessfullyProcessed.incrementAndGet();
+            final String onScreenMessage = Utility.formatPrivateMessageNotice(new String(plainData), sender, true);
 
-                // Write the received encrypted content into its respective file
-                String encryptedFileName = fileName + "-" + Utility.getTimeStamp(true) + "-encrypted.helix";
-                Path encryptedFilePath = Path.of(currentDirectory, "shared", sender, encryptedFileName);
-                log.info("Writing encrypted private file message (blob #" + messageID + ") to " + encryptedFilePath.toString());
-                try {
-                    Utility.writeToFile(encryptedFilePath.toString(), encryptedBytesReceived);
-                } catch (final IOException e) {
-                    log.error("Failed to write file {} with error trace {}", encryptedFilePath.toString(), e.getMessage());
-                }
+            // Send either the text message or file notification for the user
+            messageCache.saveContactMessage(sender, onScreenMessage, true);
+            System.out.print(prompt);
+            Chat.totalReceived_Packets_SuccessfullyProcessed.incrementAndGet();
+            return null;
+        }
 
-                // Write the decrypted file content to its respective file
-                String decryptedFileName = fileName + "-" + Utility.getTimeStamp(true) + "-decrypted.helix";
-                Path decryptedFilePath = Path.of(currentDirectory, "shared", sender, decryptedFileName);
+        /**
+         * Write a received file to the sender's shared folder, then let the user know.
+         * Runs on the I/O pool. The encrypted copy is written straight from the received message, and only if enabled.
+         * @param sender The contact who sent the file
+         * @param fileName The name of the file, with any directories the sender put in it dropped
+         * @param plainData The decrypted file content
+         */
+        private void writeReceivedFile(final String sender, final String fileName, final byte[] plainData) {
+            final Path contactDirectory = Utility.resolveContactFolder(sender);
+            final String timeStamp = Utility.getTimeStamp(true);
 
-                log.info("Writing decrypted private file message (blob #" + messageID + ") to " + decryptedFilePath.toString());
+            if (KEEP_ENCRYPTED_FILES) {
+                final Path encryptedFilePath = contactDirectory.resolve(fileName + "-" + timeStamp + "-encrypted.helix");
+                log.info("Writing encrypted private file message (blob #{}) to {}", messageID, encryptedFilePath);
                 try {
-                    Utility.writeToFile(decryptedFilePath.toString(), plainData);
+                    Utility.writeToFile(encryptedFilePath, message.getContent().asReadOnlyByteBuffer());
                 } catch (final IOException e) {
-                    log.error("Failed to write file {} with error trace {}", decryptedFilePath.toString(), e.getMessage());
+                    log.error("Failed to write file {} with error trace {}", encryptedFilePath, e.getMessage());
                 }
+            }
 
-                log.info("Corresponding files successfully written to disk (blob #{})", messageID);
-                Chat.totalReceived_Chat_PrivateFiles_SuccessfullyProcessed.incrementAndGet();
-
-                // Format chat message to be received by users 
-                onScreenMessage = Utility.formatPrivateFileNotice(fileName, sender, true);
+            final Path decryptedFilePath = contactDirectory.resolve(fileName + "-" + timeStamp + "-decrypted.helix");
+            log.info("Writing decrypted private file message (blob #{}) to {}", messageID, decryptedFilePath);
+            try {
+                Utility.writeToFile(decryptedFilePath, ByteBuffer.wrap(plainData));
+            } catch (final IOException e) {
+                log.error("Failed to write file {} with error trace {}", decryptedFilePath, e.getMessage());
+                Chat.totalReceived_Chat_PrivateFiles_FailedProcessing.incrementAndGet();
+                Chat.totalReceived_Packets_FailedProcessing.incrementAndGet();
+                return;
             }
 
-            // Send either the text message or file notification for the user
-            messageCache.saveContactMessage(sender, onScreenMessage, true);
+            log.info("Corresponding files successfully written to disk (blob #{})", messageID);
+            Chat.totalReceived_Chat_PrivateFiles_SuccessfullyProcessed.incrementAndGet();
+
+            // Format chat message to be received by users
+            messageCache.saveContactMessage(sender, Utility.formatPrivateFileNotice(fileName, sender, true), true);
             System.out.print(prompt);
             Chat.totalReceived_Packets_SuccessfullyProcessed.incrementAndGet();
-            return null;
         }
     }
 
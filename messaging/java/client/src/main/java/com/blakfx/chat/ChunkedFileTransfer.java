@@ -0,0 +1,749 @@
+package com.blakfx.chat;
+
+import com.blakfx.helix.HelixCryptoProvider;
+import com.blakfx.helix.HelixModule.HelixException;
+import com.blakfx.protocols.DeviceProtocol;
+import com.blakfx.util.FileChunkSource;
+import com.blakfx.util.PayloadCompression;
+import com.blakfx.util.Utility;
+import com.blakfx.websocket.WebsocketClientEndpoint;
+import com.google.protobuf.ByteString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+
+/**
+ * Chunked, resumable secure file transfers between two chat users.
+ * The sender offers a file, the receiver answers with the next chunk it expects (0 for a new transfer,
+ * or wherever a previous attempt stopped), and the sender then pipelines encrypted chunks
+ * with up to <code>WINDOW</code> of them waiting for an acknowledgement.
+ * Each chunk is encrypted on its own by Helix, carries a CRC32C of its encrypted bytes,
+ * and is written to disk by the receiver as soon as it is decrypted.
+ * Transfer IDs are derived from the file and the parties, so offering the same file again
+ * after an interruption resumes from the last acknowledged chunk.
+ */
+public class ChunkedFileTransfer {
+
+    /**
+     * Size of a plaintext chunk, in bytes. Files up to this size are sent as a single message.
+     */
+    public static final int CHUNK_SIZE = Integer.getInteger("com.blakfx.chat.transfer.chunkSize", 256 * 1024);
+    /**
+     * Max number of chunks sent but not yet acknowledged.
+     */
+    private static final int WINDOW = Integer.getInteger("com.blakfx.chat.transfer.window", 8);
+    /**
+     * Time without progress after which the sender goes back to the last acknowledged chunk.
+     */
+    private static final long ACK_TIMEOUT_MS = Long.getLong("com.blakfx.chat.transfer.ackTimeoutMs", 30 * 1000L);
+    /**
+     * Number of timeouts in a row after which a transfer is given up (it can still be resumed later).
+     */
+    private static final int MAX_RETRIES = 5;
+    /**
+     * The value of <code>nextChunk</code> telling the sender the receiver knows nothing of the transfer.
+     */
+    private static final int UNKNOWN_TRANSFER = -1;
+
+    /**
+     * This class' Logger instance.
+     */
+    private static final Logger log = LogManager.getLogger(ChunkedFileTransfer.class.getName());
+
+    /**
+     * The local user's chat name.
+     */
+    private final String localChatUsername;
+    /**
+     * The Helix module for encrypting/decrypting chunks.
+     */
+    private final HelixCryptoProvider helixModule;
+    /**
+     * The endpoint to send transfer messages through.
+     */
+    private final WebsocketClientEndpoint chatEndpoint;
+    /**
+     * The pool running the encrypt/decrypt work.
+     */
+    private final ExecutorService executorService;
+    /**
+     * The pool running the disk writes of received chunks.
+     */
+    private final ExecutorService ioExecutorService;
+    /**
+     * The cache to post transfer notices to.
+     */
+    private final MessageCache messageCache;
+    /**
+     * Checks for transfers that stopped making progress.
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "file-transfer-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * The transfers being sent, by transfer ID.
+     */
+    private final ConcurrentMap<String, Outgoing> outgoing = new ConcurrentHashMap<>();
+    /**
+     * The transfers being received, by sender and transfer ID.
+     */
+    private final ConcurrentMap<String, Incoming> incoming = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs the file transfer manager.
+     * @param aLocalChatUsername The local user's chat name
+     * @param aCryptoService The Helix module for encrypting/decrypting chunks
+     * @param aChatEndpoint The endpoint to send transfer messages through
+     * @param anExecutorService The pool running the encrypt/decrypt work
+     * @param anIoExecutorService The pool running the disk writes of received chunks
+     * @param aCacheService The cache to post transfer notices to
+     */
+    public ChunkedFileTransfer(final String aLocalChatUsername, final HelixCryptoProvider aCryptoService,
+                               final WebsocketClientEndpoint aChatEndpoint, final ExecutorService anExecutorService,
+                               final ExecutorService anIoExecutorService,
+                               final MessageCache aCacheService) {
+        localChatUsername = aLocalChatUsername;
+        helixModule = aCryptoService;
+        chatEndpoint = aChatEndpoint;
+        executorService = anExecutorService;
+        ioExecutorService = anIoExecutorService;
+        messageCache = aCacheService;
+        timer.scheduleWithFixedDelay(this::checkTimeouts, ACK_TIMEOUT_MS / 2, ACK_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start (or resume) sending a file to a recipient.
+     * @param aRecipientName The user to send the file to
+     * @param aFileName The file to send, relative to the current directory
+     * @param aMessageID The internal ID of this send, for logging
+     * @throws IOException The file could not be opened
+     */
+    public void send(final String aRecipientName, final String aFileName, final long aMessageID) throws IOException {
+        final Path path = Utility.resolveLocalPath(aFileName);
+        final long size = Files.size(path);
+        final long modified = Files.getLastModifiedTime(path).toMillis();
+        final String transferId = UUID.nameUUIDFromBytes(
+                String.join("/", localChatUsername, aRecipientName, aFileName, Long.toString(size), Long.toString(modified))
+                        .getBytes(StandardCharsets.UTF_8)).toString();
+
+        final Outgoing transfer = new Outgoing(transferId, aRecipientName, aFileName, path, aMessageID);
+        final Outgoing previous = outgoing.putIfAbsent(transferId, transfer);
+        if (previous != null) {
+            log.info("Transfer {} of {} to {} is already in progress (message #{})", transferId, aFileName, aRecipientName, aMessageID);
+            transfer.close();
+            return;
+        }
+        log.info("Offering {} ({} bytes, {} chunks) to {} as transfer {} (message #{})",
+                 aFileName, size, transfer.chunkCount, aRecipientName, transferId, aMessageID);
+        transfer.offer();
+    }
+
+    /**
+     * Handle a received transfer message.
+     * Called from the websocket thread, so all real work is handed to the executor.
+     * @param action The transfer action
+     * @param aMessage The received message
+     * @param aMessageID The message's internal ID for logging
+     */
+    public void receive(final DeviceProtocol.Action action, final DeviceProtocol.ChatMsg aMessage, final long aMessageID) {
+        final DeviceProtocol.FileTransfer meta = aMessage.getTransfer();
+        switch (action) {
+            case FILE_OFFER: {
+                final String fileName = Utility.localFileName(aMessage.getFileName());
+                if (fileName == null) {
+                    log.warn("Ignoring offer of transfer {} from {} with invalid file name '{}' (blob #{})",
+                             meta.getTransferId(), aMessage.getUsername(), aMessage.getFileName(), aMessageID);
+                    return;
+                }
+                final String key = incomingKey(aMessage.getUsername(), meta.getTransferId());
+                final Incoming transfer = incoming.computeIfAbsent(key, k -> new Incoming(aMessage.getUsername(), meta, fileName));
+                transfer.enqueue(CompletableFuture.completedFuture(null), v -> transfer.onOffer());
+                break;
+            }
+            case FILE_CHUNK: {
+                final Incoming transfer = incoming.get(incomingKey(aMessage.getUsername(), meta.getTransferId()));
+                if (transfer == null) {
+                    // the offer was lost, or we restarted: ask the sender to offer again
+                    log.warn("Received chunk for unknown transfer {} from {} (blob #{})", meta.getTransferId(), aMessage.getUsername(), aMessageID);
+                    executorService.submit(() -> sendAck(aMessage.getUsername(), meta.getTransferId(), UNKNOWN_TRANSFER));
+                    return;
+                }
+                // decrypt right away, possibly while earlier chunks are still being written
+                final CompletableFuture<byte[]> plain = CompletableFuture.supplyAsync(
+                        () -> transfer.decryptChunk(meta, aMessage.getContent(), aMessage.getCompression(), aMessageID),
+                        executorService);
+                transfer.enqueue(plain, data -> transfer.onChunk(meta, data));
+                break;
+            }
+            case FILE_ACK: {
+                final Outgoing transfer = outgoing.get(meta.getTransferId());
+                if (transfer == null) {
+                    log.debug("Received ack for finished or unknown transfer {}", meta.getTransferId());
+                    return;
+                }
+                transfer.onAck(meta.getNextChunk());
+                break;
+            }
+            default: {
+                log.warn("Unexpected file transfer action {} (blob #{})", action, aMessageID);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stop all transfers. Partially received files are kept, so they can be resumed later.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        outgoing.values().forEach(Outgoing::close);
+        outgoing.clear();
+        incoming.values().forEach(Incoming::close);
+        incoming.clear();
+    }
+
+    /**
+     * Build the key of an incoming transfer.
+     * @param aSender The user sending the file
+     * @param aTransferId The transfer ID
+     * @return The key
+     */
+    private static String incomingKey(final String aSender, final String aTransferId) {
+        return aSender + "/" + aTransferId;
+    }
+
+    /**
+     * Compute the checksum of a chunk's encrypted bytes.
+     * @param content The encrypted bytes
+     * @return The checksum
+     */
+    private static int checksum(final ByteString content) {
+        final CRC32C crc = new CRC32C();
+        for (ByteBuffer part : content.asReadOnlyByteBufferList()) {
+            crc.update(part);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Send a transfer message to another user.
+     * @param action The transfer action
+     * @param aTarget The user to send it to
+     * @param meta The transfer details
+     * @param fileName The file name, or null if not needed
+     * @param content The (encrypted) content, or empty if none
+     * @param compression How the content was compressed before encryption
+     */
+    private void sendTransferMessage(final DeviceProtocol.Action action, final String aTarget,
+                                     final DeviceProtocol.FileTransfer meta, final String fileName, final ByteString content,
+                                     final DeviceProtocol.Compression compression) {
+        final DeviceProtocol.ChatMsg.Builder message = DeviceProtocol.ChatMsg.newBuilder()
+                .setUsername(localChatUsername)
+                .setTarget(aTarget)
+                .setContent(content)
+                .setTransfer(meta);
+        if (compression != DeviceProtocol.Compression.NONE) {
+            message.setCompression(compression);
+        }
+        if (fileName != null) {
+            message.setFileName(fileName);
+        }
+        final DeviceProtocol.Device device = DeviceProtocol.Device.newBuilder()
+                .setActionCode(action)
+                .setMessage(message)
+                .build();
+        chatEndpoint.sendMessage(ByteBuffer.wrap(device.toByteArray()));
+    }
+
+    /**
+     * Tell a sender which chunk we expect next.
+     * @param aSender The user sending the file
+     * @param aTransferId The transfer ID
+     * @param nextChunk The next chunk expected, or <code>UNKNOWN_TRANSFER</code>
+     */
+    private void sendAck(final String aSender, final String aTransferId, final int nextChunk) {
+        sendTransferMessage(DeviceProtocol.Action.FILE_ACK, aSender,
+                            DeviceProtocol.FileTransfer.newBuilder().setTransferId(aTransferId).setNextChunk(nextChunk).build(),
+                            null, ByteString.EMPTY, DeviceProtocol.Compression.NONE);
+    }
+
+    /**
+     * Go back to the last acknowledged chunk on transfers that stopped making progress.
+     */
+    private void checkTimeouts() {
+        final long now = System.nanoTime();
+        for (Outgoing transfer : outgoing.values()) {
+            try {
+                transfer.checkTimeout(now);
+            } catch (final RuntimeException e) {
+                log.error("Error checking transfer {} for timeouts: {}", transfer.transferId, e);
+            }
+        }
+    }
+
+    /**
+     * A file being sent.
+     */
+    private class Outgoing {
+        /**
+         * The transfer ID.
+         */
+        final String transferId;
+        /**
+         * The user receiving the file.
+         */
+        final String recipientName;
+        /**
+         * The name of the file.
+         */
+        final String fileName;
+        /**
+         * The file being read, through a mapped window.
+         */
+        final FileChunkSource source;
+        /**
+         * The size of the file, in bytes.
+         */
+        final long totalSize;
+        /**
+         * The number of chunks in the file.
+         */
+        final int chunkCount;
+        /**
+         * The internal ID of this send, for logging.
+         */
+        final long messageID;
+        /**
+         * Whether the receiver answered the offer.
+         */
+        boolean accepted;
+        /**
+         * The next chunk the receiver expects, ie every chunk before it is acknowledged.
+         */
+        int acked;
+        /**
+         * The next chunk to encrypt and send.
+         */
+        int nextToSend;
+        /**
+         * The acknowledged chunk we last went back to, so repeated acks only rewind once.
+         */
+        int rewoundAt = -1;
+        /**
+         * Number of timeouts in a row.
+         */
+        int retries;
+        /**
+         * When the transfer last made progress, as per <code>System.nanoTime</code>.
+         */
+        long lastProgress = System.nanoTime();
+        /**
+         * Whether a task is currently encrypting and sending chunks.
+         */
+        boolean pumping;
+        /**
+         * Whether the transfer is over, either done or failed.
+         */
+        boolean closed;
+
+        Outgoing(final String aTransferId, final String aRecipientName, final String aFileName, final Path path,
+                 final long aMessageID) throws IOException {
+            transferId = aTransferId;
+            recipientName = aRecipientName;
+            fileName = aFileName;
+            source = new FileChunkSource(path, CHUNK_SIZE);
+            totalSize = source.size();
+            chunkCount = source.chunkCount();
+            messageID = aMessageID;
+        }
+
+        /**
+         * Offer the file to the receiver.
+         */
+        void offer() {
+            executorService.submit(() -> sendTransferMessage(DeviceProtocol.Action.FILE_OFFER, recipientName,
+                    DeviceProtocol.FileTransfer.newBuilder()
+                            .setTransferId(transferId)
+                            .setChunkCount(chunkCount)
+                            .setTotalSize(totalSize)
+                            .build(),
+                    fileName, ByteString.EMPTY, DeviceProtocol.Compression.NONE));
+        }
+
+        /**
+         * Handle the receiver telling us the next chunk it expects.
+         * @param nextChunk The next chunk expected, or <code>UNKNOWN_TRANSFER</code>
+         */
+        void onAck(final int nextChunk) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (nextChunk == UNKNOWN_TRANSFER) {
+                    log.warn("Receiver lost transfer {}, offering it again", transferId);
+                    accepted = false;
+                    lastProgress = System.nanoTime();
+                    offer();
+                    return;
+                }
+                if (!accepted) {
+                    // answer to the offer: start (or resume) from wherever the receiver is
+                    accepted = true;
+                    acked = nextChunk;
+                    nextToSend = nextChunk;
+                    if (nextChunk > 0) {
+                        log.info("Resuming transfer {} of {} from chunk {}/{}", transferId, fileName, nextChunk, chunkCount);
+                    }
+                } else if (nextChunk > acked) {
+                    acked = nextChunk;
+                    retries = 0;
+                    lastProgress = System.nanoTime();
+                } else if (nextChunk == acked && nextToSend > acked && rewoundAt != acked) {
+                    // a chunk was lost or rejected, go back to it
+                    log.info("Transfer {} going back to chunk {}", transferId, acked);
+                    rewoundAt = acked;
+                    nextToSend = acked;
+                }
+                if (acked >= chunkCount) {
+                    complete();
+                    return;
+                }
+            }
+            pump();
+        }
+
+        /**
+         * Go back to the last acknowledged chunk if the transfer stopped making progress.
+         * @param now The current time, as per <code>System.nanoTime</code>
+         */
+        void checkTimeout(final long now) {
+            synchronized (this) {
+                if (closed || now - lastProgress < TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MS)) {
+                    return;
+                }
+                if (++retries > MAX_RETRIES) {
+                    log.error("Giving up transfer {} of {} to {} at chunk {}/{}; send the file again to resume",
+                              transferId, fileName, recipientName, acked, chunkCount);
+                    messageCache.saveContactMessage(recipientName, "!! Transfer of '" + fileName + "' stalled, send it again to resume", true);
+                    close();
+                    return;
+                }
+                lastProgress = now;
+                rewoundAt = acked;
+                nextToSend = acked;
+                if (!accepted) {
+                    offer();
+                    return;
+                }
+                log.info("Transfer {} timed out, going back to chunk {}", transferId, acked);
+            }
+            pump();
+        }
+
+        /**
+         * Make sure a task is encrypting and sending chunks while the window has room.
+         */
+        void pump() {
+            synchronized (this) {
+                if (pumping || closed || !hasRoom()) {
+                    return;
+                }
+                pumping = true;
+            }
+            executorService.submit(this::sendChunks);
+        }
+
+        /**
+         * Check whether another chunk can be sent. Caller holds the lock.
+         * @return whether the window has room and chunks are left
+         */
+        private boolean hasRoom() {
+            return accepted && nextToSend < chunkCount && nextToSend - acked < WINDOW;
+        }
+
+        /**
+         * Encrypt and send chunks until the window is full.
+         * Encryption of the next chunk overlaps with the network send and remote decryption of the previous ones.
+         */
+        private void sendChunks() {
+            try {
+                while (true) {
+                    final int index;
+                    synchronized (this) {
+                        if (closed || !hasRoom()) {
+                            pumping = false;
+                            return;
+                        }
+                        index = nextToSend++;
+                    }
+                    final byte[] plain = source.readChunk(index);
+                    // each chunk is compressed on its own, so any chunk can be resent or restored alone
+                    final byte[] compressed = PayloadCompression.compress(plain);
+                    final byte[] encrypted = helixModule.encrypt(compressed != null ? compressed : plain, recipientName, messageID);
+                    if (encrypted == null) {
+                        throw new IOException("Helix returned no data for chunk " + index);
+                    }
+                    final ByteString content = ByteString.copyFrom(encrypted);
+                    sendTransferMessage(DeviceProtocol.Action.FILE_CHUNK, recipientName,
+                            DeviceProtocol.FileTransfer.newBuilder()
+                                    .setTransferId(transferId)
+                                    .setChunkIndex(index)
+                                    .setChecksum(checksum(content))
+                                    .build(),
+                            null, content,
+                            compressed != null ? DeviceProtocol.Compression.DEFLATE_BASE64 : DeviceProtocol.Compression.NONE);
+                }
+            } catch (final IOException | HelixException | RuntimeException e) {
+                log.error("Transfer {} of {} to {} failed: {}", transferId, fileName, recipientName, e.getMessage());
+                messageCache.saveContactMessage(recipientName, "!! Transfer of '" + fileName + "' failed, send it again to resume", true);
+                synchronized (this) {
+                    pumping = false;
+                }
+                close();
+            }
+        }
+
+        /**
+         * Finish a transfer whose chunks were all acknowledged.
+         */
+        private void complete() {
+            log.info("Transfer {} of {} to {} complete (message #{})", transferId, fileName, recipientName, messageID);
+            close();
+        }
+
+        /**
+         * Release the file and forget the transfer.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            outgoing.remove(transferId, this);
+            try {
+                source.close();
+            } catch (final IOException e) {
+                log.warn("Could not close {}: {}", fileName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A file being received.
+     * Chunks are decrypted in parallel on the shared executor, then written one at a time,
+     * in arrival order, on the I/O executor.
+     */
+    private class Incoming {
+        /**
+         * The user sending the file.
+         */
+        final String sender;
+        /**
+         * The transfer ID.
+         */
+        final String transferId;
+        /**
+         * The name of the file, as given by the sender.
+         */
+        final String fileName;
+        /**
+         * The number of chunks in the file.
+         */
+        final int chunkCount;
+        /**
+         * The file the decrypted chunks are appended to.
+         */
+        final Path partFile;
+        /**
+         * Records how far the part file got, so the transfer can resume.
+         */
+        final Path progressFile;
+        /**
+         * Completes once the previous task for this transfer is done.
+         */
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        /**
+         * The open part file, or null until the offer is handled.
+         */
+        FileChannel channel;
+        /**
+         * The next chunk expected.
+         */
+        int nextChunk;
+        /**
+         * The number of decrypted bytes written so far.
+         */
+        long written;
+
+        Incoming(final String aSender, final DeviceProtocol.FileTransfer meta, final String aFileName) {
+            sender = aSender;
+            transferId = meta.getTransferId();
+            fileName = aFileName;
+            chunkCount = meta.getChunkCount();
+            final Path folder = Utility.resolveContactFolder(sender);
+            // the transfer ID comes from the sender, so only a hash of it goes into the path
+            final String fileKey = UUID.nameUUIDFromBytes(transferId.getBytes(StandardCharsets.UTF_8)).toString();
+            partFile = folder.resolve(fileName + "-" + fileKey + ".part");
+            progressFile = folder.resolve(fileName + "-" + fileKey + ".progress");
+        }
+
+        /**
+         * Run a disk task once its input is ready and every task already queued for this transfer is done.
+         * @param input The task's input
+         * @param task The task to run
+         * @param <T> The type of the task's input
+         */
+        synchronized <T> void enqueue(final CompletableFuture<T> input, final Consumer<T> task) {
+            tail = tail.thenCombineAsync(input, (v, data) -> {
+                task.accept(data);
+                return (Void) null;
+            }, ioExecutorService).exceptionally(e -> {
+                log.error("Error receiving transfer {} from {}: {}", transferId, sender, e);
+                return null;
+            });
+        }
+
+        /**
+         * Handle an offer: open the part file, pick up any earlier progress, and tell the sender where to start.
+         */
+        void onOffer() {
+            try {
+                if (channel == null) {
+                    if (Files.exists(progressFile) && Files.exists(partFile)) {
+                        final String[] progress = Files.readString(progressFile).trim().split(" ");
+                        nextChunk = Integer.parseInt(progress[0]);
+                        written = Long.parseLong(progress[1]);
+                    }
+                    channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    // drop anything written after the last recorded chunk
+                    channel.truncate(written);
+                    channel.position(written);
+                    log.info("Receiving {} from {} as transfer {}, starting at chunk {}/{}", fileName, sender, transferId, nextChunk, chunkCount);
+                }
+                sendAck(sender, transferId, nextChunk);
+            } catch (final IOException | RuntimeException e) {
+                log.error("Could not prepare {} for transfer {} from {}: {}", partFile, transferId, sender, e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Check and decrypt a chunk. Touches no transfer state, so chunks can be decrypted in parallel.
+         * @param meta The chunk's transfer details
+         * @param content The chunk's encrypted bytes
+         * @param compression How the chunk was compressed before encryption
+         * @param aMessageID The message's internal ID for logging
+         * @return The decrypted chunk, or null if it is corrupt
+         */
+        byte[] decryptChunk(final DeviceProtocol.FileTransfer meta, final ByteString content,
+                            final DeviceProtocol.Compression compression, final long aMessageID) {
+            if (checksum(content) != meta.getChecksum()) {
+                log.warn("Checksum mismatch on chunk {} of transfer {} (blob #{})", meta.getChunkIndex(), transferId, aMessageID);
+                return null;
+            }
+            final byte[] plain = helixModule.decrypt(content.toByteArray(), aMessageID);
+            if (plain == null) {
+                log.warn("Could not decrypt chunk {} of transfer {} (blob #{})", meta.getChunkIndex(), transferId, aMessageID);
+                return null;
+            }
+            if (compression != DeviceProtocol.Compression.DEFLATE_BASE64) {
+                return plain;
+            }
+            try {
+                return PayloadCompression.decompress(plain);
+            } catch (final DataFormatException e) {
+                log.warn("Could not decompress chunk {} of transfer {} (blob #{}): {}", meta.getChunkIndex(), transferId, aMessageID, e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Handle a decrypted chunk: append it if it is the one expected, or ask the sender to go back.
+         * @param meta The chunk's transfer details
+         * @param plain The decrypted chunk, or null if it is corrupt
+         */
+        void onChunk(final DeviceProtocol.FileTransfer meta, final byte[] plain) {
+            if (channel == null) {
+                sendAck(sender, transferId, UNKNOWN_TRANSFER);
+                return;
+            }
+            if (meta.getChunkIndex() != nextChunk) {
+                log.debug("Transfer {} got chunk {} while expecting {}", transferId, meta.getChunkIndex(), nextChunk);
+                sendAck(sender, transferId, nextChunk);
+                return;
+            }
+            if (plain == null) {
+                sendAck(sender, transferId, nextChunk);
+                return;
+            }
+            try {
+                final ByteBuffer data = ByteBuffer.wrap(plain);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                // the progress record must never get ahead of what is on disk
+                channel.force(false);
+                written += plain.length;
+                nextChunk++;
+                Files.writeString(progressFile, nextChunk + " " + written);
+            } catch (final IOException e) {
+                log.error("Could not write chunk {} of transfer {} to {}: {}", nextChunk, transferId, partFile, e.getMessage());
+                close();
+                return;
+            }
+            sendAck(sender, transferId, nextChunk);
+            if (nextChunk >= chunkCount) {
+                complete();
+            }
+        }
+
+        /**
+         * Move the finished file in place and let the user know.
+         */
+        private void complete() {
+            close();
+            final String decryptedFileName = fileName + "-" + Utility.getTimeStamp(true) + "-decrypted.helix";
+            try {
+                Files.move(partFile, partFile.resolveSibling(decryptedFileName), StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(progressFile);
+            } catch (final IOException e) {
+                log.error("Could not move {} to {}: {}", partFile, decryptedFileName, e.getMessage());
+                return;
+            }
+            log.info("Transfer {} of {} from {} complete ({} bytes)", transferId, fileName, sender, written);
+            messageCache.saveContactMessage(sender, Utility.formatPrivateFileNotice(fileName, sender, true), true);
+        }
+
+        /**
+         * Release the part file and forget the transfer; progress on disk is kept.
+         */
+        void close() {
+            incoming.remove(incomingKey(sender, transferId), this);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException e) {
+                    log.warn("Could not close {}: {}", partFile, e.getMessage());
+                }
+            }
+        }
+    }
+}
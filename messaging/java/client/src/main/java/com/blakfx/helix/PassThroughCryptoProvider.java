@@ -0,0 +1,46 @@
+package com.blakfx.helix;
+
+import java.util.Arrays;
+
+/**
+ * A crypto provider that leaves content as is, for running without the native Helix library
+ * (e.g. load generation, where it is the chat server being measured and not the encryption).
+ * It never talks to a key server, so every operation succeeds at once.
+ * Content is still copied, as real encryption would produce a new buffer.
+ */
+public class PassThroughCryptoProvider implements HelixCryptoProvider {
+
+    @Override
+    public boolean initialize() {
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public boolean connectToKeyServer() {
+        return true;
+    }
+
+    @Override
+    public boolean disconnectFromKeyServer() {
+        return true;
+    }
+
+    @Override
+    public boolean loginAsUser(final String aHelixUsername, final String aHelixAccountPassword) {
+        return true;
+    }
+
+    @Override
+    public byte[] encrypt(final byte[] plainData, final String aRecipientAccountID, final long messageID) {
+        return Arrays.copyOf(plainData, plainData.length);
+    }
+
+    @Override
+    public byte[] decrypt(final byte[] encryptedData, final long messageID) {
+        return Arrays.copyOf(encryptedData, encryptedData.length);
+    }
+}
@@ -0,0 +1,299 @@
+package com.blakfx.load;
+
+import com.blakfx.helix.HelixCryptoProvider;
+import com.blakfx.helix.PassThroughCryptoProvider;
+import net.sourceforge.argparse4j.*;
+import net.sourceforge.argparse4j.inf.*;
+import net.sourceforge.argparse4j.impl.*;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Headless load generator for the chat server.
+ * Opens many identified sessions from one process, drives a mix of global chat, private messages,
+ * file-sized private payloads and device additions at fixed target rates (open loop: sends don't wait
+ * for replies), and reports delivery, errors and end-to-end latency percentiles for each.
+ * Private payloads go through a pass-through crypto provider, so no native Helix library is needed.
+ */
+public class LoadGenerator {
+
+    /**
+     * The stats of every kind of traffic, shared by all sessions.
+     */
+    public static class Stats {
+        /**
+         * Global chat; every session receives each message, the sender included.
+         */
+        public final LoadStats chat;
+        /**
+         * Private text messages.
+         */
+        public final LoadStats direct = new LoadStats("private", 1);
+        /**
+         * Files sent as a single private message.
+         */
+        public final LoadStats file = new LoadStats("file", 1);
+        /**
+         * Device additions, timed until they come back to the session that made them.
+         */
+        public final LoadStats device = new LoadStats("device", 1);
+        /**
+         * The number of requests the server turned down, e.g. for going over its rate limits.
+         */
+        public final LongAdder rejected = new LongAdder();
+
+        /**
+         * Constructs empty stats.
+         * @param aSessions The number of sessions, i.e. of receipts per global chat message
+         */
+        Stats(final int aSessions) {
+            this.chat = new LoadStats("chat", aSessions);
+        }
+    }
+
+    /**
+     * How often the rate scheduler ticks, in ms.
+     */
+    private static final long TICK_MILLIS = 10;
+
+    /**
+     * This class' logger instance
+     */
+    private static final Logger log = LogManager.getLogger(LoadGenerator.class.getName());
+
+    /**
+     * Main function: parse arguments, connect the sessions, run the load, and report.
+     * @param args Command line arguments to be parsed via argparse4j
+     * @throws URISyntaxException URI to access the chat server was malformed
+     * @throws InterruptedException Interrupted while running
+     */
+    public static void main(String[] args) throws URISyntaxException, InterruptedException {
+        ArgumentParser parser = ArgumentParsers.newFor("loadgen").build()
+                .defaultHelp(true)
+                .description("Load generator for the chat server");
+        parser.addArgument("-s", "--server").required(true).nargs("?").type(String.class)
+                .help("IP address of chat server");
+        parser.addArgument("-p", "--port").required(false).nargs("?").type(Integer.class).setDefault(8080)
+                .choices(Arguments.range(1, 65535))
+                .help("Port of chat server");
+        parser.addArgument("-n", "--sessions").nargs("?").type(Integer.class).setDefault(1000)
+                .help("Number of identified sessions to open");
+        parser.addArgument("--prefix").nargs("?").type(String.class).setDefault("load")
+                .help("Prefix of the session usernames, followed by the session number");
+        parser.addArgument("-d", "--duration").nargs("?").type(Integer.class).setDefault(60)
+                .help("How long to run the load, in seconds");
+        parser.addArgument("--chat-rate").nargs("?").type(Double.class).setDefault(10.0)
+                .help("Global chat messages per second, across all sessions");
+        parser.addArgument("--private-rate").nargs("?").type(Double.class).setDefault(500.0)
+                .help("Private messages per second, across all sessions");
+        parser.addArgument("--file-rate").nargs("?").type(Double.class).setDefault(5.0)
+                .help("File-sized private messages per second, across all sessions");
+        parser.addArgument("--device-rate").nargs("?").type(Double.class).setDefault(5.0)
+                .help("Device additions per second, across all sessions");
+        parser.addArgument("--chat-size").nargs("?").type(Integer.class).setDefault(64)
+                .help("Padding of each global chat message, in characters");
+        parser.addArgument("--private-size").nargs("?").type(Integer.class).setDefault(256)
+                .help("Size of each private message, in bytes");
+        parser.addArgument("--file-size").nargs("?").type(Integer.class).setDefault(256 * 1024)
+                .help("Size of each file, in bytes");
+        parser.addArgument("--threads").nargs("?").type(Integer.class).setDefault(64)
+                .help("Threads sending messages");
+        parser.addArgument("--connect-threads").nargs("?").type(Integer.class).setDefault(16)
+                .help("Threads opening sessions");
+        parser.addArgument("--report").nargs("?").type(Integer.class).setDefault(5)
+                .help("Seconds between interim reports");
+        parser.addArgument("--binary-chat").action(Arguments.storeTrue())
+                .help("Ask for global chat via PB rather than JSON");
+        parser.addArgument("--verbose").action(Arguments.storeTrue())
+                .help("Keep the client's own logging, which is very chatty under load");
+
+        Namespace ns = null;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+        }
+        if (!ns.getBoolean("verbose")) {
+            Configurator.setRootLevel(Level.WARN);
+        }
+
+        final URI endpointURI = new URI(String.format("ws://%s:%d/server/actions", ns.getString("server"), ns.getInt("port")));
+        final int sessionCount = ns.getInt("sessions");
+        final int fileSize = ns.getInt("file_size");
+        final int privateSize = ns.getInt("private_size");
+        final Stats stats = new Stats(sessionCount);
+        final HelixCryptoProvider crypto = new PassThroughCryptoProvider();
+        final byte[] filler = new byte[Math.max(fileSize, privateSize)];
+        // random content, like the encrypted payloads it stands for
+        new Random(42).nextBytes(filler);
+
+        // open and identify the sessions
+        System.out.printf("Opening %d sessions to %s%n", sessionCount, endpointURI);
+        final List<LoadSession> sessions = connectAll(endpointURI, sessionCount, ns.getString("prefix"),
+                                                      ns.getInt("connect_threads"), ns.getBoolean("binary_chat"),
+                                                      stats, crypto, filler);
+        System.out.printf("%d of %d sessions connected and identified%n", sessions.size(), sessionCount);
+        if (sessions.isEmpty()) {
+            System.exit(2);
+        }
+
+        // sends run on a bounded pool; when it can't keep up, the generator is the bottleneck, and says so
+        final LongAdder skipped = new LongAdder();
+        final ThreadPoolExecutor senders = new ThreadPoolExecutor(ns.getInt("threads"), ns.getInt("threads"),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(10_000),
+                (task, executor) -> skipped.increment());
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        final Random random = new Random();
+        final int chatSize = ns.getInt("chat_size");
+
+        schedule(scheduler, ns.getDouble("chat_rate"), () -> send(senders, stats.chat, pick(sessions, random),
+                                                                   session -> session.sendGlobalChat(chatSize)));
+        schedule(scheduler, ns.getDouble("private_rate"), () -> {
+            final String target = pick(sessions, random).getUsername();
+            send(senders, stats.direct, pick(sessions, random), session -> session.sendPrivate(target, privateSize, false));
+        });
+        schedule(scheduler, ns.getDouble("file_rate"), () -> {
+            final String target = pick(sessions, random).getUsername();
+            send(senders, stats.file, pick(sessions, random), session -> session.sendPrivate(target, fileSize, true));
+        });
+        schedule(scheduler, ns.getDouble("device_rate"), () -> send(senders, stats.device, pick(sessions, random),
+                                                                     LoadSession::sendDeviceAdd));
+
+        // report as it goes, then once more after the stragglers came in
+        final long reportMillis = TimeUnit.SECONDS.toMillis(ns.getInt("report"));
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ns.getInt("duration"));
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(reportMillis, Math.max(1, end - System.currentTimeMillis())));
+            report(stats, senders, skipped, "interim");
+        }
+        scheduler.shutdownNow();
+        senders.shutdown();
+        senders.awaitTermination(30, TimeUnit.SECONDS);
+        Thread.sleep(2000);
+        report(stats, senders, skipped, "final");
+
+        for (LoadSession session : sessions) {
+            session.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Open and identify sessions in parallel.
+     * @param anEndpointURI The URI of the chat server
+     * @param aCount The number of sessions to open
+     * @param aPrefix The prefix of the usernames
+     * @param aThreads The number of sessions opened at once
+     * @param binaryChat Whether the sessions ask for global chat via PB
+     * @param aStats The stats the sessions record into
+     * @param aCrypto Encrypts and decrypts private payloads
+     * @param aFiller The shared filler for private payloads
+     * @return the sessions that are connected and identified
+     * @throws InterruptedException Interrupted while connecting
+     */
+    private static List<LoadSession> connectAll(final URI anEndpointURI, final int aCount, final String aPrefix,
+                                                final int aThreads, final boolean binaryChat, final Stats aStats,
+                                                final HelixCryptoProvider aCrypto, final byte[] aFiller)
+            throws InterruptedException {
+        final List<LoadSession> connected = new CopyOnWriteArrayList<>();
+        final AtomicInteger failed = new AtomicInteger();
+        final ExecutorService connectors = Executors.newFixedThreadPool(aThreads);
+        for (int i = 0; i < aCount; i++) {
+            final LoadSession session = new LoadSession(aPrefix + "-" + i, binaryChat, aStats, aCrypto, aFiller);
+            connectors.execute(() -> {
+                if (session.connect(anEndpointURI, 10_000)) {
+                    connected.add(session);
+                } else {
+                    failed.incrementAndGet();
+                    session.close();
+                }
+            });
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(1, TimeUnit.HOURS);
+        if (failed.get() > 0) {
+            log.warn("{} sessions failed to connect or identify", failed.get());
+        }
+        return new ArrayList<>(connected);
+    }
+
+    /**
+     * Run a task at a target rate, in whole runs per scheduler tick, carrying fractions over to the next tick.
+     * @param aScheduler The scheduler to tick on
+     * @param aRate The target rate, per second; nothing is scheduled when 0
+     * @param aTask The task to run
+     */
+    private static void schedule(final ScheduledExecutorService aScheduler, final double aRate, final Runnable aTask) {
+        if (aRate <= 0) {
+            return;
+        }
+        final double perTick = aRate * TICK_MILLIS / 1000.0;
+        final double[] credit = { 0 };
+        aScheduler.scheduleAtFixedRate(() -> {
+            credit[0] += perTick;
+            while (credit[0] >= 1) {
+                credit[0] -= 1;
+                aTask.run();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand a send to the sending pool, counting it as an error if it fails.
+     * @param aSenders The sending pool
+     * @param aStats The stats of this kind of traffic
+     * @param aSession The session to send from
+     * @param aSend The send
+     */
+    private static void send(final Executor aSenders, final LoadStats aStats, final LoadSession aSession,
+                             final Consumer<LoadSession> aSend) {
+        aSenders.execute(() -> {
+            try {
+                aSend.accept(aSession);
+            } catch (final RuntimeException e) {
+                aStats.error();
+            }
+        });
+    }
+
+    /**
+     * Pick a session at random.
+     * @param aSessions The sessions
+     * @param aRandom The random source
+     * @return the session
+     */
+    private static LoadSession pick(final List<LoadSession> aSessions, final Random aRandom) {
+        return aSessions.get(aRandom.nextInt(aSessions.size()));
+    }
+
+    /**
+     * Print a report of every kind of traffic. Counts and latencies are totals since the start.
+     * @param aStats The stats to report
+     * @param aSenders The sending pool
+     * @param aSkipped The number of sends skipped because the pool was full
+     * @param aLabel What kind of report this is
+     */
+    private static void report(final Stats aStats, final ThreadPoolExecutor aSenders, final LongAdder aSkipped,
+                               final String aLabel) {
+        System.out.printf("--- %s report: %d rejected by the server, %d sends queued, %d skipped (generator overloaded)%n",
+                          aLabel, aStats.rejected.sum(), aSenders.getQueue().size(), aSkipped.sum());
+        System.out.println(aStats.chat.report());
+        System.out.println(aStats.direct.report());
+        System.out.println(aStats.file.report());
+        System.out.println(aStats.device.report());
+    }
+}
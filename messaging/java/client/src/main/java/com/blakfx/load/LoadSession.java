@@ -0,0 +1,322 @@
+package com.blakfx.load;
+
+import com.blakfx.helix.HelixCryptoProvider;
+import com.blakfx.helix.HelixModule;
+import com.blakfx.protocols.DeviceProtocol;
+import com.blakfx.websocket.JsonCodec;
+import com.blakfx.websocket.WebsocketClientEndpoint;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.websocket.Session;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One simulated user of the load generator: an identified connection to the chat server
+ * that sends what it is told to, and times everything it receives back.
+ * Every message carries the <code>System.nanoTime()</code> it was sent at, which is comparable
+ * across sessions as they all live in the same process:
+ * in the content of a global chat message, in the first bytes of a private payload, and in the name of a device.
+ */
+public class LoadSession implements WebsocketClientEndpoint.MessageHandler {
+
+    /**
+     * Marks the timestamp in global chat content and device names.
+     */
+    static final String MARKER = "lg|";
+    /**
+     * Follows the timestamp of a private text payload.
+     */
+    private static final byte PRIVATE = 0;
+    /**
+     * Follows the timestamp of a file payload.
+     */
+    private static final byte FILE = 1;
+
+    /**
+     * This class' logger instance
+     */
+    private static final Logger log = LogManager.getLogger(LoadSession.class.getName());
+
+    /**
+     * The user this session is identified as.
+     */
+    private final String username;
+    /**
+     * Whether to ask for global chat via PB.
+     */
+    private final boolean binaryChat;
+    /**
+     * The stats to record into.
+     */
+    private final LoadGenerator.Stats stats;
+    /**
+     * Encrypts and decrypts private payloads.
+     */
+    private final HelixCryptoProvider crypto;
+    /**
+     * The shared filler for private payloads; never modified.
+     */
+    private final byte[] filler;
+    /**
+     * Numbers the messages this session encrypts.
+     */
+    private final AtomicLong messageIDs = new AtomicLong();
+    /**
+     * Released once the server answers the identification request.
+     */
+    private final CountDownLatch identified = new CountDownLatch(1);
+    /**
+     * The connection to the chat server.
+     */
+    private WebsocketClientEndpoint endpoint;
+    /**
+     * Whether the server accepted the username.
+     */
+    private volatile boolean accepted;
+    /**
+     * Whether the server agreed to global chat via PB.
+     */
+    private volatile boolean binaryGlobalChat;
+
+    /**
+     * Constructs a session, not yet connected.
+     * @param aUsername The user to identify as
+     * @param binaryChat Whether to ask for global chat via PB
+     * @param aStats The stats to record into
+     * @param aCrypto Encrypts and decrypts private payloads
+     * @param aFiller The shared filler for private payloads, at least as large as the largest payload
+     */
+    public LoadSession(final String aUsername, final boolean binaryChat, final LoadGenerator.Stats aStats,
+                       final HelixCryptoProvider aCrypto, final byte[] aFiller) {
+        this.username = aUsername;
+        this.binaryChat = binaryChat;
+        this.stats = aStats;
+        this.crypto = aCrypto;
+        this.filler = aFiller;
+    }
+
+    /**
+     * Get the user this session is identified as.
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Connect to the chat server and identify.
+     * @param anEndpointURI The URI of the chat server
+     * @param aTimeoutMillis How long to wait for the identification to be answered
+     * @return whether the session is connected and identified
+     */
+    public boolean connect(final URI anEndpointURI, final long aTimeoutMillis) {
+        try {
+            endpoint = new WebsocketClientEndpoint(anEndpointURI);
+            endpoint.addMessageHandler(this);
+            endpoint.registerIdentity(username, binaryChat);
+            return identified.await(aTimeoutMillis, TimeUnit.MILLISECONDS) && accepted;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final RuntimeException e) {
+            log.warn("Could not connect {}: {}", username, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Close the connection.
+     */
+    public void close() {
+        if (endpoint != null) {
+            endpoint.close();
+        }
+    }
+
+    /**
+     * Send a global chat message, via PB if the server agreed to it and JSON otherwise.
+     * @param aPaddingLength How many characters to pad the content with
+     */
+    public void sendGlobalChat(final int aPaddingLength) {
+        final String content = MARKER + System.nanoTime() + "|" + "x".repeat(aPaddingLength);
+        if (binaryGlobalChat) {
+            final DeviceProtocol.Device device = DeviceProtocol.Device.newBuilder()
+                    .setActionCode(DeviceProtocol.Action.CHAT)
+                    .setMessage(DeviceProtocol.ChatMsg.newBuilder()
+                            .setUsername(username)
+                            .setContent(ByteString.copyFromUtf8(content)))
+                    .build();
+            stats.chat.sent();
+            endpoint.sendMessage(ByteBuffer.wrap(device.toByteArray()));
+            return;
+        }
+        final String message = JsonCodec.write()
+                .field("action", DeviceProtocol.Action.CHAT)
+                .beginObject("message")
+                .field("username", username)
+                .field("content", content)
+                .endObject()
+                .end();
+        stats.chat.sent();
+        endpoint.sendMessage(message);
+    }
+
+    /**
+     * Send a private message, or a file sent as a single message, via PB.
+     * @param aTarget The user to send it to
+     * @param aSize The size of the payload before encryption, in bytes
+     * @param isFile Whether to send it as a file
+     */
+    public void sendPrivate(final String aTarget, final int aSize, final boolean isFile) {
+        final LoadStats target = isFile ? stats.file : stats.direct;
+        final ByteBuffer plain = ByteBuffer.allocate(Math.max(aSize, Long.BYTES + 1));
+        plain.putLong(System.nanoTime()).put(isFile ? FILE : PRIVATE);
+        plain.put(filler, 0, plain.remaining());
+        final byte[] encrypted;
+        try {
+            encrypted = crypto.encrypt(plain.array(), aTarget, messageIDs.incrementAndGet());
+        } catch (final HelixModule.HelixException e) {
+            target.error();
+            return;
+        }
+        final DeviceProtocol.ChatMsg chatMsg = DeviceProtocol.ChatMsg.newBuilder()
+                .setUsername(username)
+                .setTarget(aTarget)
+                .setContent(ByteString.copyFrom(encrypted))
+                .setFileName(isFile ? "load.bin" : "")
+                .setCompression(DeviceProtocol.Compression.NONE)
+                .build();
+        final DeviceProtocol.Device device = DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.CHAT)
+                .setMessage(chatMsg)
+                .build();
+        target.sent();
+        endpoint.sendMessage(ByteBuffer.wrap(device.toByteArray()));
+    }
+
+    /**
+     * Add a device, via PB. The device is removed again once its addition comes back.
+     */
+    public void sendDeviceAdd() {
+        final DeviceProtocol.Device device = DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.ADD)
+                .setName(MARKER + username + "|" + System.nanoTime())
+                .setType("Load")
+                .setDescription("Added by the load generator")
+                .build();
+        stats.device.sent();
+        endpoint.sendMessage(ByteBuffer.wrap(device.toByteArray()));
+    }
+
+    @Override
+    public void handleMessage(final String message, final Session session) {
+        try {
+            final JsonCodec.Message json = JsonCodec.read(message);
+            final DeviceProtocol.Action action = json.getAction();
+            final String error = (json.getError() == null) ? "" : json.getError();
+            if (action == DeviceProtocol.Action.IDENTIFY) {
+                accepted = error.isEmpty();
+                binaryGlobalChat = "pb".equals(json.getChat());
+                identified.countDown();
+            } else if (!error.isEmpty()) {
+                stats.rejected.increment();
+            } else if (action == DeviceProtocol.Action.CHAT) {
+                final String content = JsonCodec.require(json.getContent(), "content");
+                final long sentAt = parseTimestamp(content, content.indexOf(MARKER));
+                if (sentAt != 0) {
+                    stats.chat.received(sentAt);
+                }
+            }
+        } catch (final RuntimeException e) {
+            log.warn("Unexpected message for {}: {}", username, e.toString());
+        }
+    }
+
+    @Override
+    public void handleMessage(final ByteBuffer buffer, final Session session) {
+        try {
+            handle(DeviceProtocol.Device.parseFrom(buffer));
+        } catch (final InvalidProtocolBufferException e) {
+            log.warn("Malformed message for {}: {}", username, e.toString());
+        }
+    }
+
+    /**
+     * Handle a single PB message, either received on its own or as part of a batch.
+     * @param device The message received
+     */
+    private void handle(final DeviceProtocol.Device device) {
+        if (device.hasError() && !device.getError().isEmpty()) {
+            stats.rejected.increment();
+            return;
+        }
+        switch (device.getActionCode()) {
+            case BATCH: {
+                for (final DeviceProtocol.Device batched : device.getBatch().getDevicesList()) {
+                    handle(batched);
+                }
+                break;
+            }
+            case CHAT: {
+                if (!device.getMessage().hasTarget()) {
+                    // a global chat message via PB
+                    final String content = device.getMessage().getContent().toStringUtf8();
+                    final long sentAt = parseTimestamp(content, content.indexOf(MARKER));
+                    if (sentAt != 0) {
+                        stats.chat.received(sentAt);
+                    }
+                    break;
+                }
+                final byte[] plain = crypto.decrypt(device.getMessage().getContent().toByteArray(), 0);
+                if (plain != null && plain.length > Long.BYTES) {
+                    final ByteBuffer in = ByteBuffer.wrap(plain);
+                    final long sentAt = in.getLong();
+                    (in.get() == FILE ? stats.file : stats.direct).received(sentAt);
+                }
+                break;
+            }
+            case ADD: {
+                // only the adder times its device, and cleans it up
+                final String prefix = MARKER + username + "|";
+                if (device.getName().startsWith(prefix)) {
+                    stats.device.received(Long.parseLong(device.getName().substring(prefix.length())));
+                    endpoint.sendMessage(ByteBuffer.wrap(DeviceProtocol.Device.newBuilder()
+                            .setActionCode(DeviceProtocol.Action.REMOVE)
+                            .setId(device.getId())
+                            .build()
+                            .toByteArray()));
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Read the timestamp that follows a marker.
+     * @param aText The text holding the marker
+     * @param aMarkerIndex Where the marker starts, or -1 if there is none
+     * @return the timestamp, or 0 if there is none
+     */
+    private static long parseTimestamp(final String aText, final int aMarkerIndex) {
+        if (aMarkerIndex < 0) {
+            return 0;
+        }
+        final int start = aMarkerIndex + MARKER.length();
+        final int end = aText.indexOf('|', start);
+        try {
+            return Long.parseLong(end < 0 ? aText.substring(start) : aText.substring(start, end));
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+}
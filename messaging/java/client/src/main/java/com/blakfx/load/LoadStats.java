@@ -0,0 +1,160 @@
+package com.blakfx.load;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and an end-to-end latency histogram for one kind of load traffic.
+ * The histogram splits each power of two into 16 linear buckets, so percentiles are off by at most about 6%,
+ * and recording never allocates nor locks, as it runs on the websocket threads of every session.
+ */
+public class LoadStats {
+
+    /**
+     * Number of linear buckets per power of two, as a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    /**
+     * Number of linear buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Number of buckets, enough for any latency up to 2^40 ns (about 18 minutes).
+     */
+    private static final int BUCKETS = (40 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * The name of this kind of traffic, as reported.
+     */
+    private final String name;
+    /**
+     * How many receipts each message sent is expected to produce.
+     */
+    private final int fanout;
+    /**
+     * The number of messages sent.
+     */
+    private final LongAdder sent = new LongAdder();
+    /**
+     * The number of messages received, i.e. of latencies recorded.
+     */
+    private final LongAdder received = new LongAdder();
+    /**
+     * The number of messages that could not be sent, or were turned down by the server.
+     */
+    private final LongAdder errors = new LongAdder();
+    /**
+     * The number of latencies recorded in each bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    /**
+     * The highest latency recorded, in ns.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Constructs the stats of a kind of traffic.
+     * @param aName The name of the traffic, as reported
+     * @param aFanout How many receipts each message sent is expected to produce
+     */
+    public LoadStats(final String aName, final int aFanout) {
+        this.name = aName;
+        this.fanout = aFanout;
+    }
+
+    /**
+     * Count a message sent.
+     */
+    public void sent() {
+        sent.increment();
+    }
+
+    /**
+     * Count a message that could not be sent, or was turned down.
+     */
+    public void error() {
+        errors.increment();
+    }
+
+    /**
+     * Count a message received, with how long it took from send to receipt.
+     * @param aSentAt When the message was sent, as <code>System.nanoTime()</code>
+     */
+    public void received(final long aSentAt) {
+        final long latency = Math.max(0, System.nanoTime() - aSentAt);
+        received.increment();
+        buckets.incrementAndGet(bucketIndex(latency));
+        max.accumulate(latency);
+    }
+
+    /**
+     * Get the latency below which a given fraction of the receipts fall.
+     * @param aQuantile The fraction, from 0 to 1
+     * @return the latency, in ms, or 0 if nothing was received
+     */
+    public double getQuantileMillis(final double aQuantile) {
+        long total = 0;
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(aQuantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get()) / 1e6;
+            }
+        }
+        return max.get() / 1e6;
+    }
+
+    /**
+     * Format a report line: counts, delivery ratio, error ratio and latency percentiles.
+     * @return the report line
+     */
+    public String report() {
+        final long s = sent.sum();
+        final long r = received.sum();
+        final long e = errors.sum();
+        final double expected = (double) s * fanout;
+        return String.format("%-8s sent %9d  recv %10d (%6.2f%%)  err %7d (%5.2f%%)  p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms",
+                             name, s, r, expected == 0 ? 0 : 100.0 * r / expected, e, (s + e) == 0 ? 0 : 100.0 * e / (s + e),
+                             getQuantileMillis(0.5), getQuantileMillis(0.9), getQuantileMillis(0.99),
+                             getQuantileMillis(0.999), max.get() / 1e6);
+    }
+
+    /**
+     * Get the bucket a latency is recorded in.
+     * @param aValue The latency, in ns
+     * @return the bucket index
+     */
+    private static int bucketIndex(final long aValue) {
+        if (aValue < SUB_BUCKETS) {
+            return (int) aValue;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(aValue);
+        final int index = (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+                          + (int) ((aValue >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * Get the largest latency a bucket holds.
+     * @param anIndex The bucket index
+     * @return the upper bound, in ns
+     */
+    private static long bucketUpperBound(final int anIndex) {
+        if (anIndex < SUB_BUCKETS) {
+            return anIndex;
+        }
+        final int magnitude = anIndex / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return (1L << magnitude) + (anIndex % SUB_BUCKETS + 1) * width - 1;
+    }
+}
@@ -0,0 +1,114 @@
+package com.blakfx.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file in fixed-size chunks through a memory-mapped window that slides over the file.
+ * Only the window is mapped at any time, and it lives outside the Java heap, so the heap
+ * needed to read a file is one chunk no matter how large the file is.
+ * Chunks can be read in any order, which lets a sender go back to a chunk it must resend.
+ */
+public class FileChunkSource implements Closeable {
+
+    /**
+     * Max number of bytes mapped at once; rounded down to a whole number of chunks.
+     */
+    private static final long MAP_WINDOW = Long.getLong("com.blakfx.chat.transfer.mapWindow", 64L * 1024 * 1024);
+
+    /**
+     * The file being read.
+     */
+    private final FileChannel channel;
+    /**
+     * The size of the file when it was opened, in bytes.
+     */
+    private final long size;
+    /**
+     * The size of a chunk, in bytes.
+     */
+    private final int chunkSize;
+    /**
+     * The size of the mapped window, in bytes.
+     */
+    private final long windowSize;
+    /**
+     * The currently mapped part of the file, or null if none.
+     */
+    private MappedByteBuffer window;
+    /**
+     * The file offset the current window starts at.
+     */
+    private long windowStart;
+
+    /**
+     * Opens a file for reading in chunks.
+     * @param path The file to read
+     * @param aChunkSize The size of a chunk, in bytes
+     * @throws IOException The file could not be opened
+     */
+    public FileChunkSource(final Path path, final int aChunkSize) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        chunkSize = aChunkSize;
+        windowSize = Math.max(1, MAP_WINDOW / aChunkSize) * aChunkSize;
+    }
+
+    /**
+     * Get the size of the file.
+     * @return the size, in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get the number of chunks in the file. An empty file still has one (empty) chunk.
+     * @return the number of chunks
+     */
+    public int chunkCount() {
+        return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Read a chunk of the file, mapping the window that holds it if needed.
+     * @param index The chunk to read
+     * @return the chunk's bytes; only the last chunk may be shorter than the chunk size
+     * @throws IOException The file could not be read
+     */
+    public synchronized byte[] readChunk(final int index) throws IOException {
+        final long position = (long) index * chunkSize;
+        if (index < 0 || position > size) {
+            throw new IOException("Chunk " + index + " is past the end of the file");
+        }
+        final int length = (int) Math.min(chunkSize, size - position);
+        if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+            if (channel.size() < size) {
+                // touching a mapping past the end of the file would crash the VM
+                throw new IOException("File shrank while being read");
+            }
+            windowStart = position - (position % windowSize);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+        }
+        final byte[] chunk = new byte[length];
+        final ByteBuffer view = window.duplicate();
+        view.position((int) (position - windowStart));
+        view.get(chunk);
+        return chunk;
+    }
+
+    /**
+     * Close the file. The mapped window is released once it is garbage collected.
+     * @throws IOException The file could not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
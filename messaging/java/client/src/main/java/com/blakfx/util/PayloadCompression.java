@@ -0,0 +1,123 @@
+package com.blakfx.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses private payloads before they are encrypted, and restores them after decryption.
+ * Encrypted data doesn't compress, so this is the only point where it pays off; it also means less data to encrypt.
+ * Payloads that are small, or look already compressed (high byte entropy), are left as is.
+ * The compressed stream is base64-encoded: the Helix binding turns the plaintext into a <code>String</code>
+ * with the platform charset, which would mangle raw deflate output.
+ */
+public class PayloadCompression {
+
+	/**
+	 * Whether to compress payloads at all.
+	 */
+	private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("com.blakfx.chat.compression.payload", "true"));
+	/**
+	 * Payloads smaller than this many bytes are not worth compressing.
+	 */
+	private static final int MIN_SIZE = Integer.getInteger("com.blakfx.chat.compression.minSize", 1024);
+	/**
+	 * Payloads whose sampled entropy is above this many bits per byte are assumed to be already compressed.
+	 */
+	private static final double MAX_ENTROPY = Double.parseDouble(System.getProperty("com.blakfx.chat.compression.maxEntropy", "7.5"));
+	/**
+	 * Max number of bytes sampled to estimate the entropy.
+	 */
+	private static final int SAMPLE_SIZE = 4096;
+	/**
+	 * Max size of a restored payload, so a small malicious payload can't blow up in memory.
+	 */
+	private static final int MAX_INFLATED = Integer.getInteger("com.blakfx.chat.compression.maxInflated", 64 * 1024 * 1024);
+
+	/**
+	 * Compress a payload if it is worth it.
+	 * @param data The payload
+	 * @return the compressed, base64-encoded payload, or null if it was left as is
+	 */
+	public static byte[] compress(final byte[] data) {
+		if (!ENABLED || data.length < MIN_SIZE || entropy(data) > MAX_ENTROPY) {
+			return null;
+		}
+		// favour speed, this runs for every chunk of every file sent
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			// no point going further once the encoded output would be as large as the input
+			final byte[] buffer = new byte[data.length / 4 * 3];
+			int length = 0;
+			while (!deflater.finished() && length < buffer.length) {
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			if (!deflater.finished()) {
+				return null;
+			}
+			return Base64.getEncoder().encode(ByteBuffer.wrap(buffer, 0, length)).array();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Restore a compressed payload.
+	 * @param encoded The compressed, base64-encoded payload
+	 * @return the original payload
+	 * @throws DataFormatException The payload is corrupt, or restores to more than the allowed size
+	 */
+	public static byte[] decompress(final byte[] encoded) throws DataFormatException {
+		final byte[] data;
+		try {
+			data = Base64.getDecoder().decode(encoded);
+		} catch (final IllegalArgumentException e) {
+			throw new DataFormatException("Compressed payload is not valid base64");
+		}
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length * 3));
+			final byte[] buffer = new byte[64 * 1024];
+			while (!inflater.finished()) {
+				final int length = inflater.inflate(buffer);
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("Truncated compressed payload");
+				}
+				if (out.size() + length > MAX_INFLATED) {
+					throw new DataFormatException("Compressed payload restores to more than " + MAX_INFLATED + " bytes");
+				}
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Estimate the Shannon entropy of a payload from a sample of its bytes.
+	 * @param data The payload
+	 * @return the estimated entropy, in bits per byte (0 to 8)
+	 */
+	static double entropy(final byte[] data) {
+		final int length = Math.min(data.length, SAMPLE_SIZE);
+		final int[] counts = new int[256];
+		for (int i = 0; i < length; i++) {
+			counts[data[i] & 0xff]++;
+		}
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				final double p = (double) count / length;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+}
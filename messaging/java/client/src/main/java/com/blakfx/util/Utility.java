@@ -3,9 +3,13 @@ package com.blakfx.util;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -88,6 +92,18 @@ public class Utility {
 		return String.format("[%s](global)%s%s", tm, received ? " " : " You said: ", aMessage);
 	}
 
+	/**
+	 * Prepares a formatted room message notice.
+	 * @param aMessage the message being received/sent
+	 * @param aRoomName the room the message was sent to
+	 * @param received whether this was received or sent
+	 * @return the formatted notice
+	 */
+	public static String formatRoomMessageNotice(final String aMessage, final String aRoomName, boolean received) {
+		final String tm = Utility.getTimeStamp(false);
+		return String.format("[%s](room - %s)%s%s", tm, aRoomName, received ? " " : " You said: ", aMessage);
+	}
+
     /**
 	 * Writes bytes to a file.
 	 * @param aFileName The name of the file to write to
@@ -99,6 +115,23 @@ public class Utility {
         Files.write(fullpath, fileContents);
 	}
 
+	/**
+	 * Writes buffers to a file through a file channel, in order, without copying them into one array first.
+	 * @param path The file to write to, replaced if it exists
+	 * @param contents The buffers to write into the file
+	 * @throws IOException Invalid path to file
+	 */
+	public static void writeToFile(final Path path, final ByteBuffer... contents) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+													StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (ByteBuffer content : contents) {
+				while (content.hasRemaining()) {
+					channel.write(content);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Reads bytes from a file.
 	 * @param aFileName The name of the file to read from
@@ -112,6 +145,44 @@ public class Utility {
 		return fileContents;
 	}
 
+	/**
+	 * Resolves a file name against the current directory.
+	 * @param aFileName The file name, relative to the current directory
+	 * @return The full path to the file
+	 */
+	public static Path resolveLocalPath(final String aFileName) {
+		return Path.of(currentDirectory, aFileName);
+	}
+
+	/**
+	 * Resolves the folder where files received from a contact are written, creating it if needed.
+	 * @param aContact The contact the files are received from
+	 * @return The full path to the contact's folder
+	 */
+	public static Path resolveContactFolder(final String aContact) {
+		final Path contactFolder = Path.of(currentDirectory, "shared", aContact);
+		Utility.createFolderIfNotExists(contactFolder);
+		return contactFolder;
+	}
+
+	/**
+	 * Get the name to save a received file under, dropping any directories the sender put in it.
+	 * @param aFileName The file name, as given by the sender
+	 * @return The name, or null if it doesn't name a file
+	 */
+	public static String localFileName(final String aFileName) {
+		final Path name;
+		try {
+			name = Path.of(aFileName).getFileName();
+		} catch (final InvalidPathException e) {
+			return null;
+		}
+		if (name == null || name.toString().isEmpty() || name.toString().equals(".") || name.toString().equals("..")) {
+			return null;
+		}
+		return name.toString();
+	}
+
 	/**
 	 * Check whether a file exists locally or not (relative path from the current directory).
 	 * @param aFileName the file name to check
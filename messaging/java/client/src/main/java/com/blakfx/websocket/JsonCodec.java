@@ -0,0 +1,867 @@
+package com.blakfx.websocket;
+
+import java.util.Locale;
+
+import com.blakfx.protocols.DeviceProtocol;
+
+/**
+ * Reads and writes the JSON messages of the chat protocol, without building a JSON tree either way.
+ * The protocol only has a few fixed schemas (identification, chat, rooms and devices), so the reader picks
+ * the fields it knows straight out of the text into a reused <code>Message</code>, skipping over anything else,
+ * and the writer appends fields straight into a reused buffer.
+ * Both are kept per thread: the strings read and written are all a message allocates.
+ * The server and the client each have a copy of this class, as they each have one of <code>device.proto</code>.
+ */
+public final class JsonCodec {
+
+    /**
+     * Every action, by ordinal.
+     */
+    private static final DeviceProtocol.Action[] ACTIONS = DeviceProtocol.Action.values();
+    /**
+     * The JSON name of every action, by ordinal: its PB name in lower case.
+     */
+    private static final String[] ACTION_NAMES = new String[ACTIONS.length];
+    /**
+     * Max capacity a writer's buffer keeps between messages; a larger one (e.g. after a snapshot) is let go.
+     */
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    /**
+     * Max nesting of the values skipped over, so a hostile message can't exhaust the stack.
+     */
+    private static final int MAX_DEPTH = 32;
+
+    static {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            ACTION_NAMES[i] = ACTIONS[i].name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * The message each thread reads into.
+     */
+    private static final ThreadLocal<Message> messages = ThreadLocal.withInitial(Message::new);
+    /**
+     * The writer each thread writes with.
+     */
+    private static final ThreadLocal<Writer> writers = ThreadLocal.withInitial(Writer::new);
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Parse a JSON message into this thread's message, which is only valid until the thread's next read.
+     * @param text The JSON text
+     * @return the parsed message
+     * @throws IllegalArgumentException The text is not a well-formed JSON object
+     */
+    public static Message read(String text) {
+        Message message = messages.get();
+        message.parse(text);
+        return message;
+    }
+
+    /**
+     * Start writing a JSON message with this thread's writer.
+     * A writer already busy on this thread (a message written while writing another) makes way for a fresh one.
+     * @return the writer, with the message's object open
+     */
+    public static Writer write() {
+        Writer writer = writers.get();
+        if (writer.inUse) {
+            writer = new Writer();
+        }
+        return writer.begin();
+    }
+
+    /**
+     * Get the JSON name of an action.
+     * @param action The action
+     * @return the name, as in the <code>action</code> field of a message
+     */
+    public static String actionName(DeviceProtocol.Action action) {
+        return ACTION_NAMES[action.ordinal()];
+    }
+
+    /**
+     * Get the action named by part of a text, without copying it out.
+     * @param text The text holding the name
+     * @param start Where the name starts
+     * @param end Where the name ends, exclusive
+     * @return The action, or <code>UNKNOWN</code> if none has this name
+     */
+    public static DeviceProtocol.Action resolveAction(String text, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i] != DeviceProtocol.Action.BATCH && ACTION_NAMES[i].length() == length
+                    && text.regionMatches(start, ACTION_NAMES[i], 0, length)) {
+                return ACTIONS[i];
+            }
+        }
+        return DeviceProtocol.Action.UNKNOWN;
+    }
+
+    /**
+     * Get the action of a JSON message without reading it, so it can be rate limited first.
+     * Only looks for the first <code>"action"</code> key and its string value; an action it can't find
+     * this way (e.g. an escaped name) is <code>UNKNOWN</code>, and a message that reads as another
+     * action than peeked is for the caller to turn down.
+     * @param text The message
+     * @return The action, or <code>UNKNOWN</code> if none could be found
+     */
+    public static DeviceProtocol.Action peekAction(String text) {
+        int key = text.indexOf("\"action\"");
+        if (key < 0) {
+            return DeviceProtocol.Action.UNKNOWN;
+        }
+        int i = skipSpace(text, key + 8);
+        if (i >= text.length() || text.charAt(i) != ':') {
+            return DeviceProtocol.Action.UNKNOWN;
+        }
+        i = skipSpace(text, i + 1);
+        if (i >= text.length() || text.charAt(i) != '"') {
+            return DeviceProtocol.Action.UNKNOWN;
+        }
+        int end = text.indexOf('"', i + 1);
+        if (end < 0 || text.lastIndexOf('\\', end) > i) {
+            return DeviceProtocol.Action.UNKNOWN;
+        }
+        return resolveAction(text, i + 1, end);
+    }
+
+    /**
+     * Skip JSON whitespace.
+     * @param text The text
+     * @param i Where to start
+     * @return the position of the next other character, or the length of the text
+     */
+    private static int skipSpace(String text, int i) {
+        while (i < text.length() && (text.charAt(i) == ' ' || text.charAt(i) == '\t'
+                || text.charAt(i) == '\n' || text.charAt(i) == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Check a field a message can't do without is there.
+     * @param value The value of the field
+     * @param key The name of the field
+     * @return the value
+     * @throws IllegalArgumentException The field is missing
+     */
+    public static String require(String value, String key) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing field: " + key);
+        }
+        return value;
+    }
+
+    /**
+     * A JSON message of the chat protocol, as read: the fields of every schema, each null if absent.
+     * The chat message object (<code>message</code>) is flattened into <code>getMessageUsername</code>
+     * and <code>getContent</code>.
+     */
+    public static final class Message {
+
+        private static final int SKIP = 0;
+        private static final int ACTION = 1;
+        private static final int USERNAME = 2;
+        private static final int NAME = 3;
+        private static final int DESCRIPTION = 4;
+        private static final int TYPE = 5;
+        private static final int STATUS = 6;
+        private static final int ROOM = 7;
+        private static final int CHAT = 8;
+        private static final int ERROR = 9;
+        private static final int ID = 10;
+        private static final int MESSAGE = 11;
+        private static final int CONTENT = 12;
+        private static final int MESSAGE_USERNAME = 13;
+        private static final int VERSION = 14;
+
+        /**
+         * The known keys of the message object, by field; <code>MESSAGE</code> opens the chat message object.
+         */
+        private static final String[] KEYS = { null, "action", "username", "name", "description", "type",
+                                               "status", "room", "chat", "error", "id", "message",
+                                               null, null, "version" };
+        /**
+         * The known keys of the chat message object, by field.
+         */
+        private static final String[] MESSAGE_KEYS = { null, null, null, null, null, null, null,
+                                                       null, null, null, null, null, "content", "username" };
+
+        private DeviceProtocol.Action action;
+        private String username;
+        private String name;
+        private String description;
+        private String type;
+        private String status;
+        private String room;
+        private String chat;
+        private String error;
+        private String messageUsername;
+        private String content;
+        private long id;
+        private boolean hasId;
+        private long version;
+        private boolean hasVersion;
+
+        /**
+         * The text being parsed.
+         */
+        private String text;
+        /**
+         * Where parsing is at in the text.
+         */
+        private int pos;
+        /**
+         * Whether the last string moved past holds escapes.
+         */
+        private boolean escaped;
+        /**
+         * Decodes strings that hold escapes; reused.
+         */
+        private final StringBuilder scratch = new StringBuilder();
+
+        private Message() {
+        }
+
+        /**
+         * Get the action of the message.
+         * @return The action, or <code>UNKNOWN</code> if missing or not known
+         */
+        public DeviceProtocol.Action getAction() {
+            return action;
+        }
+
+        /**
+         * Get the user to identify as.
+         * @return the username, or null if absent
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Get the name of a device.
+         * @return the name, or null if absent
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the description of a device.
+         * @return the description, or null if absent
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Get the type of a device.
+         * @return the type, or null if absent
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Get the status of a device.
+         * @return the status, or null if absent
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the room of a room request or message.
+         * @return the room, or null if absent
+         */
+        public String getRoom() {
+            return room;
+        }
+
+        /**
+         * Get the format asked for, or agreed to, for global chat messages.
+         * @return the format, or null if absent
+         */
+        public String getChat() {
+            return chat;
+        }
+
+        /**
+         * Get the error of a reply.
+         * @return the error, or null if absent
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Get the user a chat message is from.
+         * @return the username, or null if absent
+         */
+        public String getMessageUsername() {
+            return messageUsername;
+        }
+
+        /**
+         * Get the content of a chat message.
+         * @return the content, or null if absent
+         */
+        public String getContent() {
+            return content;
+        }
+
+        /**
+         * Check whether the message has a device ID.
+         * @return whether the ID is there
+         */
+        public boolean hasId() {
+            return hasId;
+        }
+
+        /**
+         * Get the ID of a device.
+         * @return the ID
+         * @throws IllegalArgumentException The message has no ID
+         */
+        public long getId() {
+            if (!hasId) {
+                throw new IllegalArgumentException("Missing field: id");
+            }
+            return id;
+        }
+
+        /**
+         * Check whether the message has a device version.
+         * @return whether the version is there
+         */
+        public boolean hasVersion() {
+            return hasVersion;
+        }
+
+        /**
+         * Get the version of a device.
+         * @return the version, or 0 if absent
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Parse a JSON object into this message, clearing what was read before.
+         * @param aText The JSON text
+         */
+        private void parse(String aText) {
+            action = DeviceProtocol.Action.UNKNOWN;
+            username = name = description = type = status = room = chat = error = messageUsername = content = null;
+            id = version = 0;
+            hasId = hasVersion = false;
+            text = aText;
+            pos = 0;
+            try {
+                skipWhitespace();
+                expect('{');
+                readObject(KEYS, 1);
+                skipWhitespace();
+                if (pos != text.length()) {
+                    throw malformed("Trailing characters");
+                }
+            }
+            catch (IndexOutOfBoundsException ex) {
+                throw malformed("Unexpected end of message");
+            }
+            finally {
+                text = null;
+            }
+        }
+
+        /**
+         * Read the members of an object, its opening brace already consumed.
+         * @param keys The known keys of the object, by field
+         * @param depth The nesting of the object
+         */
+        private void readObject(String[] keys, int depth) {
+            skipWhitespace();
+            if (text.charAt(pos) == '}') {
+                pos++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                expect('"');
+                int keyStart = pos;
+                int keyEnd = skipString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                readValue(field(keys, keyStart, keyEnd), depth);
+                skipWhitespace();
+                char c = text.charAt(pos++);
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    throw malformed("Expected ',' or '}'");
+                }
+            }
+        }
+
+        /**
+         * Get the field a key stands for.
+         * @param keys The known keys, by field
+         * @param start Where the key starts
+         * @param end Where the key ends, exclusive
+         * @return The field, or <code>SKIP</code> if not known
+         */
+        private int field(String[] keys, int start, int end) {
+            int length = end - start;
+            for (int i = 1; i < keys.length; i++) {
+                if (keys[i] != null && keys[i].length() == length && text.regionMatches(start, keys[i], 0, length)) {
+                    return i;
+                }
+            }
+            return SKIP;
+        }
+
+        /**
+         * Read the value of a member into its field.
+         * @param field The field the member is for
+         * @param depth The nesting of the member's object
+         */
+        private void readValue(int field, int depth) {
+            switch (field) {
+                case SKIP:
+                    skipValue(depth);
+                    break;
+                case MESSAGE:
+                    if (text.charAt(pos) == '{') {
+                        pos++;
+                        readObject(MESSAGE_KEYS, depth + 1);
+                    }
+                    else {
+                        skipValue(depth);
+                    }
+                    break;
+                case ID:
+                    id = readLong();
+                    hasId = true;
+                    break;
+                case VERSION:
+                    version = readLong();
+                    hasVersion = true;
+                    break;
+                case ACTION: {
+                    expect('"');
+                    int start = pos;
+                    int end = skipString();
+                    if (escaped) {
+                        String decoded = decode(start, end);
+                        action = JsonCodec.resolveAction(decoded, 0, decoded.length());
+                    }
+                    else {
+                        action = JsonCodec.resolveAction(text, start, end);
+                    }
+                    break;
+                }
+                default: {
+                    String value = readString();
+                    switch (field) {
+                        case USERNAME: username = value; break;
+                        case NAME: name = value; break;
+                        case DESCRIPTION: description = value; break;
+                        case TYPE: type = value; break;
+                        case STATUS: status = value; break;
+                        case ROOM: room = value; break;
+                        case CHAT: chat = value; break;
+                        case ERROR: error = value; break;
+                        case CONTENT: content = value; break;
+                        case MESSAGE_USERNAME: messageUsername = value; break;
+                        default: break;
+                    }
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Read a string value, or null for a JSON null.
+         * @return the string
+         */
+        private String readString() {
+            if (text.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            expect('"');
+            int start = pos;
+            int end = skipString();
+            return escaped ? decode(start, end) : text.substring(start, end);
+        }
+
+        /**
+         * Move past the rest of a string, its opening quote already consumed.
+         * @return where the string ends, i.e. the index of its closing quote
+         */
+        private int skipString() {
+            escaped = false;
+            while (true) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return pos - 1;
+                }
+                if (c == '\\') {
+                    escaped = true;
+                    pos++;
+                }
+                else if (c < 0x20) {
+                    throw malformed("Control character in string");
+                }
+            }
+        }
+
+        /**
+         * Decode a string that holds escapes.
+         * @param start Where the string starts, after its opening quote
+         * @param end Where the string ends, at its closing quote
+         * @return the decoded string
+         */
+        private String decode(int start, int end) {
+            scratch.setLength(0);
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c != '\\') {
+                    scratch.append(c);
+                    continue;
+                }
+                char next = text.charAt(++i);
+                switch (next) {
+                    case '"': case '\\': case '/': scratch.append(next); break;
+                    case 'b': scratch.append('\b'); break;
+                    case 'f': scratch.append('\f'); break;
+                    case 'n': scratch.append('\n'); break;
+                    case 'r': scratch.append('\r'); break;
+                    case 't': scratch.append('\t'); break;
+                    case 'u':
+                        if (i + 4 >= end) {
+                            throw malformed("Truncated unicode escape");
+                        }
+                        scratch.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    default:
+                        throw malformed("Invalid escape");
+                }
+            }
+            return scratch.toString();
+        }
+
+        /**
+         * Read an integer value.
+         * @return the value
+         */
+        private long readLong() {
+            boolean negative = text.charAt(pos) == '-';
+            if (negative) {
+                pos++;
+            }
+            int start = pos;
+            long value = 0;
+            while (pos < text.length() && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+                value = value * 10 + (text.charAt(pos++) - '0');
+            }
+            if (pos == start || pos - start > 18) {
+                throw malformed("Expected an integer");
+            }
+            if (pos < text.length() && (text.charAt(pos) == '.' || text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                throw malformed("Expected an integer");
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Move past a value of any type.
+         * @param depth The nesting of the value's parent
+         */
+        private void skipValue(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw malformed("Nested too deep");
+            }
+            char c = text.charAt(pos);
+            switch (c) {
+                case '"':
+                    pos++;
+                    skipString();
+                    break;
+                case '{':
+                case '[': {
+                    pos++;
+                    char close = (c == '{') ? '}' : ']';
+                    skipWhitespace();
+                    if (text.charAt(pos) == close) {
+                        pos++;
+                        break;
+                    }
+                    while (true) {
+                        skipWhitespace();
+                        if (c == '{') {
+                            expect('"');
+                            skipString();
+                            skipWhitespace();
+                            expect(':');
+                            skipWhitespace();
+                        }
+                        skipValue(depth + 1);
+                        skipWhitespace();
+                        char next = text.charAt(pos++);
+                        if (next == close) {
+                            break;
+                        }
+                        if (next != ',') {
+                            throw malformed("Expected ',' or '" + close + "'");
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    // number, true, false or null
+                    int start = pos;
+                    while (pos < text.length() && "{}[],: \t\r\n\"".indexOf(text.charAt(pos)) < 0) {
+                        pos++;
+                    }
+                    if (pos == start) {
+                        throw malformed("Expected a value");
+                    }
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Move past any whitespace.
+         */
+        private void skipWhitespace() {
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        /**
+         * Consume a given character.
+         * @param c The character expected
+         */
+        private void expect(char c) {
+            if (text.charAt(pos) != c) {
+                throw malformed("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        /**
+         * Create the error for a malformed message, at the current position.
+         * @param reason What is wrong
+         * @return the error
+         */
+        private IllegalArgumentException malformed(String reason) {
+            return new IllegalArgumentException(reason + " at offset " + pos + " of JSON message");
+        }
+    }
+
+    /**
+     * Writes a JSON message straight into a reused buffer, member by member.
+     * Members are separated as they are written, so a message is written in one pass with no tree behind it.
+     */
+    public static final class Writer {
+
+        /**
+         * The buffer the message is written into.
+         */
+        private StringBuilder out = new StringBuilder(256);
+        /**
+         * Whether the next member or element needs a separator first.
+         */
+        private boolean separate;
+        /**
+         * Whether a message is being written.
+         */
+        private boolean inUse;
+
+        private Writer() {
+        }
+
+        /**
+         * Start a message.
+         * @return this writer
+         */
+        private Writer begin() {
+            out.setLength(0);
+            out.append('{');
+            separate = false;
+            inUse = true;
+            return this;
+        }
+
+        /**
+         * Write a string member.
+         * @param key The name of the member
+         * @param value The value, or null for a JSON null
+         * @return this writer
+         */
+        public Writer field(String key, String value) {
+            key(key);
+            string(value);
+            separate = true;
+            return this;
+        }
+
+        /**
+         * Write a number member.
+         * @param key The name of the member
+         * @param value The value
+         * @return this writer
+         */
+        public Writer field(String key, long value) {
+            key(key);
+            out.append(value);
+            separate = true;
+            return this;
+        }
+
+        /**
+         * Write an action member, by its JSON name.
+         * @param key The name of the member
+         * @param action The action
+         * @return this writer
+         */
+        public Writer field(String key, DeviceProtocol.Action action) {
+            return field(key, actionName(action));
+        }
+
+        /**
+         * Open an object member.
+         * @param key The name of the member
+         * @return this writer
+         */
+        public Writer beginObject(String key) {
+            key(key);
+            out.append('{');
+            separate = false;
+            return this;
+        }
+
+        /**
+         * Open an object element of an array.
+         * @return this writer
+         */
+        public Writer beginObject() {
+            if (separate) {
+                out.append(',');
+            }
+            out.append('{');
+            separate = false;
+            return this;
+        }
+
+        /**
+         * Close the innermost object.
+         * @return this writer
+         */
+        public Writer endObject() {
+            out.append('}');
+            separate = true;
+            return this;
+        }
+
+        /**
+         * Open an array member.
+         * @param key The name of the member
+         * @return this writer
+         */
+        public Writer beginArray(String key) {
+            key(key);
+            out.append('[');
+            separate = false;
+            return this;
+        }
+
+        /**
+         * Close the innermost array.
+         * @return this writer
+         */
+        public Writer endArray() {
+            out.append(']');
+            separate = true;
+            return this;
+        }
+
+        /**
+         * Close the message and get its text; the writer is then free for the next one.
+         * @return the JSON text
+         */
+        public String end() {
+            out.append('}');
+            String text = out.toString();
+            if (out.capacity() > MAX_POOLED_CAPACITY) {
+                out = new StringBuilder(256);
+            }
+            inUse = false;
+            return text;
+        }
+
+        /**
+         * Write the name of a member, with its separator.
+         * @param key The name
+         */
+        private void key(String key) {
+            if (separate) {
+                out.append(',');
+            }
+            string(key);
+            out.append(':');
+        }
+
+        /**
+         * Write a string, escaped.
+         * @param value The string, or null for a JSON null
+         */
+        private void string(String value) {
+            if (value == null) {
+                out.append("null");
+                return;
+            }
+            out.append('"');
+            int length = value.length();
+            int from = 0;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c != '"' && c != '\\' && c >= 0x20) {
+                    continue;
+                }
+                out.append(value, from, i);
+                from = i + 1;
+                switch (c) {
+                    case '"': out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\b': out.append("\\b"); break;
+                    case '\f': out.append("\\f"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    default:
+                        out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                        break;
+                }
+            }
+            out.append(value, from, length);
+            out.append('"');
+        }
+    }
+}
@@ -3,11 +3,17 @@ package com.blakfx.websocket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import javax.json.spi.JsonProvider;
 import javax.websocket.*;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import com.blakfx.protocols.DeviceProtocol;
 
 /**
  * Representation of a client endpoint to the chat server.
@@ -29,27 +35,75 @@ public class WebsocketClientEndpoint {
      * This class' Logger instance
      */
     private static final Logger log = LogManager.getLogger(WebsocketClientEndpoint.class.getName());
+    /**
+     * Max size of a single binary message, large enough for one encrypted file chunk.
+     */
+    private static final int MAX_BINARY_MESSAGE = Integer.getInteger("com.blakfx.chat.maxBinaryMessage", 1024 * 1024);
+    /**
+     * Whether to ask the server to compress frames with permessage-deflate.
+     */
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("com.blakfx.chat.compression", "true"));
+    /**
+     * Serializes sends, the remote endpoint only allows one message in flight at a time.
+     */
+    private final Object sendLock = new Object();
 
     /**
      * Constructs the WebsocketClientEndpoint to the given URI.
+     * Extensions can only be requested through a programmatic endpoint, so one is used
+     * to hand the session's events over to this endpoint's handlers.
      * @param endpointURI The URI of the chat server to connect to
      */
     public WebsocketClientEndpoint(URI endpointURI) {
         try {
             WebSocketContainer container = ContainerProvider.getWebSocketContainer();
-            container.connectToServer(this, endpointURI);
+            ClientEndpointConfig config = ClientEndpointConfig.Builder.create()
+                    .extensions(COMPRESSION ? List.of(permessageDeflate()) : Collections.emptyList())
+                    .build();
+            container.connectToServer(new Endpoint() {
+                @Override
+                public void onOpen(Session session, EndpointConfig endpointConfig) {
+                    session.addMessageHandler(String.class, message -> WebsocketClientEndpoint.this.onMessage(message, session));
+                    session.addMessageHandler(ByteBuffer.class, buffer -> WebsocketClientEndpoint.this.onMessage(buffer, session));
+                    WebsocketClientEndpoint.this.onOpen(session);
+                }
+
+                @Override
+                public void onClose(Session session, CloseReason reason) {
+                    WebsocketClientEndpoint.this.onClose(session, reason);
+                }
+            }, config, endpointURI);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Build the permessage-deflate extension request, with default parameters.
+     * @return the extension
+     */
+    private static Extension permessageDeflate() {
+        return new Extension() {
+            @Override
+            public String getName() {
+                return "permessage-deflate";
+            }
+
+            @Override
+            public List<Parameter> getParameters() {
+                return Collections.emptyList();
+            }
+        };
+    }
+
     /**
      * Called when the session to the chat server is opened.
      * @param session The session that was opened
      */
     @OnOpen
     public void onOpen(Session session) {
-        log.info("Opened websocket for session " + session);
+        log.info("Opened websocket for session {} with extensions {}", session, session.getNegotiatedExtensions());
+        session.setMaxBinaryMessageBufferSize(MAX_BINARY_MESSAGE);
         this.session = session;
     }
 
@@ -102,7 +156,7 @@ public class WebsocketClientEndpoint {
      */
     public void sendMessage(ByteBuffer buffer) {
         log.info("Starting async send with buffer: {}", buffer.toString());
-        this.session.getAsyncRemote().sendBinary(buffer);
+        send(() -> this.session.getAsyncRemote().sendBinary(buffer));
     }
 
     /**
@@ -111,7 +165,24 @@ public class WebsocketClientEndpoint {
      */
     public void sendMessage(final String message) {
         log.info("Starting async send with message: {}", message);
-        this.session.getAsyncRemote().sendText(message);
+        send(() -> this.session.getAsyncRemote().sendText(message));
+    }
+
+    /**
+     * Start a send, and wait for it to complete before letting the next one start.
+     * Callers run on worker threads, so waiting here only holds back other sends.
+     * @param write Starts the send and returns its completion
+     */
+    private void send(Supplier<Future<Void>> write) {
+        synchronized (sendLock) {
+            try {
+                write.get().get();
+            } catch (final ExecutionException e) {
+                log.error("Exception when sending to chat endpoint - {}", e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
@@ -133,11 +204,57 @@ public class WebsocketClientEndpoint {
      * @param aUsername the name of the user to register with the chat server
      */
     public void registerIdentity(final String aUsername) {
-        final JsonProvider provider = JsonProvider.provider();
-        sendMessage(provider.createObjectBuilder()
-            .add("action", "identify")
-            .add("username", aUsername)
-            .build().toString());
+        registerIdentity(aUsername, false);
+    }
+
+    /**
+     * Register an identity with the chat server, optionally asking for global chat messages via PB.
+     * The server confirms PB global chat in its identification reply; until then, and without it, JSON is used.
+     * @param aUsername The username to identify as
+     * @param binaryChat Whether to ask for global chat messages via PB
+     */
+    public void registerIdentity(final String aUsername, boolean binaryChat) {
+        sendMessage(JsonCodec.write()
+            .field("action", "identify")
+            .field("username", aUsername)
+            .field("chat", binaryChat ? "pb" : "json")
+            .end());
+    }
+
+    /**
+     * Join a chat room, to receive the messages sent to it.
+     * @param aRoomName The name of the room
+     */
+    public void joinRoom(final String aRoomName) {
+        sendMessage(JsonCodec.write()
+            .field("action", "join")
+            .field("room", aRoomName)
+            .end());
+    }
+
+    /**
+     * Leave a chat room, to stop receiving the messages sent to it.
+     * @param aRoomName The name of the room
+     */
+    public void leaveRoom(final String aRoomName) {
+        sendMessage(JsonCodec.write()
+            .field("action", "leave")
+            .field("room", aRoomName)
+            .end());
+    }
+
+    /**
+     * Subscribe to the changes of a device owned by another user, or stop.
+     * Sent via PB, so the answer, carrying the current state of the device, comes back via PB too.
+     * @param anId The id of the device
+     * @param subscribe Whether to subscribe or unsubscribe
+     */
+    public void subscribeDevice(final int anId, boolean subscribe) {
+        sendMessage(ByteBuffer.wrap(DeviceProtocol.Device.newBuilder()
+            .setActionCode(subscribe ? DeviceProtocol.Action.SUBSCRIBE : DeviceProtocol.Action.UNSUBSCRIBE)
+            .setId(anId)
+            .build()
+            .toByteArray()));
     }
 
 
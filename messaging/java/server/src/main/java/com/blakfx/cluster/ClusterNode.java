@@ -0,0 +1,812 @@
+package com.blakfx.cluster;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Links this chat server to the other servers of a cluster, over plain TCP, with no broker.
+ * Membership is static: every node is started with the same list of nodes
+ * (<code>com.blakfx.server.cluster.nodes</code>, as <code>id@host:port,...</code>) and its own ID
+ * (<code>com.blakfx.server.cluster.self</code>). Each node listens on its own port and dials every other node,
+ * so each pair of nodes has one link per direction; a node only ever writes to the links it dialed.
+ * The node keeps a presence directory of which remote node each remote user is connected to,
+ * routes private frames to the node of their target, and relays broadcasts, room messages and device events to every node.
+ * The directory is eventually consistent: it only knows what has been announced so far, so it can't settle
+ * which of two nodes gets a name both bind before hearing of the other; the name is then connected on both,
+ * each node serving its own session, and frames routed from elsewhere go to the node announced last.
+ * Without a configured cluster, the node runs alone and every operation is a no-op.
+ * <p>
+ * Every node shares a secret (<code>com.blakfx.server.cluster.secret</code>), required once clustered.
+ * A node that accepts a link sends a random challenge first, and the dialing node has to answer it in its hello
+ * with an HMAC of the challenge and its ID under the secret; nothing else is read from a link before that.
+ * The secret authenticates links, it doesn't encrypt them: links between data centers still belong in a tunnel.
+ */
+public class ClusterNode {
+
+    /**
+     * Receives what other nodes send to this one. Called on the link's reader thread.
+     */
+    public interface Listener {
+        /**
+         * A private frame was routed to a user of this node.
+         * @param sender The identified user who sent the frame, or null if the frame is not to be kept
+         * @param target The user the frame is for
+         * @param frame The encoded frame, as it is to be sent to the user
+         */
+        void onRoutedFrame(String sender, String target, byte[] frame);
+
+        /**
+         * A global chat message was broadcast to every session of the cluster.
+         * @param frame The message, encoded as a PB chat message with no target
+         */
+        void onBroadcast(byte[] frame);
+
+        /**
+         * A text frame was sent to the members of a room, on every node of the cluster.
+         * @param room The room the frame is for
+         * @param text The encoded frame
+         */
+        void onRoomMessage(String room, String text);
+
+        /**
+         * A device changed on another node.
+         * @param event The encoded device event
+         * @param useJSON Whether the change came in via JSON or PB
+         */
+        void onDeviceEvent(byte[] event, boolean useJSON);
+
+        /**
+         * Another node (re)connected and sent its whole device state, as add events.
+         * The state is complete for the IDs that node assigns, so a device of its stripe missing from it was removed there.
+         * @param peerIndex The position of the sending node in the node list, i.e. the stripe of IDs it assigns
+         * @param state The encoded add events
+         */
+        void onDeviceSync(int peerIndex, List<byte[]> state);
+
+        /**
+         * Get this node's device state, as events to send to a node that (re)connects.
+         * @return the encoded device events
+         */
+        List<byte[]> getDeviceState();
+    }
+
+    /**
+     * Where a remote user is connected: the node, and the accepted link that node announced the user on.
+     */
+    private static final class Presence {
+        /**
+         * The ID of the user's node.
+         */
+        final String node;
+        /**
+         * The number of the link the user was announced on.
+         */
+        final long link;
+
+        Presence(String node, long link) {
+            this.node = node;
+            this.link = link;
+        }
+    }
+
+    /**
+     * Message types on a cluster link.
+     */
+    private static final byte HELLO = 1;
+    private static final byte PRESENCE_UP = 2;
+    private static final byte PRESENCE_DOWN = 3;
+    private static final byte ROUTE = 4;
+    private static final byte BROADCAST = 5;
+    private static final byte DEVICE = 6;
+    private static final byte DEVICE_SYNC = 7;
+    private static final byte PING = 8;
+    private static final byte ROOM = 9;
+    private static final byte DEVICE_SYNC_END = 10;
+
+    /**
+     * Max number of messages waiting on a link before new ones are dropped.
+     */
+    private static final int MAX_QUEUED = Integer.getInteger("com.blakfx.server.cluster.maxQueued", 16 * 1024);
+    /**
+     * Delay between attempts to (re)connect to a node, in ms.
+     */
+    private static final long RECONNECT_MS = Long.getLong("com.blakfx.server.cluster.reconnectMs", 1000L);
+    /**
+     * Max size of a single message on a link.
+     */
+    private static final int MAX_MESSAGE = 64 * 1024 * 1024;
+    /**
+     * Max size of a message on a link before its hello was checked.
+     */
+    private static final int MAX_HELLO = 1024;
+    /**
+     * How long a node has to get through the handshake on a new link, in ms.
+     */
+    private static final int HANDSHAKE_TIMEOUT_MS = 10_000;
+    /**
+     * Size of the challenge sent on an accepted link, in bytes.
+     */
+    private static final int CHALLENGE_BYTES = 32;
+    /**
+     * The MAC answering a challenge.
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * This class' Logger instance.
+     */
+    static Logger log = LogManager.getLogger(ClusterNode.class.getName());
+
+    /**
+     * The ID of this node, or null when running alone.
+     */
+    private final String nodeId;
+    /**
+     * The position of this node in the node list.
+     */
+    private final int nodeIndex;
+    /**
+     * The number of nodes in the cluster.
+     */
+    private final int nodeCount;
+    /**
+     * The address this node listens on, or null when running alone.
+     */
+    private final InetSocketAddress listenAddress;
+    /**
+     * The secret every node of the cluster shares, to tell them apart from anyone else who can reach the port.
+     */
+    private final SecretKeySpec secret;
+    /**
+     * Draws the challenges sent on accepted links.
+     */
+    private final SecureRandom random = new SecureRandom();
+    /**
+     * The links this node dialed, indexed by the ID of the node at the other end.
+     */
+    private final Map<String, PeerLink> peers = new LinkedHashMap<>();
+    /**
+     * The node each remote user is connected to.
+     */
+    private final ConcurrentMap<String, Presence> presence = new ConcurrentHashMap<>();
+    /**
+     * The number of links accepted so far, to number each one.
+     */
+    private final AtomicLong links = new AtomicLong();
+    /**
+     * The users connected to this node, announced to every node that connects.
+     */
+    private final Set<String> localUsers = ConcurrentHashMap.newKeySet();
+    /**
+     * Receives what other nodes send.
+     */
+    private volatile Listener listener;
+    /**
+     * The socket accepting links from other nodes.
+     */
+    private volatile ServerSocket server;
+    /**
+     * The links other nodes dialed, being read.
+     */
+    private final Set<Socket> accepted = ConcurrentHashMap.newKeySet();
+    /**
+     * Whether the node has been stopped.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Constructs the node from the <code>com.blakfx.server.cluster.*</code> system properties.
+     */
+    public ClusterNode() {
+        this(System.getProperty("com.blakfx.server.cluster.nodes", ""),
+             System.getProperty("com.blakfx.server.cluster.self", ""),
+             System.getProperty("com.blakfx.server.cluster.secret", ""));
+    }
+
+    /**
+     * Constructs the node.
+     * @param nodes Every node of the cluster, as <code>id@host:port</code> separated by commas; empty to run alone
+     * @param self The ID of this node
+     * @param secret The secret every node of the cluster shares; must not be empty once clustered
+     */
+    public ClusterNode(String nodes, String self, String secret) {
+        InetSocketAddress address = null;
+        int index = 0;
+        int count = 0;
+        for (String node : nodes.split(",")) {
+            if (node.trim().isEmpty()) {
+                continue;
+            }
+            String[] idAndAddress = node.trim().split("@");
+            int colon = idAndAddress[1].lastIndexOf(':');
+            InetSocketAddress nodeAddress = new InetSocketAddress(idAndAddress[1].substring(0, colon),
+                                                                  Integer.parseInt(idAndAddress[1].substring(colon + 1)));
+            if (idAndAddress[0].equals(self)) {
+                address = nodeAddress;
+                index = count;
+            }
+            else {
+                peers.put(idAndAddress[0], new PeerLink(idAndAddress[0], count, nodeAddress));
+            }
+            count++;
+        }
+        if (count > 0 && address == null) {
+            throw new IllegalArgumentException("Cluster node '" + self + "' is not in the node list: " + nodes);
+        }
+        if (!peers.isEmpty() && secret.isEmpty()) {
+            throw new IllegalArgumentException("Cluster node '" + self + "' has no cluster secret");
+        }
+        this.secret = secret.isEmpty() ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.nodeId = (address == null) ? null : self;
+        this.nodeIndex = index;
+        this.nodeCount = Math.max(1, count);
+        this.listenAddress = address;
+    }
+
+    /**
+     * Start listening for and dialing other nodes.
+     * @param listener Receives what other nodes send
+     */
+    public void start(Listener listener) {
+        this.listener = listener;
+        if (!isClustered()) {
+            return;
+        }
+        try {
+            ServerSocket socket = new ServerSocket();
+            socket.setReuseAddress(true);
+            socket.bind(listenAddress);
+            server = socket;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cluster node " + nodeId + " could not listen on " + listenAddress, ex);
+        }
+        daemon("cluster-accept", this::acceptLoop).start();
+        for (PeerLink peer : peers.values()) {
+            daemon("cluster-link-" + peer.peerId, peer::run).start();
+        }
+        log.info("Cluster node " + nodeId + " (" + (nodeIndex + 1) + "/" + nodeCount + ") listening on " + listenAddress);
+    }
+
+    /**
+     * Close every link and stop listening, releasing the port for the next node started on it.
+     */
+    public void stop() {
+        stopped = true;
+        for (PeerLink peer : peers.values()) {
+            peer.close();
+        }
+        for (Socket socket : accepted) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing left to do
+            }
+        }
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException ex) {
+            log.error("Error closing cluster listener: " + ex);
+        }
+    }
+
+    /**
+     * Check whether this node is part of a cluster.
+     * @return whether other nodes are configured
+     */
+    public boolean isClustered() {
+        return nodeId != null && !peers.isEmpty();
+    }
+
+    /**
+     * Get the ID of this node.
+     * @return the node ID, or null when running alone
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Get the position of this node in the node list.
+     * @return the node index, 0 when running alone
+     */
+    public int getNodeIndex() {
+        return nodeIndex;
+    }
+
+    /**
+     * Get the number of nodes in the cluster.
+     * @return the node count, 1 when running alone
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Find the remote node a user is connected to, as far as announcements received so far tell.
+     * @param username The user to look for
+     * @return the ID of the user's node, or null if the user isn't connected to another node
+     */
+    public String locate(String username) {
+        Presence where = presence.get(username);
+        return (where == null) ? null : where.node;
+    }
+
+    /**
+     * Tell every node a user connected to this node.
+     * @param username The user
+     */
+    public void announce(String username) {
+        if (isClustered() && localUsers.add(username)) {
+            sendToAll(message(PRESENCE_UP, out -> out.writeUTF(username)));
+        }
+    }
+
+    /**
+     * Tell every node a user left this node.
+     * @param username The user
+     */
+    public void withdraw(String username) {
+        if (isClustered() && localUsers.remove(username)) {
+            sendToAll(message(PRESENCE_DOWN, out -> out.writeUTF(username)));
+        }
+    }
+
+    /**
+     * Send a private frame to the node a user is connected to.
+     * @param node The ID of the user's node
+     * @param sender The identified user who sent the frame, for the mailbox of that node to keep the frame
+     *               if the target left meanwhile, or null if the frame is not to be kept
+     * @param target The user
+     * @param frame The encoded frame
+     * @return whether the frame was queued on a live link
+     */
+    public boolean route(String node, String sender, String target, byte[] frame) {
+        PeerLink peer = peers.get(node);
+        return peer != null && peer.send(message(ROUTE, out -> {
+            out.writeUTF(target);
+            out.writeBoolean(sender != null);
+            if (sender != null) {
+                out.writeUTF(sender);
+            }
+            writeBytes(out, frame);
+        }));
+    }
+
+    /**
+     * Send a global chat message to every session of every other node.
+     * It travels as PB, and each node encodes it for its own sessions in the format they negotiated.
+     * @param frame The message, encoded as a PB chat message with no target
+     */
+    public void broadcast(byte[] frame) {
+        if (isClustered()) {
+            sendToAll(message(BROADCAST, out -> writeBytes(out, frame)));
+        }
+    }
+
+    /**
+     * Send a text frame to the members of a room on every other node.
+     * Room membership is local to each node, so every node gets the frame and keeps it to its own members.
+     * @param room The room the frame is for
+     * @param text The encoded frame
+     */
+    public void publishRoom(String room, String text) {
+        if (isClustered()) {
+            sendToAll(message(ROOM, out -> {
+                out.writeUTF(room);
+                writeBytes(out, text.getBytes(StandardCharsets.UTF_8));
+            }));
+        }
+    }
+
+    /**
+     * Send a device change to every other node.
+     * @param event The encoded device event
+     * @param useJSON Whether the change came in via JSON or PB
+     */
+    public void publishDevice(byte[] event, boolean useJSON) {
+        if (isClustered()) {
+            sendToAll(deviceMessage(DEVICE, event, useJSON));
+        }
+    }
+
+    /**
+     * Queue a message on every live link.
+     * @param message The encoded message
+     */
+    private void sendToAll(byte[] message) {
+        for (PeerLink peer : peers.values()) {
+            peer.send(message);
+        }
+    }
+
+    /**
+     * Accept links from other nodes, each read on its own thread.
+     */
+    private void acceptLoop() {
+        while (!stopped) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                accepted.add(socket);
+                daemon("cluster-read-" + socket.getRemoteSocketAddress(), () -> readLoop(socket)).start();
+            } catch (IOException ex) {
+                if (!stopped) {
+                    log.error("Error accepting cluster link: " + ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read messages from a link another node dialed, until it closes.
+     * The link is challenged first, and only read on once the other node answered the challenge in its hello.
+     * The users announced on the link are dropped from the presence directory once it is gone;
+     * those the node announced again on a newer link, e.g. after reconnecting, are kept.
+     * @param socket The accepted link
+     */
+    private void readLoop(Socket socket) {
+        long link = links.incrementAndGet();
+        String peerId = null;
+        // the device state being synced on this link, handed over as a whole once complete
+        List<byte[]> synced = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            random.nextBytes(challenge);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            out.write(challenge);
+            out.flush();
+            while (!stopped) {
+                int length = in.readInt();
+                if (length <= 0 || length > ((peerId == null) ? MAX_HELLO : MAX_MESSAGE)) {
+                    throw new IOException("Invalid cluster message length " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                DataInputStream message = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = message.readByte();
+                if (peerId == null) {
+                    if (type != HELLO) {
+                        throw new IOException("Cluster message before hello");
+                    }
+                    String claimed = message.readUTF();
+                    byte[] proof = new byte[message.available()];
+                    message.readFully(proof);
+                    if (!peers.containsKey(claimed) || !MessageDigest.isEqual(proof, prove(challenge, claimed))) {
+                        throw new IOException("Cluster hello failed authentication as " + claimed);
+                    }
+                    peerId = claimed;
+                    socket.setSoTimeout(0);
+                    log.info("Cluster node " + peerId + " connected from " + socket.getRemoteSocketAddress());
+                }
+                else {
+                    handle(peerId, link, type, message, synced);
+                }
+            }
+        } catch (EOFException ex) {
+            // the other node closed the link
+        } catch (IOException | RuntimeException ex) {
+            if (!stopped) {
+                log.error("Cluster link from " + (peerId == null ? socket.getRemoteSocketAddress() : peerId) + " failed: " + ex);
+            }
+        } finally {
+            accepted.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing left to do
+            }
+        }
+        if (peerId != null) {
+            presence.values().removeIf(where -> where.link == link);
+            log.info("Cluster node " + peerId + " disconnected, dropped the users it announced on that link");
+        }
+    }
+
+    /**
+     * Handle one message from another node.
+     * @param peerId The node that sent it
+     * @param link The number of the link it came in on
+     * @param type The message type
+     * @param in The rest of the message
+     * @param synced The device state synced so far on the link
+     * @throws IOException The message is malformed
+     */
+    private void handle(String peerId, long link, byte type, DataInputStream in, List<byte[]> synced) throws IOException {
+        switch (type) {
+            case PRESENCE_UP:
+                presence.put(in.readUTF(), new Presence(peerId, link));
+                break;
+            case PRESENCE_DOWN:
+                presence.computeIfPresent(in.readUTF(), (user, where) -> where.node.equals(peerId) ? null : where);
+                break;
+            case ROUTE: {
+                String target = in.readUTF();
+                String sender = in.readBoolean() ? in.readUTF() : null;
+                listener.onRoutedFrame(sender, target, readBytes(in));
+                break;
+            }
+            case BROADCAST:
+                listener.onBroadcast(readBytes(in));
+                break;
+            case ROOM: {
+                String room = in.readUTF();
+                listener.onRoomMessage(room, new String(readBytes(in), StandardCharsets.UTF_8));
+                break;
+            }
+            case PING:
+                break;
+            case DEVICE: {
+                boolean useJSON = in.readBoolean();
+                listener.onDeviceEvent(readBytes(in), useJSON);
+                break;
+            }
+            case DEVICE_SYNC:
+                in.readBoolean();
+                synced.add(readBytes(in));
+                break;
+            case DEVICE_SYNC_END: {
+                PeerLink peer = peers.get(peerId);
+                if (peer == null) {
+                    log.warn("Ignoring device state from unknown cluster node " + peerId);
+                }
+                else {
+                    listener.onDeviceSync(peer.peerIndex, new ArrayList<>(synced));
+                }
+                synced.clear();
+                break;
+            }
+            default:
+                log.warn("Unknown cluster message type " + type + " from node " + peerId);
+                break;
+        }
+    }
+
+    /**
+     * Answer a link's challenge in the name of a node.
+     * @param challenge The challenge sent on the link
+     * @param node The ID of the node answering
+     * @return the MAC of the challenge and the ID under the cluster secret
+     */
+    private byte[] prove(byte[] challenge, String node) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            mac.update(challenge);
+            mac.update(node.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException ex) {
+            // HmacSHA256 comes with every JRE
+            throw new IllegalStateException("Cluster node " + nodeId + " can't compute " + MAC_ALGORITHM, ex);
+        }
+    }
+
+    /**
+     * Writes the fields of a message.
+     */
+    private interface MessageWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Encode a message.
+     * @param type The message type
+     * @param writer Writes the message's fields
+     * @return the encoded message, without its length
+     */
+    private static byte[] message(byte type, MessageWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            writer.write(out);
+        } catch (IOException ex) {
+            // writing to memory can't fail
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode a device message.
+     * @param type Either <code>DEVICE</code> or <code>DEVICE_SYNC</code>
+     * @param event The encoded device event
+     * @param useJSON Whether the change came in via JSON or PB
+     * @return the encoded message
+     */
+    private static byte[] deviceMessage(byte type, byte[] event, boolean useJSON) {
+        return message(type, out -> {
+            out.writeBoolean(useJSON);
+            writeBytes(out, event);
+        });
+    }
+
+    /**
+     * Write a length-prefixed byte array.
+     * @param out The stream to write to
+     * @param bytes The bytes to write
+     * @throws IOException The stream failed
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a length-prefixed byte array.
+     * @param in The stream to read from
+     * @return the bytes read
+     * @throws IOException The stream failed or ended early
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Create a daemon thread.
+     * @param name The thread's name
+     * @param task What the thread runs
+     * @return the thread, not started
+     */
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * The link this node dialed to another node, with its own queue and writer thread.
+     * Messages are only queued while the link is up; anything queued when it drops is lost,
+     * and the state that matters is sent again on reconnect: the users of this node, and its whole device state.
+     * A device change lost with the link is made up for by that state, as each node is the authority over the IDs it assigns.
+     */
+    private class PeerLink {
+        /**
+         * The ID of the node at the other end.
+         */
+        final String peerId;
+        /**
+         * The position of the node at the other end in the node list, i.e. the stripe of device IDs it assigns.
+         */
+        final int peerIndex;
+        /**
+         * The address of the node at the other end.
+         */
+        final InetSocketAddress address;
+        /**
+         * The messages waiting to be written.
+         */
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+        /**
+         * Whether the link is currently up.
+         */
+        volatile boolean connected;
+        /**
+         * The current socket, or null if none.
+         */
+        volatile Socket socket;
+
+        PeerLink(String peerId, int peerIndex, InetSocketAddress address) {
+            this.peerId = peerId;
+            this.peerIndex = peerIndex;
+            this.address = address;
+        }
+
+        /**
+         * Queue a message, if the link is up.
+         * @param message The encoded message
+         * @return whether the message was queued
+         */
+        boolean send(byte[] message) {
+            if (!connected) {
+                return false;
+            }
+            if (!queue.offer(message)) {
+                log.warn("Cluster link to " + peerId + " is backed up, dropping message");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Keep the link up: dial, send this node's state, then write queued messages until the link fails.
+         */
+        void run() {
+            while (!stopped) {
+                try (Socket s = new Socket()) {
+                    s.setTcpNoDelay(true);
+                    s.connect(address, (int) RECONNECT_MS);
+                    socket = s;
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    queue.clear();
+                    // changes made while the state below is being sent are queued, and follow it
+                    // answer the other node's challenge before anything else
+                    s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    byte[] challenge = new byte[CHALLENGE_BYTES];
+                    new DataInputStream(s.getInputStream()).readFully(challenge);
+                    s.setSoTimeout(0);
+                    connected = true;
+                    write(out, message(HELLO, o -> {
+                        o.writeUTF(nodeId);
+                        o.write(prove(challenge, nodeId));
+                    }));
+                    for (String user : localUsers) {
+                        write(out, message(PRESENCE_UP, o -> o.writeUTF(user)));
+                    }
+                    for (byte[] event : listener.getDeviceState()) {
+                        write(out, deviceMessage(DEVICE_SYNC, event, false));
+                    }
+                    write(out, message(DEVICE_SYNC_END, o -> { }));
+                    out.flush();
+                    log.info("Cluster link to " + peerId + " at " + address + " is up");
+                    while (!stopped) {
+                        byte[] message = queue.poll(RECONNECT_MS, TimeUnit.MILLISECONDS);
+                        // an idle link still gets written to, so a dead peer is noticed
+                        write(out, (message == null) ? message(PING, o -> { }) : message);
+                        // keep writing without flushing while more is queued
+                        if (queue.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException ex) {
+                    if (connected) {
+                        log.warn("Cluster link to " + peerId + " dropped: " + ex);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    connected = false;
+                    socket = null;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Write a message with its length.
+         * @param out The link's stream
+         * @param message The encoded message
+         * @throws IOException The link failed
+         */
+        private void write(DataOutputStream out, byte[] message) throws IOException {
+            out.writeInt(message.length);
+            out.write(message);
+        }
+
+        /**
+         * Close the link; the writer thread notices and stops.
+         */
+        void close() {
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ex) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+}
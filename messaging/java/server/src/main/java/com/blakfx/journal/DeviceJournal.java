@@ -0,0 +1,442 @@
+package com.blakfx.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.*;
+
+import com.blakfx.protocols.DeviceProtocol;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Keeps the device registry across restarts, as a compact snapshot plus an append-only write-ahead log
+ * of the device events (add, remove, toggle) applied since, each one the PB message sent to sessions.
+ * Every record is laid out as <code>int length | int crc | event</code>, the CRC-32C covering the event,
+ * so a record torn by a crash reads as the end of the log.
+ * <p>
+ * Appending only queues an event, so the event loops never wait on the file nor on each other;
+ * every <code>SYNC_MS</code>, a single writer writes out whatever was queued in one go, and flushes it to disk
+ * (group commit): an event is on disk within about <code>SYNC_MS</code> of being applied, whether the process or the machine dies.
+ * Once the log grows past <code>MAX_LOG_BYTES</code>, it moves on to a new file,
+ * and the whole registry is written as a new snapshot; the files before it are then deleted.
+ * A change applied during a snapshot is in the new file, and replayed over the snapshot on recovery,
+ * so replaying has to tolerate events the snapshot already holds: adds and toggles only apply over older versions.
+ */
+public class DeviceJournal {
+
+    /**
+     * The directory the journal lives in; each node of a cluster uses a subdirectory named after its ID.
+     */
+    private static final String DIRECTORY = System.getProperty("com.blakfx.server.devices.dir", "devices");
+    /**
+     * How often the log is flushed to disk, in ms.
+     */
+    private static final long SYNC_MS = Long.getLong("com.blakfx.server.devices.syncMs", 50L);
+    /**
+     * Size the log can reach before a snapshot replaces it, in bytes.
+     */
+    private static final long MAX_LOG_BYTES = Long.getLong("com.blakfx.server.devices.maxLogBytes", 16L * 1024 * 1024);
+    /**
+     * How long closing waits for a snapshot under way, in ms.
+     */
+    private static final long CLOSE_TIMEOUT_MS = 10_000L;
+    /**
+     * Size of the buffer records are gathered in before being written, in bytes.
+     */
+    private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+    /**
+     * Identifies a snapshot file, and the version of its layout.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x424b4401;
+    /**
+     * Size of a snapshot's header: <code>int magic | long firstLog | int lastId</code>.
+     */
+    private static final int SNAPSHOT_HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    /**
+     * Size of the fixed part of a record.
+     */
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+    /**
+     * The snapshot file.
+     */
+    private static final String SNAPSHOT_FILE = "devices.snapshot";
+    /**
+     * The file name suffix of log files.
+     */
+    private static final String LOG_SUFFIX = ".wal";
+
+    /**
+     * This class' Logger instance.
+     */
+    static Logger log = LogManager.getLogger(DeviceJournal.class.getName());
+
+    /**
+     * The directory the journal lives in.
+     */
+    private final Path directory;
+    /**
+     * Writes and flushes the log, and takes snapshots.
+     */
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "device-journal");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * The events appended and not yet written, oldest first.
+     */
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * Checksums records as they are written.
+     */
+    private final CRC32C crc = new CRC32C();
+    /**
+     * Gathers records, so that a group of them is written at once.
+     */
+    private ByteBuffer batch = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+    /**
+     * The log file being appended to.
+     */
+    private FileChannel channel;
+    /**
+     * The number of the log file being appended to, also used as its file name.
+     */
+    private long logNumber;
+    /**
+     * The size of the log since the last snapshot, in bytes.
+     */
+    private volatile long logBytes;
+    /**
+     * Whether the journal could open its directory, and isn't closed; if not, nothing is kept.
+     */
+    private volatile boolean available;
+
+    /**
+     * Constructs the journal in the configured directory, in a subdirectory of its own per cluster node,
+     * so nodes started from the same directory never share files. Nothing is read nor written before <code>recover</code>.
+     * @param nodeId The ID of this cluster node, or null when running alone
+     */
+    public DeviceJournal(String nodeId) {
+        this((nodeId == null) ? Paths.get(DIRECTORY) : Paths.get(DIRECTORY, nodeId));
+    }
+
+    /**
+     * Constructs the journal in a given directory. Nothing is read nor written before <code>recover</code>.
+     * @param directory The directory the journal lives in
+     */
+    public DeviceJournal(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Replay the snapshot and then the log, oldest first, and open a new log file to append to.
+     * Must be called once, before anything is appended.
+     * @param apply Called with each event, in the order it was applied
+     * @return the last device ID assigned as of the snapshot, 0 if none; IDs since are in the added devices
+     */
+    public synchronized int recover(Consumer<DeviceProtocol.Device> apply) {
+        long start = System.nanoTime();
+        int lastId = 0;
+        long firstLog = 0;
+        long events = 0;
+        try {
+            Files.createDirectories(directory);
+            Path snapshot = directory.resolve(SNAPSHOT_FILE);
+            if (Files.exists(snapshot)) {
+                try (FileChannel in = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                    MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                    if (buffer.remaining() < SNAPSHOT_HEADER_BYTES || buffer.getInt() != SNAPSHOT_MAGIC) {
+                        throw new IOException("Not a device snapshot: " + snapshot);
+                    }
+                    firstLog = buffer.getLong();
+                    lastId = buffer.getInt();
+                    events += replay(buffer, apply, snapshot);
+                }
+            }
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            files.sort(Comparator.comparing(Path::toString));
+            logNumber = firstLog;
+            for (Path file : files) {
+                long number = logNumber(file);
+                logNumber = Math.max(logNumber, number + 1);
+                if (number < firstLog) {
+                    // already in the snapshot, left behind by a crash while deleting
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    logBytes += in.size();
+                    events += replay(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()), apply, file);
+                }
+            }
+            // never append after what may be a torn record
+            channel = openLog(logNumber);
+            available = true;
+            log.info("Device journal recovered " + events + " events in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                     + " ms from " + directory.toAbsolutePath());
+        } catch (IOException ex) {
+            log.error("Device journal disabled - could not open " + directory.toAbsolutePath() + ": " + ex);
+        }
+        return lastId;
+    }
+
+    /**
+     * Start flushing the log and taking snapshots in the background.
+     * @param state Encodes every registered device as an add event, for snapshots
+     * @param lastId Gets the last device ID assigned, for snapshots
+     */
+    public void start(Supplier<List<byte[]>> state, IntSupplier lastId) {
+        syncer.scheduleWithFixedDelay(() -> sync(state, lastId), SYNC_MS, SYNC_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Append an applied event to the log; it is written with the next group. Never blocks.
+     * Events of a given device must be appended in the order they were applied.
+     * @param event The encoded PB event, not to be changed afterwards
+     */
+    public void append(byte[] event) {
+        if (available) {
+            pending.add(event);
+        }
+    }
+
+    /**
+     * Get the size of the log since the last snapshot.
+     * @return the size, in bytes
+     */
+    public long getLogBytes() {
+        return logBytes;
+    }
+
+    /**
+     * Stop the background work, and write, flush and close the log.
+     * A snapshot under way is finished first, as it deletes old log files, and must be done
+     * before another journal (e.g. of a redeployed server) opens the directory.
+     */
+    public void close() {
+        syncer.shutdown();
+        try {
+            if (!syncer.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                log.warn("Device journal still busy after " + CLOSE_TIMEOUT_MS + " ms, closing anyway");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (!available) {
+                return;
+            }
+            writePending();
+            available = false;
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException ex) {
+                log.error("Device journal could not close log " + logNumber + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Write out the events appended since the last time and flush them to disk, if any,
+     * and take a snapshot once the log is too large.
+     * @param state Encodes every registered device as an add event
+     * @param lastId Gets the last device ID assigned
+     */
+    private void sync(Supplier<List<byte[]>> state, IntSupplier lastId) {
+        synchronized (this) {
+            if (!available || !writePending()) {
+                return;
+            }
+            try {
+                channel.force(false);
+            } catch (IOException ex) {
+                log.error("Device journal could not flush log: " + ex);
+            }
+        }
+        if (logBytes > MAX_LOG_BYTES) {
+            snapshot(state, lastId);
+        }
+    }
+
+    /**
+     * Write the events appended so far to the log, in as few writes as the buffer allows.
+     * Only the writer and <code>close</code> call this, holding the lock.
+     * @return whether any event was written
+     */
+    private boolean writePending() {
+        boolean wrote = false;
+        byte[] event;
+        try {
+            while ((event = pending.poll()) != null) {
+                int size = RECORD_HEADER_BYTES + event.length;
+                if (batch.remaining() < size) {
+                    write(channel, batch);
+                    if (batch.capacity() < size) {
+                        batch = ByteBuffer.allocate(size);
+                    }
+                }
+                crc.reset();
+                crc.update(event);
+                batch.putInt(event.length).putInt((int) crc.getValue()).put(event);
+                logBytes += size;
+                wrote = true;
+            }
+            write(channel, batch);
+        } catch (IOException ex) {
+            log.error("Device journal could not write events: " + ex);
+            batch.clear();
+        }
+        return wrote;
+    }
+
+    /**
+     * Move the log on to a new file, write the registry as a new snapshot, and delete the files it replaces.
+     * Whatever is written from the switch on goes to the new file, so the snapshot may already hold some of it.
+     * @param state Encodes every registered device as an add event
+     * @param lastId Gets the last device ID assigned
+     */
+    private void snapshot(Supplier<List<byte[]>> state, IntSupplier lastId) {
+        long start = System.nanoTime();
+        long firstLog;
+        synchronized (this) {
+            try {
+                FileChannel next = openLog(logNumber + 1);
+                channel.force(false);
+                channel.close();
+                channel = next;
+                firstLog = ++logNumber;
+                logBytes = 0;
+            } catch (IOException ex) {
+                log.error("Device journal could not start log " + (logNumber + 1) + ": " + ex);
+                return;
+            }
+        }
+        int id = lastId.getAsInt();
+        List<byte[]> events = state.get();
+        Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            buffer.putInt(SNAPSHOT_MAGIC).putLong(firstLog).putInt(id);
+            CRC32C checksum = new CRC32C();
+            for (byte[] event : events) {
+                if (buffer.remaining() < RECORD_HEADER_BYTES + event.length) {
+                    write(out, buffer);
+                    if (buffer.capacity() < RECORD_HEADER_BYTES + event.length) {
+                        buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + event.length);
+                    }
+                }
+                checksum.reset();
+                checksum.update(event);
+                buffer.putInt(event.length).putInt((int) checksum.getValue()).put(event);
+            }
+            write(out, buffer);
+            out.force(true);
+        } catch (IOException ex) {
+            log.error("Device journal could not write snapshot: " + ex);
+            return;
+        }
+        try {
+            Files.move(tmp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+                for (Path file : stream) {
+                    if (logNumber(file) < firstLog) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Device journal could not replace snapshot: " + ex);
+            return;
+        }
+        log.info("Device journal took a snapshot of " + events.size() + " devices in "
+                 + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Replay the records of a file, up to the first torn or corrupt one.
+     * @param buffer The records
+     * @param apply Called with each event
+     * @param file The file, for logging
+     * @return the number of events replayed
+     */
+    private static long replay(ByteBuffer buffer, Consumer<DeviceProtocol.Device> apply, Path file) {
+        CRC32C checksum = new CRC32C();
+        long events = 0;
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                log.warn("Device journal stopped at a torn record in " + file);
+                break;
+            }
+            ByteBuffer event = buffer.slice();
+            event.limit(length);
+            checksum.reset();
+            checksum.update(event.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                log.warn("Device journal stopped at a corrupt record in " + file);
+                break;
+            }
+            try {
+                apply.accept(DeviceProtocol.Device.parseFrom(event));
+                events++;
+            } catch (InvalidProtocolBufferException ex) {
+                log.warn("Device journal skipped a malformed event in " + file + ": " + ex);
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return events;
+    }
+
+    /**
+     * Write out what a buffer holds, and clear it.
+     * @param out The file to write to
+     * @param buffer The buffer, in write mode
+     * @throws IOException The file could not be written
+     */
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Create a log file to append to.
+     * @param number The number of the log file
+     * @return the file, open for appending
+     * @throws IOException The file could not be created
+     */
+    private FileChannel openLog(long number) throws IOException {
+        return FileChannel.open(directory.resolve(String.format("%020d", number) + LOG_SUFFIX),
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Get the number of a log file.
+     * @param file The log file
+     * @return its number
+     */
+    private static long logNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+    }
+}
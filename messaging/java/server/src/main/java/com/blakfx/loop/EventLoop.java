@@ -0,0 +1,147 @@
+package com.blakfx.loop;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * A single thread running the tasks handed to it, one at a time and in the order they were handed over.
+ * The state a loop owns is only ever written by its thread, so it needs neither locks nor atomic updates.
+ * Tasks come in through a lock-free queue; the thread parks once it runs out, and is woken by the next task.
+ */
+final class EventLoop implements Runnable {
+
+    /**
+     * How long a thread waits for a full loop to make room, before looking again.
+     */
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    /**
+     * The loop whose thread is the current one, if any.
+     */
+    private static final ThreadLocal<EventLoop> current = new ThreadLocal<>();
+
+    /**
+     * This class' Logger instance.
+     */
+    private static final Logger log = LogManager.getLogger(EventLoop.class.getName());
+
+    /**
+     * The tasks waiting to run.
+     */
+    private final MpscQueue<Runnable> tasks = new MpscQueue<>();
+    /**
+     * The number of tasks waiting to run.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    /**
+     * Max number of tasks waiting to run before producers have to wait.
+     */
+    private final int maxPending;
+    /**
+     * The thread running the tasks.
+     */
+    private final Thread thread;
+    /**
+     * Whether the thread is parked, or about to be, so the next producer has to wake it.
+     */
+    private volatile boolean parked;
+    /**
+     * Whether the loop was shut down. Only written by the loop's own thread,
+     * read by producers so they never wait on a loop that is gone.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Constructs a loop and starts its thread.
+     * @param name The name of the thread
+     * @param maxPending Max number of tasks waiting to run before producers have to wait
+     */
+    EventLoop(String name, int maxPending) {
+        this.maxPending = maxPending;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Check whether the current thread is the thread of a loop.
+     * @return whether it is
+     */
+    static boolean inLoop() {
+        return current.get() != null;
+    }
+
+    /**
+     * Hand a task over to the loop.
+     * A thread handing tasks faster than the loop runs them waits for it to catch up,
+     * so a flood of requests backs up into the threads reading them rather than into memory.
+     * Loop threads never wait, as loops may hand tasks to each other. Tasks handed to a stopped loop are dropped.
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        if (stopped) {
+            return;
+        }
+        if (pending.getAndIncrement() >= maxPending && !inLoop()) {
+            while (pending.get() > maxPending && !stopped) {
+                LockSupport.parkNanos(BACKOFF_NANOS);
+            }
+        }
+        tasks.offer(task);
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Stop the loop once the tasks handed over so far have run. Tasks handed over later never run.
+     */
+    void shutdown() {
+        execute(() -> stopped = true);
+    }
+
+    /**
+     * Wait for the loop's thread to end, after <code>shutdown</code>.
+     * @param timeoutMillis How long to wait at most
+     * @return whether the thread ended in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        thread.join(Math.max(1, timeoutMillis));
+        return !thread.isAlive();
+    }
+
+    /**
+     * Get the number of tasks waiting to run.
+     * @return the number of tasks
+     */
+    int getPending() {
+        return pending.get();
+    }
+
+    @Override
+    public void run() {
+        current.set(this);
+        while (!stopped) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                parked = true;
+                // a task queued from now on sees the flag, and wakes the thread
+                if (tasks.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+            pending.decrementAndGet();
+            try {
+                task.run();
+            }
+            catch (RuntimeException ex) {
+                log.error("Task failed on " + thread.getName() + ": " + ex, ex);
+            }
+        }
+    }
+}
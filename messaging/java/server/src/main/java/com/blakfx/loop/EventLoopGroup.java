@@ -0,0 +1,124 @@
+package com.blakfx.loop;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of event loops, with state partitioned between them by key.
+ * All tasks for a given key run on the same loop, in the order they were handed over,
+ * so whatever state is keyed that way has a single writer and needs no locks;
+ * tasks for different keys run in parallel, so throughput scales with the number of loops.
+ */
+public class EventLoopGroup {
+
+    /**
+     * The loops, indexed by partition.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * Constructs a group and starts the thread of every loop.
+     * @param name The prefix of the thread names
+     * @param count The number of loops
+     * @param maxPending Max number of tasks waiting on a single loop before producers have to wait
+     */
+    public EventLoopGroup(String name, int count, int maxPending) {
+        loops = new EventLoop[Math.max(1, count)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(name + "-" + i, maxPending);
+        }
+    }
+
+    /**
+     * Run a task on the loop that owns an integer key, such as a device ID.
+     * @param key The key
+     * @param task The task to run
+     */
+    public void execute(int key, Runnable task) {
+        loops[partition(key)].execute(task);
+    }
+
+    /**
+     * Run a task on the loop that owns a string key, such as a username.
+     * @param key The key
+     * @param task The task to run
+     */
+    public void execute(String key, Runnable task) {
+        execute(key.hashCode(), task);
+    }
+
+    /**
+     * Get the partition an integer key belongs to.
+     * Keys are scrambled first, as device IDs on a cluster node all share the same remainder.
+     * @param key The key
+     * @return the index of the loop that owns it
+     */
+    public int partition(int key) {
+        int h = key * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), loops.length);
+    }
+
+    /**
+     * Get the number of loops.
+     * @return the number of loops
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Check whether the current thread is the thread of a loop, of any group.
+     * @return whether it is
+     */
+    public static boolean inLoop() {
+        return EventLoop.inLoop();
+    }
+
+    /**
+     * Get the number of tasks waiting to run, on all loops.
+     * @return the number of tasks
+     */
+    public long getPending() {
+        long total = 0;
+        for (EventLoop loop : loops) {
+            total += loop.getPending();
+        }
+        return total;
+    }
+
+    /**
+     * Wait until every task handed over so far, to any loop, has run.
+     * Must not be called from a loop thread.
+     * @param timeout How long to wait at most
+     * @param unit The unit of <code>timeout</code>
+     * @return whether every task ran in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(loops.length);
+        for (EventLoop loop : loops) {
+            loop.execute(done::countDown);
+        }
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Stop every loop once the tasks handed over so far have run, and wait for their threads to end.
+     * Must not be called from a loop thread.
+     * @param timeout How long to wait at most
+     * @param unit The unit of <code>timeout</code>
+     * @return whether every loop ended in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean ended = true;
+        for (EventLoop loop : loops) {
+            ended &= loop.awaitTermination(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+        return ended;
+    }
+}
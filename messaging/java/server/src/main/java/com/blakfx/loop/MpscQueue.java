@@ -0,0 +1,82 @@
+package com.blakfx.loop;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free queue for many producers and a single consumer.
+ * Producers only ever swap the tail, with a single atomic operation, so they never retry nor wait on each other;
+ * the consumer owns the head and needs no atomic operation at all.
+ * A producer that was preempted between swapping the tail and linking its node makes the queue look empty
+ * until it resumes, which <code>EventLoop</code> accounts for by waking the consumer only after linking.
+ * @param <E> The type of the elements
+ */
+public final class MpscQueue<E> {
+
+    /**
+     * A link of the queue.
+     * @param <E> The type of the element
+     */
+    private static final class Node<E> {
+        /**
+         * The element, cleared once consumed.
+         */
+        E value;
+        /**
+         * The next link, set once by the producer that enqueued it.
+         */
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The last link enqueued, swapped by producers.
+     */
+    private final AtomicReference<Node<E>> tail;
+    /**
+     * The last link consumed, only touched by the consumer. Its successor holds the next element.
+     */
+    private Node<E> head;
+
+    /**
+     * Constructs an empty queue.
+     */
+    public MpscQueue() {
+        head = new Node<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Add an element at the end of the queue. Safe to call from any thread.
+     * @param element The element to add, not null
+     */
+    public void offer(E element) {
+        Node<E> node = new Node<>(element);
+        tail.getAndSet(node).next = node;
+    }
+
+    /**
+     * Take the element at the front of the queue. Must only be called by the consumer.
+     * @return the element, or null if the queue is empty
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Check whether there is an element to take. Must only be called by the consumer.
+     * @return whether the queue is empty
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
@@ -0,0 +1,628 @@
+package com.blakfx.mailbox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Stores private messages for users who are offline, until they come back.
+ * Messages go into an append-only log, split into memory-mapped segment files shared by all users,
+ * and are flushed to disk in groups every <code>SYNC_MS</code>.
+ * Each user has an in-memory index of their pending records, rebuilt from the segments on startup,
+ * and a delivered offset (the last sequence number before which everything was delivered or dropped),
+ * persisted to an offsets file.
+ * <p>
+ * A record handed out by <code>drain</code> stays pending until <code>acknowledge</code> confirms it was
+ * written to the user, so a session lost in between only ever costs a redelivery, never the message.
+ * Segments are deleted once none of their records are pending. Records expire after a TTL,
+ * and each user's oldest records are dropped once the user goes over their byte quota.
+ * <p>
+ * So that no single client can fill the mailbox for everyone, records are only stored for users
+ * registered here, i.e. who identified on this server before, and each sender has a byte quota of their own
+ * past which their records are refused. Senders are not kept on disk, so the sender quotas start over on restart.
+ */
+public class Mailbox {
+
+    /**
+     * A record waiting for delivery.
+     */
+    private static final class Entry {
+        /**
+         * The sequence number of the record.
+         */
+        final long sequence;
+        /**
+         * When the record was stored, in ms since the epoch.
+         */
+        final long timestamp;
+        /**
+         * The segment holding the record.
+         */
+        final MailboxSegment segment;
+        /**
+         * The offset of the record in the segment.
+         */
+        final int offset;
+        /**
+         * The size of the record's payload, in bytes.
+         */
+        final int size;
+        /**
+         * The user who sent the record, or null if recovered from disk.
+         */
+        final String sender;
+
+        Entry(long sequence, long timestamp, MailboxSegment segment, int offset, int size, String sender) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * A user's pending records, oldest first.
+     */
+    private static final class UserQueue {
+        /**
+         * The pending records, handed out or not.
+         */
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        /**
+         * The total payload size of the pending records, in bytes.
+         */
+        long bytes;
+        /**
+         * The sequence number of the last record handed out by <code>drain</code>, 0 if none.
+         */
+        long sent;
+    }
+
+    /**
+     * A stored message handed out for delivery.
+     */
+    public static final class Message {
+        /**
+         * The sequence number of the message, to acknowledge it by.
+         */
+        private final long sequence;
+        /**
+         * The encoded message.
+         */
+        private final byte[] payload;
+
+        Message(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+
+        /**
+         * Get the sequence number of the message.
+         * @return the sequence number, to pass to <code>acknowledge</code> or <code>rewind</code>
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Get the encoded message, as it is to be sent to the user.
+         * @return the encoded message
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * The directory the log lives in; each node of a cluster uses a subdirectory named after its ID.
+     */
+    private static final String DIRECTORY = System.getProperty("com.blakfx.server.mailbox.dir", "mailbox");
+    /**
+     * The size of a segment file, in bytes.
+     */
+    private static final int SEGMENT_BYTES = Integer.getInteger("com.blakfx.server.mailbox.segmentBytes", 64 * 1024 * 1024);
+    /**
+     * How long a record is kept for an offline user, in ms.
+     */
+    private static final long TTL_MS = Long.getLong("com.blakfx.server.mailbox.ttlMs", TimeUnit.DAYS.toMillis(7));
+    /**
+     * Max payload bytes kept per user; older records are dropped past it.
+     */
+    private static final long MAX_BYTES_PER_USER = Long.getLong("com.blakfx.server.mailbox.maxBytesPerUser", 64L * 1024 * 1024);
+    /**
+     * How often new records are flushed to disk and delivered offsets saved, in ms.
+     * Stores don't wait for the disk, so a crash may lose the records of the last period,
+     * and deliveries since the last save are made again.
+     */
+    private static final long SYNC_MS = Long.getLong("com.blakfx.server.mailbox.syncMs", 50L);
+    /**
+     * Max payload bytes pending from a single sender, across all recipients; new records are refused past it.
+     */
+    private static final long MAX_BYTES_PER_SENDER = Long.getLong("com.blakfx.server.mailbox.maxBytesPerSender", 64L * 1024 * 1024);
+    /**
+     * Max payload bytes kept in total; new records are refused past it.
+     */
+    private static final long MAX_BYTES = Long.getLong("com.blakfx.server.mailbox.maxBytes", 1024L * 1024 * 1024);
+    /**
+     * The file holding each user's delivered offset.
+     */
+    private static final String OFFSETS_FILE = "offsets";
+    /**
+     * The file holding the registered users, one per line.
+     */
+    private static final String USERS_FILE = "users";
+    /**
+     * The file name suffix of segment files.
+     */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * This class' Logger instance.
+     */
+    static Logger log = LogManager.getLogger(Mailbox.class.getName());
+
+    /**
+     * The directory the log lives in.
+     */
+    private final Path directory;
+    /**
+     * The segments with pending records, plus the one being appended to, oldest first.
+     */
+    private final ArrayDeque<MailboxSegment> segments = new ArrayDeque<>();
+    /**
+     * Each user's pending records.
+     */
+    private final Map<String, UserQueue> queues = new HashMap<>();
+    /**
+     * Each user's delivered offset.
+     */
+    private final Properties offsets = new Properties();
+    /**
+     * The users records may be stored for.
+     */
+    private final Set<String> users = new HashSet<>();
+    /**
+     * The payload size of the pending records of each sender since startup, in bytes.
+     */
+    private final Map<String, Long> senderBytes = new HashMap<>();
+    /**
+     * Drops expired records and dead segments, flushes new records, and saves the delivered offsets.
+     */
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mailbox-cleaner");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * The sequence number of the next record.
+     */
+    private long nextSequence = 1;
+    /**
+     * The total payload size of all pending records, in bytes.
+     */
+    private long totalBytes;
+    /**
+     * Whether the offsets changed since they were last saved.
+     */
+    private boolean offsetsDirty;
+    /**
+     * Whether the mailbox could open its directory; if not, nothing is stored.
+     */
+    private boolean available;
+
+    /**
+     * Constructs the mailbox in the configured directory, in a subdirectory of its own per cluster node,
+     * recovering any pending records. Nodes started from the same directory must not share segments.
+     * @param nodeId The ID of this cluster node, or null when running alone
+     */
+    public Mailbox(String nodeId) {
+        this((nodeId == null) ? Paths.get(DIRECTORY) : Paths.get(DIRECTORY, nodeId));
+    }
+
+    /**
+     * Constructs the mailbox in a given directory, recovering any pending records.
+     * @param directory The directory the log lives in
+     */
+    public Mailbox(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            recover();
+            available = true;
+        } catch (IOException ex) {
+            log.error("Mailbox disabled - could not open " + directory.toAbsolutePath() + ": " + ex);
+        }
+        long period = Math.max(1000, Math.min(TTL_MS / 10, TimeUnit.MINUTES.toMillis(1)));
+        cleaner.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+        cleaner.scheduleWithFixedDelay(this::sync, SYNC_MS, SYNC_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register a user, so messages can be stored for them from then on.
+     * @param user The user, usually just identified
+     */
+    public synchronized void register(String user) {
+        if (!available || users.contains(user) || user.indexOf('\n') >= 0 || user.indexOf('\r') >= 0) {
+            return;
+        }
+        try {
+            Files.write(directory.resolve(USERS_FILE), Collections.singletonList(user), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            users.add(user);
+        } catch (IOException ex) {
+            log.error("Mailbox could not register " + user + ": " + ex);
+        }
+    }
+
+    /**
+     * Store a message for a user.
+     * @param sender The identified user sending the message
+     * @param recipient The user the message is for, who must be registered
+     * @param payload The encoded message, as it is to be sent to the user
+     * @return whether the message was stored
+     */
+    public synchronized boolean store(String sender, String recipient, byte[] payload) {
+        if (!available) {
+            return false;
+        }
+        if (!users.contains(recipient)) {
+            log.warn("Mailbox refused message for " + recipient + " - unknown recipient");
+            return false;
+        }
+        if (senderBytes.getOrDefault(sender, 0L) + payload.length > MAX_BYTES_PER_SENDER) {
+            log.warn("Mailbox refused message for " + recipient + " - " + sender + " over quota");
+            return false;
+        }
+        byte[] encodedRecipient = recipient.getBytes(StandardCharsets.UTF_8);
+        int recordSize = MailboxSegment.recordSize(encodedRecipient, payload.length);
+        if (encodedRecipient.length > Short.MAX_VALUE || recordSize + Integer.BYTES > SEGMENT_BYTES) {
+            log.warn("Mailbox refused message for " + recipient + " - too large (" + payload.length + " bytes)");
+            return false;
+        }
+        if (totalBytes + payload.length > MAX_BYTES) {
+            log.warn("Mailbox refused message for " + recipient + " - mailbox full (" + totalBytes + " bytes)");
+            return false;
+        }
+        try {
+            MailboxSegment active = segments.peekLast();
+            if (active == null || !active.hasRoom(recordSize)) {
+                active = new MailboxSegment(segmentPath(nextSequence), nextSequence, SEGMENT_BYTES);
+                segments.addLast(active);
+            }
+            long now = System.currentTimeMillis();
+            long sequence = nextSequence++;
+            int offset = active.append(sequence, now, encodedRecipient, payload);
+            UserQueue queue = queues.computeIfAbsent(recipient, k -> new UserQueue());
+            queue.entries.addLast(new Entry(sequence, now, active, offset, payload.length, sender));
+            queue.bytes += payload.length;
+            totalBytes += payload.length;
+            senderBytes.merge(sender, (long) payload.length, Long::sum);
+
+            // size-based retention: make room by dropping the user's oldest messages
+            boolean dropped = false;
+            while (queue.bytes > MAX_BYTES_PER_USER && queue.entries.size() > 1) {
+                release(recipient, queue, queue.entries.pollFirst());
+                dropped = true;
+            }
+            if (dropped) {
+                log.warn("Mailbox for " + recipient + " over quota - dropped oldest messages");
+                deleteDeadSegments();
+            }
+            return true;
+        } catch (IOException ex) {
+            log.error("Mailbox could not store message for " + recipient + ": " + ex);
+            return false;
+        }
+    }
+
+    /**
+     * Hand out the next batch of pending messages for a user, oldest first, skipping those already handed out.
+     * The messages stay pending until acknowledged, and are handed out again once rewound.
+     * @param recipient The user to take messages for
+     * @param maxMessages Max number of messages to take
+     * @param maxBytes Max total size of the messages to take, though the first message is always taken
+     * @return the messages, empty if none
+     */
+    public synchronized List<Message> drain(String recipient, int maxMessages, long maxBytes) {
+        UserQueue queue = queues.get(recipient);
+        if (queue == null || maxMessages <= 0) {
+            return Collections.emptyList();
+        }
+        List<Message> batch = new ArrayList<>();
+        long bytes = 0;
+        for (Entry entry : queue.entries) {
+            if (entry.sequence <= queue.sent) {
+                continue;
+            }
+            if (batch.size() >= maxMessages || (!batch.isEmpty() && bytes + entry.size > maxBytes)) {
+                break;
+            }
+            bytes += entry.size;
+            batch.add(new Message(entry.sequence, entry.segment.readPayload(entry.offset)));
+            queue.sent = entry.sequence;
+        }
+        return batch;
+    }
+
+    /**
+     * Confirm a message handed out by <code>drain</code> was written to the user, so it is no longer pending.
+     * Messages can be acknowledged in any order; one already dropped or acknowledged is ignored.
+     * @param recipient The user the message is for
+     * @param sequence The sequence number of the message
+     */
+    public synchronized void acknowledge(String recipient, long sequence) {
+        UserQueue queue = queues.get(recipient);
+        if (queue == null) {
+            return;
+        }
+        for (Iterator<Entry> it = queue.entries.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.sequence > sequence) {
+                return;
+            }
+            if (entry.sequence == sequence) {
+                it.remove();
+                release(recipient, queue, entry);
+                if (queue.entries.isEmpty()) {
+                    queues.remove(recipient);
+                }
+                deleteDeadSegments();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hand out again, on the next <code>drain</code>, the pending messages of a user past a given one,
+     * e.g. as the frames they were sent in were refused, or the session they were sent to is gone.
+     * @param recipient The user the messages are for
+     * @param sequence The sequence number of the last message not to hand out again, 0 for all
+     */
+    public synchronized void rewind(String recipient, long sequence) {
+        UserQueue queue = queues.get(recipient);
+        if (queue != null) {
+            queue.sent = Math.min(queue.sent, sequence);
+        }
+    }
+
+    /**
+     * Check whether a user has pending messages not handed out yet.
+     * @param recipient The user to check
+     * @return whether <code>drain</code> would return anything
+     */
+    public synchronized boolean hasUnsent(String recipient) {
+        UserQueue queue = queues.get(recipient);
+        return queue != null && queue.entries.peekLast().sequence > queue.sent;
+    }
+
+    /**
+     * Get the number of messages waiting for a user, handed out or not.
+     * @param recipient The user to check
+     * @return the number of pending messages
+     */
+    public synchronized int getPendingCount(String recipient) {
+        UserQueue queue = queues.get(recipient);
+        return (queue == null) ? 0 : queue.entries.size();
+    }
+
+    /**
+     * Get the total size of the messages waiting for all users.
+     * @return the pending bytes
+     */
+    public synchronized long getPendingBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Stop the cleaner and close all segments; pending records stay on disk.
+     */
+    public synchronized void close() {
+        cleaner.shutdownNow();
+        if (available && offsetsDirty) {
+            try {
+                saveOffsets();
+            } catch (IOException ex) {
+                log.error("Mailbox could not save offsets on close: " + ex);
+            }
+        }
+        for (MailboxSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException ex) {
+                log.error("Mailbox could not close segment " + segment.baseSequence + ": " + ex);
+            }
+        }
+        segments.clear();
+        queues.clear();
+        senderBytes.clear();
+        available = false;
+    }
+
+    /**
+     * Rebuild the user indexes from the users file, the offsets file and the segment files.
+     * @throws IOException The directory could not be read
+     */
+    private void recover() throws IOException {
+        Path usersPath = directory.resolve(USERS_FILE);
+        if (Files.exists(usersPath)) {
+            users.addAll(Files.readAllLines(usersPath, StandardCharsets.UTF_8));
+        }
+        Path offsetsPath = directory.resolve(OFFSETS_FILE);
+        if (Files.exists(offsetsPath)) {
+            try (Reader reader = Files.newBufferedReader(offsetsPath, StandardCharsets.UTF_8)) {
+                offsets.load(reader);
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparing(Path::toString));
+
+        long expiredBefore = System.currentTimeMillis() - TTL_MS;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            MailboxSegment segment = new MailboxSegment(file, base, SEGMENT_BYTES);
+            segment.scan((seg, offset, sequence, timestamp, recipient, payloadSize) -> {
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                if (sequence <= getOffset(recipient) || timestamp < expiredBefore) {
+                    return;
+                }
+                UserQueue queue = queues.computeIfAbsent(recipient, k -> new UserQueue());
+                queue.entries.addLast(new Entry(sequence, timestamp, seg, offset, payloadSize, null));
+                queue.bytes += payloadSize;
+                totalBytes += payloadSize;
+                seg.live++;
+            });
+            segments.addLast(segment);
+        }
+        deleteDeadSegments();
+        log.info("Mailbox recovered " + totalBytes + " pending bytes for " + queues.size() + " users from " + directory.toAbsolutePath());
+    }
+
+    /**
+     * Drop records older than the TTL.
+     */
+    private synchronized void expire() {
+        if (!available) {
+            return;
+        }
+        long expiredBefore = System.currentTimeMillis() - TTL_MS;
+        boolean dropped = false;
+        for (Iterator<Map.Entry<String, UserQueue>> it = queues.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, UserQueue> user = it.next();
+            UserQueue queue = user.getValue();
+            while (!queue.entries.isEmpty() && queue.entries.peekFirst().timestamp < expiredBefore) {
+                release(user.getKey(), queue, queue.entries.pollFirst());
+                dropped = true;
+            }
+            if (queue.entries.isEmpty()) {
+                it.remove();
+            }
+        }
+        if (dropped) {
+            deleteDeadSegments();
+        }
+    }
+
+    /**
+     * Flush the segments appended to since the last flush, and save the delivered offsets if they changed.
+     */
+    private void sync() {
+        List<MailboxSegment> dirty = new ArrayList<>();
+        synchronized (this) {
+            if (!available) {
+                return;
+            }
+            for (MailboxSegment segment : segments) {
+                if (segment.isDirty()) {
+                    dirty.add(segment);
+                }
+            }
+            if (offsetsDirty) {
+                try {
+                    saveOffsets();
+                } catch (IOException ex) {
+                    log.error("Mailbox could not save delivered offsets: " + ex);
+                }
+            }
+        }
+        // outside the lock, stores go on while the disk catches up
+        for (MailboxSegment segment : dirty) {
+            try {
+                segment.flush();
+            } catch (RuntimeException ex) {
+                // deleted meanwhile, nothing left to keep
+                log.debug("Mailbox could not flush segment " + segment.baseSequence + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Mark a record as no longer pending, either delivered or dropped.
+     * The delivered offset only moves up to the oldest record still pending, so a record acknowledged
+     * ahead of older ones may be delivered again after a restart, but never one left behind.
+     * @param recipient The user the record is for
+     * @param queue The user's queue, the record already taken off it; the caller drops the queue once empty
+     * @param entry The record
+     */
+    private void release(String recipient, UserQueue queue, Entry entry) {
+        queue.bytes -= entry.size;
+        totalBytes -= entry.size;
+        entry.segment.live--;
+        if (entry.sender != null) {
+            senderBytes.computeIfPresent(entry.sender, (k, bytes) -> (bytes == entry.size) ? null : bytes - entry.size);
+        }
+        long delivered = queue.entries.isEmpty() ? entry.sequence : queue.entries.peekFirst().sequence - 1;
+        if (delivered > getOffset(recipient)) {
+            offsets.setProperty(recipient, Long.toString(delivered));
+            offsetsDirty = true;
+        }
+    }
+
+    /**
+     * Get a user's delivered offset.
+     * @param recipient The user
+     * @return the last sequence number delivered or dropped for the user, 0 if none
+     */
+    private long getOffset(String recipient) {
+        return Long.parseLong(offsets.getProperty(recipient, "0"));
+    }
+
+    /**
+     * Delete the oldest segments once none of their records are pending.
+     * The segment being appended to is kept, unless it is fully expired.
+     */
+    private void deleteDeadSegments() {
+        long expiredBefore = System.currentTimeMillis() - TTL_MS;
+        while (!segments.isEmpty()) {
+            MailboxSegment oldest = segments.peekFirst();
+            boolean active = segments.size() == 1;
+            if (oldest.live > 0 || (active && oldest.newestTimestamp >= expiredBefore)) {
+                return;
+            }
+            segments.pollFirst();
+            try {
+                oldest.delete();
+            } catch (IOException ex) {
+                log.error("Mailbox could not delete segment " + oldest.baseSequence + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Atomically replace the offsets file with the current offsets.
+     * Offsets of users with nothing left in any segment are forgotten.
+     * @throws IOException The file could not be written
+     */
+    private void saveOffsets() throws IOException {
+        long firstSequence = segments.isEmpty() ? nextSequence : segments.peekFirst().baseSequence;
+        offsets.entrySet().removeIf(e -> Long.parseLong((String) e.getValue()) < firstSequence);
+        Path tmp = directory.resolve(OFFSETS_FILE + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            offsets.store(writer, null);
+        }
+        Files.move(tmp, directory.resolve(OFFSETS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        offsetsDirty = false;
+    }
+
+    /**
+     * Get the file of a segment.
+     * @param baseSequence The first sequence number of the segment
+     * @return the segment's file
+     */
+    private Path segmentPath(long baseSequence) {
+        return directory.resolve(String.format("%020d", baseSequence) + SEGMENT_SUFFIX);
+    }
+}
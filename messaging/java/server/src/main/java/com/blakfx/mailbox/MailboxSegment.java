@@ -0,0 +1,205 @@
+package com.blakfx.mailbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One file of the mailbox log, memory-mapped in full.
+ * Records are appended one after the other, each laid out as:
+ * <code>int length | long sequence | long timestamp | short recipientLength | recipient | payload</code>,
+ * where <code>length</code> counts everything after itself. The length is written last,
+ * so a record torn by a crash reads as the end of the segment.
+ * Appends only write to the mapping; <code>flush</code> writes them to disk, in groups.
+ */
+class MailboxSegment {
+
+    /**
+     * Size of the fixed part of a record, after the length.
+     */
+    private static final int HEADER_BYTES = Long.BYTES + Long.BYTES + Short.BYTES;
+
+    /**
+     * Called for each record found while scanning a segment.
+     */
+    interface RecordVisitor {
+        /**
+         * Visit a record.
+         * @param segment The segment holding the record
+         * @param offset The offset of the record in the segment
+         * @param sequence The sequence number of the record
+         * @param timestamp When the record was appended, in ms since the epoch
+         * @param recipient The user the record is for
+         * @param payloadSize The size of the record's payload, in bytes
+         */
+        void visit(MailboxSegment segment, int offset, long sequence, long timestamp, String recipient, int payloadSize);
+    }
+
+    /**
+     * The first sequence number this segment may hold, also used as its file name.
+     */
+    final long baseSequence;
+    /**
+     * The segment's file.
+     */
+    private final Path path;
+    /**
+     * The segment's file, open for the lifetime of the segment.
+     */
+    private final FileChannel channel;
+    /**
+     * The whole file, mapped.
+     */
+    private final MappedByteBuffer buffer;
+    /**
+     * Where the next record goes.
+     */
+    private int writePosition;
+    /**
+     * Whether records were appended since the last flush.
+     */
+    private volatile boolean dirty;
+    /**
+     * Number of records in this segment still waiting for delivery.
+     */
+    int live;
+    /**
+     * When the newest record of this segment was appended, in ms since the epoch.
+     */
+    long newestTimestamp;
+
+    /**
+     * Opens a segment file, creating it at the given size if needed.
+     * @param path The segment's file
+     * @param baseSequence The first sequence number this segment may hold
+     * @param size The size to map, in bytes
+     * @throws IOException The file could not be opened or mapped
+     */
+    MailboxSegment(Path path, long baseSequence, int size) throws IOException {
+        this.path = path;
+        this.baseSequence = baseSequence;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+    }
+
+    /**
+     * Get the space a record takes in a segment.
+     * @param recipient The encoded user the record is for
+     * @param payloadSize The size of the payload, in bytes
+     * @return the record size, in bytes
+     */
+    static int recordSize(byte[] recipient, int payloadSize) {
+        return Integer.BYTES + HEADER_BYTES + recipient.length + payloadSize;
+    }
+
+    /**
+     * Check whether a record of a given size still fits in this segment.
+     * @param recordSize The size of the record, in bytes
+     * @return whether it fits
+     */
+    boolean hasRoom(int recordSize) {
+        // keep room for the zero length that ends the segment
+        return writePosition + recordSize + Integer.BYTES <= buffer.capacity();
+    }
+
+    /**
+     * Append a record, to be written to disk by the next <code>flush</code>.
+     * @param sequence The sequence number of the record
+     * @param timestamp When the record is appended, in ms since the epoch
+     * @param recipient The encoded user the record is for
+     * @param payload The payload
+     * @return the offset of the record in the segment
+     */
+    int append(long sequence, long timestamp, byte[] recipient, byte[] payload) {
+        int offset = writePosition;
+        ByteBuffer out = buffer.duplicate();
+        out.position(offset + Integer.BYTES);
+        out.putLong(sequence).putLong(timestamp).putShort((short) recipient.length).put(recipient).put(payload);
+        buffer.putInt(offset, HEADER_BYTES + recipient.length + payload.length);
+        dirty = true;
+        writePosition = out.position();
+        live++;
+        newestTimestamp = timestamp;
+        return offset;
+    }
+
+    /**
+     * Check whether records were appended since the last flush.
+     * @return whether the segment needs flushing
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Write the records appended since the last flush to disk.
+     * Needs no lock against appends; what they write meanwhile is flushed now or next time.
+     */
+    void flush() {
+        dirty = false;
+        buffer.force();
+    }
+
+    /**
+     * Read the payload of a record.
+     * @param offset The offset of the record in the segment
+     * @return a copy of the payload
+     */
+    byte[] readPayload(int offset) {
+        int length = buffer.getInt(offset);
+        int recipientLength = buffer.getShort(offset + Integer.BYTES + Long.BYTES + Long.BYTES);
+        byte[] payload = new byte[length - HEADER_BYTES - recipientLength];
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset + Integer.BYTES + HEADER_BYTES + recipientLength);
+        in.get(payload);
+        return payload;
+    }
+
+    /**
+     * Walk every complete record of the segment, and move the write position past the last one.
+     * @param visitor Called for each record
+     */
+    void scan(RecordVisitor visitor) {
+        int offset = 0;
+        while (offset + Integer.BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + Integer.BYTES + length > buffer.capacity()) {
+                break;
+            }
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset + Integer.BYTES);
+            long sequence = in.getLong();
+            long timestamp = in.getLong();
+            byte[] recipient = new byte[in.getShort()];
+            in.get(recipient);
+            visitor.visit(this, offset, sequence, timestamp, new String(recipient, StandardCharsets.UTF_8),
+                          length - HEADER_BYTES - recipient.length);
+            newestTimestamp = Math.max(newestTimestamp, timestamp);
+            offset += Integer.BYTES + length;
+        }
+        writePosition = offset;
+    }
+
+    /**
+     * Close the segment and delete its file.
+     * @throws IOException The file could not be deleted
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Close the segment, keeping its file.
+     * @throws IOException The file could not be closed
+     */
+    void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,236 @@
+package com.blakfx.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size latency histogram in the style of HdrHistogram: each power of two is split into
+ * <code>SUB_BUCKETS</code> linear buckets, so any recorded value is off by at most 1/16 (about 6%).
+ * Recording is a handful of atomic adds with no allocation.
+ * <p>
+ * The count and sum never reset, so rates and averages are derived by whoever scrapes them.
+ * Quantiles and max cover a sliding window of the last <code>WINDOW_MS</code> instead, so they follow the current latency
+ * rather than all of it since startup: values go to one of <code>SLOTS</code> slots by the time they are recorded,
+ * a slot being cleared when time comes back around to it, and only the slots of the window are read.
+ * The window thus spans between <code>WINDOW_MS</code> less one slot and <code>WINDOW_MS</code>;
+ * a value recorded just as its slot is cleared may be lost to the quantiles.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of linear buckets per power of two, as a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    /**
+     * Number of linear buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Largest power of two tracked; larger values land in the last bucket (2^40 ns is about 18 minutes).
+     */
+    private static final int MAX_MAGNITUDE = 40;
+    /**
+     * Number of buckets of a slot.
+     */
+    private static final int BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+    /**
+     * How far back quantiles and max look, in ms.
+     */
+    static final long WINDOW_MS = Long.getLong("com.blakfx.server.metrics.windowMs", 60_000L);
+    /**
+     * Number of slots the window is split into; the more, the smoother it slides.
+     */
+    private static final int SLOTS = 6;
+    /**
+     * How long each slot covers, in ns.
+     */
+    private static final long SLOT_NANOS = Math.max(1, TimeUnit.MILLISECONDS.toNanos(WINDOW_MS) / SLOTS);
+
+    /**
+     * The number of values recorded in each bucket, slot after slot.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(SLOTS * BUCKETS);
+    /**
+     * The period each slot holds the values of, counted in slots since the <code>System.nanoTime()</code> origin.
+     */
+    private final AtomicLongArray periods = new AtomicLongArray(SLOTS);
+    /**
+     * The largest value recorded in each slot, in ns.
+     */
+    private final LongAccumulator[] maxes = new LongAccumulator[SLOTS];
+    /**
+     * The number of values recorded.
+     */
+    private final LongAdder count = new LongAdder();
+    /**
+     * The sum of the values recorded, in ns.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Constructs an empty histogram.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < SLOTS; i++) {
+            maxes[i] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    /**
+     * Record a latency.
+     * @param nanos The latency, in ns; negative values count as 0
+     */
+    public void record(long nanos) {
+        record(nanos, System.nanoTime());
+    }
+
+    /**
+     * Record the time elapsed since a start time.
+     * @param startNanos The start time, as <code>System.nanoTime()</code>
+     */
+    public void recordSince(long startNanos) {
+        long now = System.nanoTime();
+        record(now - startNanos, now);
+    }
+
+    /**
+     * Record a latency in the slot of the current period.
+     * @param nanos The latency, in ns; negative values count as 0
+     * @param now The current time, as <code>System.nanoTime()</code>
+     */
+    private void record(long nanos, long now) {
+        long value = Math.max(0, nanos);
+        int slot = slot(Math.floorDiv(now, SLOT_NANOS));
+        buckets.incrementAndGet(slot * BUCKETS + bucketIndex(value));
+        maxes[slot].accumulate(value);
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Get the slot of a period, clearing it first if it still holds an older period.
+     * @param period The period, in slots since the <code>System.nanoTime()</code> origin
+     * @return the slot
+     */
+    private int slot(long period) {
+        int slot = (int) Math.floorMod(period, (long) SLOTS);
+        long held = periods.get(slot);
+        if (held != period && periods.compareAndSet(slot, held, period)) {
+            // only the thread moving the slot on clears it
+            for (int i = slot * BUCKETS; i < (slot + 1) * BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            maxes[slot].reset();
+        }
+        return slot;
+    }
+
+    /**
+     * Check whether a slot holds a period of the window.
+     * @param slot The slot
+     * @param current The current period
+     * @return whether its values are to be read
+     */
+    private boolean inWindow(int slot, long current) {
+        return periods.get(slot) > current - SLOTS;
+    }
+
+    /**
+     * Get the number of values recorded since startup.
+     * @return the count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the sum of the values recorded since startup.
+     * @return the sum, in ns
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the largest value recorded within the window.
+     * @return the max, in ns, or 0 if nothing was recorded
+     */
+    public long getMax() {
+        long current = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+        long max = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (inWindow(slot, current)) {
+                max = Math.max(max, maxes[slot].get());
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Get the value below which a given fraction of the values recorded within the window fall.
+     * Concurrent recording may skew the result slightly, never by more than the values recorded meanwhile.
+     * @param quantile The fraction, from 0 to 1
+     * @return the upper bound of the bucket holding that value, in ns, or 0 if nothing was recorded
+     */
+    public long getQuantile(double quantile) {
+        long current = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (inWindow(slot, current)) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += buckets.get(slot * BUCKETS + i);
+                }
+            }
+        }
+        for (long bucket : counts) {
+            total += bucket;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long max = getMax();
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Get the bucket a value is recorded in.
+     * Values below <code>SUB_BUCKETS</code> get a bucket each; above that, the top
+     * <code>SUB_BUCKET_BITS</code> bits below the leading one pick the bucket within the power of two.
+     * @param value The value, not negative
+     * @return the bucket index
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+        int sub = (int) ((Math.min(value, (1L << (MAX_MAGNITUDE + 1)) - 1) >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the largest value a bucket holds.
+     * @param index The bucket index
+     * @return the upper bound, inclusive
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return (1L << magnitude) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,202 @@
+package com.blakfx.metrics;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * The server's metrics registry: counters, gauges and latency histograms, each registered once under
+ * a Prometheus-style name (labels included, e.g. <code>blakfx_messages_received_total{action="chat"}</code>).
+ * Callers keep the returned counter or histogram and update it directly, so recording never
+ * looks anything up. Everything is exposed over JMX as <code>com.blakfx.server:type=Metrics</code>,
+ * and as plain text by the <code>MetricsServlet</code>.
+ */
+public class Metrics {
+
+    /**
+     * The name the metrics are registered under with JMX.
+     */
+    static final String OBJECT_NAME = "com.blakfx.server:type=Metrics";
+    /**
+     * Quantiles reported for each histogram.
+     */
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * The counters, by name.
+     */
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    /**
+     * The gauges, by name; read when scraped.
+     */
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    /**
+     * The latency histograms, by name.
+     */
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    /**
+     * What the metrics exported for histograms measure, by metric name without labels.
+     */
+    private static final Map<String, String> descriptions = new ConcurrentSkipListMap<>();
+
+    /**
+     * This class' Logger instance.
+     */
+    private static Logger log = LogManager.getLogger(Metrics.class.getName());
+
+    static {
+        registerMBean();
+    }
+
+    /**
+     * Get a counter, registering it if needed.
+     * @param name The name of the counter
+     * @return the counter
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Get a latency histogram, registering it if needed.
+     * @param name The name of the histogram, without unit
+     * @return the histogram
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> {
+            String base = withoutLabels(withSuffix(n, "_seconds"));
+            long ms = LatencyHistogram.WINDOW_MS;
+            String window = (ms % 1000 == 0) ? (ms / 1000) + " s" : ms + " ms";
+            descriptions.put(base, "Latency quantiles over the last " + window + "; sum and count since startup");
+            descriptions.put(base + "_max", "Largest latency over the last " + window);
+            return new LatencyHistogram();
+        });
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name.
+     * @param name The name of the gauge
+     * @param value Reads the current value
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Get the current value of every metric, with histograms flattened into their quantiles, sum, count and max.
+     * Quantiles and max only cover the histograms' sliding window, while sum and count cover everything since startup.
+     * @return the values, by name; latencies in seconds
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new ConcurrentSkipListMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            String base = withSuffix(name, "_seconds");
+            for (double quantile : QUANTILES) {
+                values.put(withLabel(base, "quantile", Double.toString(quantile)), seconds(histogram.getQuantile(quantile)));
+            }
+            values.put(withSuffix(base, "_sum"), seconds(histogram.getSum()));
+            values.put(withSuffix(base, "_count"), histogram.getCount());
+            values.put(withSuffix(base, "_max"), seconds(histogram.getMax()));
+        });
+        return values;
+    }
+
+    /**
+     * Write every metric in the Prometheus text format, one <code>name value</code> line each,
+     * after a <code># HELP</code> line for each histogram telling which of its metrics are windowed.
+     * @param out The writer to write to
+     */
+    public static void write(PrintWriter out) {
+        descriptions.forEach((name, help) -> out.append("# HELP ").append(name).append(' ').append(help).append('\n'));
+        snapshot().forEach((name, value) -> out.append(name).append(' ').append(value.toString()).append('\n'));
+    }
+
+    /**
+     * Add a suffix to a metric name, before its labels if any.
+     * @param name The metric name
+     * @param suffix The suffix
+     * @return the suffixed name
+     */
+    private static String withSuffix(String name, String suffix) {
+        int brace = name.indexOf('{');
+        return (brace < 0) ? name + suffix : name.substring(0, brace) + suffix + name.substring(brace);
+    }
+
+    /**
+     * Get what a metric measures, for the metrics exported for histograms.
+     * @param name The metric name, labels included
+     * @return the description, or null if there is none
+     */
+    static String describe(String name) {
+        String base = withoutLabels(name);
+        String help = descriptions.get(base);
+        if (help == null && (base.endsWith("_sum") || base.endsWith("_count"))) {
+            help = descriptions.get(base.substring(0, base.lastIndexOf('_')));
+        }
+        return help;
+    }
+
+    /**
+     * Drop the labels of a metric name, if any.
+     * @param name The metric name
+     * @return the name without labels
+     */
+    private static String withoutLabels(String name) {
+        int brace = name.indexOf('{');
+        return (brace < 0) ? name : name.substring(0, brace);
+    }
+
+    /**
+     * Add a label to a metric name that may already have some.
+     * @param name The metric name
+     * @param label The label name
+     * @param value The label value
+     * @return the labelled name
+     */
+    private static String withLabel(String name, String label, String value) {
+        int brace = name.indexOf('{');
+        String pair = label + "=\"" + value + "\"";
+        if (brace < 0) {
+            return name + "{" + pair + "}";
+        }
+        String base = name.substring(0, brace);
+        String labels = name.substring(brace + 1, name.length() - 1);
+        return base + "{" + labels + "," + pair + "}";
+    }
+
+    /**
+     * Convert ns to seconds.
+     * @param nanos The duration, in ns
+     * @return the duration, in seconds
+     */
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * Expose the metrics over JMX, replacing what an earlier deployment of the app may have left behind.
+     */
+    private static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsDynamicMBean(), name);
+        } catch (JMException | SecurityException ex) {
+            log.warn("Could not expose metrics over JMX: " + ex);
+        }
+    }
+}
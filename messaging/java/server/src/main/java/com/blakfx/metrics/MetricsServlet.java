@@ -0,0 +1,36 @@
+package com.blakfx.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves every metric as plain text, in the Prometheus text format, for scrapers.
+ * Mapped to <code>/metrics</code> in <code>web.xml</code>, next to the <code>/actions</code> endpoint.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    /**
+     * Serialization version, servlets being serializable.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Write the current value of every metric.
+     * @param request The scrape request
+     * @param response The response to write the metrics to
+     * @throws IOException The response could not be written
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        Metrics.write(out);
+        out.flush();
+    }
+}
@@ -1,13 +1,55 @@
 package com.blakfx.model;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Represents any device, and allows for add/remove/toggle operations.
  * Additionally, chat is implemented alongside it. That allows for the eventual
  * integration of device actions into the chat client, as user commands.
  * Based from: https://www.oracle.com/webfolder/technetwork/tutorials/obe/java/HomeWebsocket/WebsocketHome.html
+ * <p>
+ * The status is versioned: every change bumps the version, and status and version only ever change together,
+ * through compare-and-set, so a change is never lost nor applied over a newer one.
+ * Anything sent or kept about the status, e.g. a frame or a journal record, reads both at once through
+ * <code>getState</code>, so it never pairs a status with the version of another.
  */
 public class Device {
 
+    /**
+     * A status with its version, replaced as a whole.
+     */
+    public static final class State {
+        /**
+         * The status of the device.
+         */
+        private final String status;
+        /**
+         * The number of changes the status went through.
+         */
+        private final long version;
+
+        State(String status, long version) {
+            this.status = status;
+            this.version = version;
+        }
+
+        /**
+         * Get the status.
+         * @return the device status
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the version of the status.
+         * @return the device version
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
     /**
      * The ID of the device.
      */
@@ -17,9 +59,9 @@ public class Device {
      */
     private String name;
     /**
-     * The status of the device.
+     * The status of the device, with its version.
      */
-    private String status;
+    private final AtomicReference<State> state = new AtomicReference<>(new State(null, 0));
     /**
      * The type of the device.
      */
@@ -59,7 +101,23 @@ public class Device {
      * @return the device status
      */
     public String getStatus() {
-        return status;
+        return state.get().status;
+    }
+
+    /**
+     * Get this device's version, the number of changes its status went through.
+     * @return the device version
+     */
+    public long getVersion() {
+        return state.get().version;
+    }
+
+    /**
+     * Get this device's status together with its version, as of a single point in time.
+     * @return the device state
+     */
+    public State getState() {
+        return state.get();
     }
 
     /**
@@ -103,11 +161,52 @@ public class Device {
     }
 
     /**
-     * Set this device's status to a given value.
+     * Set this device's status to a given value, keeping its version.
+     * Meant for devices not shared yet; use <code>compareAndSetStatus</code> once they are.
      * @param status the value to set the status to
      */
     public void setStatus(String status) {
-        this.status = status;
+        state.set(new State(status, state.get().version));
+    }
+
+    /**
+     * Set this device's version to a given value, keeping its status.
+     * Meant for devices not shared yet, e.g. when copied from another server.
+     * @param version the value to set the version to
+     */
+    public void setVersion(long version) {
+        state.set(new State(state.get().status, version));
+    }
+
+    /**
+     * Change this device's status, if its version is still the one expected, bumping the version.
+     * @param expectedVersion the version the change was based on
+     * @param status the value to set the status to
+     * @return whether the status was changed
+     */
+    public boolean compareAndSetStatus(long expectedVersion, String status) {
+        State current = state.get();
+        return current.version == expectedVersion
+               && state.compareAndSet(current, new State(status, expectedVersion + 1));
+    }
+
+    /**
+     * Change this device's status to one made elsewhere, if it is newer than the current one.
+     * @param status the value to set the status to
+     * @param version the version of that status
+     * @return whether the status was changed
+     */
+    public boolean advanceStatus(String status, long version) {
+        State next = new State(status, version);
+        while (true) {
+            State current = state.get();
+            if (current.version >= version) {
+                return false;
+            }
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
+        }
     }
 
     /**
@@ -139,6 +238,7 @@ public class Device {
      */
     @Override
     public String toString() {
-        return super.toString() + " {" + name + ", " + status + ", " + type + ", " + description + "} ";
+        State current = state.get();
+        return super.toString() + " {" + name + ", " + current.status + " v" + current.version + ", " + type + ", " + description + "} ";
     }
 }
\ No newline at end of file
@@ -0,0 +1,275 @@
+package com.blakfx.model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of all registered devices, indexed by ID, with secondary indexes by type and owner.
+ * All operations are safe to call from many threads at once. Lookups, adds and removals
+ * are constant time. Readers that need to walk the whole registry get an immutable
+ * snapshot, which is rebuilt lazily after writes, so they never block or see writers mid-update.
+ * Note: a device's type and owner must not change once it is registered, as they are indexed.
+ */
+public class DeviceRegistry {
+
+    /**
+     * An immutable view of the registry, tagged with the write count it was taken at.
+     */
+    private static final class Snapshot {
+        /**
+         * The write count this snapshot was taken at.
+         */
+        final long version;
+        /**
+         * The devices in the registry at that point.
+         */
+        final List<Device> devices;
+
+        Snapshot(long version, List<Device> devices) {
+            this.version = version;
+            this.devices = devices;
+        }
+    }
+
+    /**
+     * Latest assigned device ID.
+     */
+    private final AtomicInteger lastId = new AtomicInteger(0);
+    /**
+     * The remainder, modulo <code>stride</code>, of every ID this registry assigns.
+     */
+    private final int offset;
+    /**
+     * The step between IDs this registry assigns.
+     */
+    private final int stride;
+    /**
+     * The registered devices, indexed by ID.
+     */
+    private final ConcurrentMap<Integer, Device> byId = new ConcurrentHashMap<>();
+    /**
+     * The IDs of the registered devices, indexed by type.
+     */
+    private final ConcurrentMap<String, Set<Integer>> byType = new ConcurrentHashMap<>();
+    /**
+     * The IDs of the registered devices, indexed by owner.
+     */
+    private final ConcurrentMap<String, Set<Integer>> byOwner = new ConcurrentHashMap<>();
+    /**
+     * Number of writes applied so far, used to tell whether the snapshot is stale.
+     */
+    private final AtomicLong writes = new AtomicLong();
+    /**
+     * The latest snapshot taken, possibly stale.
+     */
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+
+    /**
+     * Constructs a registry that assigns consecutive IDs.
+     */
+    public DeviceRegistry() {
+        this(0, 1);
+    }
+
+    /**
+     * Constructs a registry that only assigns IDs congruent to <code>offset</code> modulo <code>stride</code>,
+     * so registries on different cluster nodes never hand out the same ID.
+     * @param offset The remainder of every assigned ID, from 0 to <code>stride - 1</code>
+     * @param stride The step between assigned IDs, usually the number of nodes
+     */
+    public DeviceRegistry(int offset, int stride) {
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    /**
+     * Register a new device, assigning it the next device ID of this registry.
+     * @param device The device to register
+     * @return the ID assigned to the device
+     */
+    public int register(Device device) {
+        device.setId(nextId());
+        put(device);
+        return device.getId();
+    }
+
+    /**
+     * Assign the next device ID of this registry, without registering anything under it yet.
+     * @return the assigned ID
+     */
+    public int nextId() {
+        return lastId.updateAndGet(last -> {
+            int next = last + 1;
+            return next + Math.floorMod(offset - next, stride);
+        });
+    }
+
+    /**
+     * Put a device in the registry under its current ID, replacing any device with the same ID.
+     * Makes sure the ID sequence never hands out that ID again.
+     * @param device The device to put
+     */
+    public void put(Device device) {
+        skipTo(device.getId());
+        Device previous = byId.put(device.getId(), device);
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(byType, device.getType(), device.getId());
+        index(byOwner, device.getOwner(), device.getId());
+        writes.incrementAndGet();
+    }
+
+    /**
+     * Make sure the ID sequence never hands out IDs up to a given one, e.g. IDs assigned before a restart.
+     * @param id The last ID not to hand out
+     */
+    public void skipTo(int id) {
+        lastId.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Remove a device from the registry.
+     * @param id The ID of the device to remove
+     * @return the removed device, or null if no device has that ID
+     */
+    public Device remove(int id) {
+        Device device = byId.remove(id);
+        if (device != null) {
+            unindex(device);
+            writes.incrementAndGet();
+        }
+        return device;
+    }
+
+    /**
+     * Get a device by its ID.
+     * @param id The ID of the device
+     * @return the device, or null if no device has that ID
+     */
+    public Device get(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Get all devices of a given type.
+     * @param type The type to look for
+     * @return the devices of that type
+     */
+    public List<Device> getByType(String type) {
+        return lookup(byType, type);
+    }
+
+    /**
+     * Get all devices of a given owner.
+     * @param owner The owner to look for
+     * @return the devices of that owner
+     */
+    public List<Device> getByOwner(String owner) {
+        return lookup(byOwner, owner);
+    }
+
+    /**
+     * Get the number of registered devices.
+     * @return the number of devices
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Get the latest assigned device ID.
+     * @return the latest ID
+     */
+    public int getLastId() {
+        return lastId.get();
+    }
+
+    /**
+     * Get the stripe a device ID belongs to, i.e. the offset of the registry that assigns it.
+     * @param id The device ID
+     * @return the stripe, from 0 to <code>stride - 1</code>
+     */
+    public int getStripe(int id) {
+        return Math.floorMod(id, stride);
+    }
+
+    /**
+     * Get an immutable snapshot of all registered devices.
+     * The snapshot is shared between readers until the next write.
+     * @return the registered devices
+     */
+    public List<Device> snapshot() {
+        Snapshot current = snapshot;
+        long version = writes.get();
+        if (current.version != version) {
+            current = new Snapshot(version, Collections.unmodifiableList(new ArrayList<>(byId.values())));
+            snapshot = current;
+        }
+        return current.devices;
+    }
+
+    /**
+     * Add a device ID to a secondary index.
+     * @param index The index to add to
+     * @param key The key to add under, skipped if null
+     * @param id The device ID
+     */
+    private static void index(ConcurrentMap<String, Set<Integer>> index, String key, int id) {
+        if (key != null) {
+            index.compute(key, (k, ids) -> {
+                Set<Integer> result = (ids == null) ? ConcurrentHashMap.newKeySet() : ids;
+                result.add(id);
+                return result;
+            });
+        }
+    }
+
+    /**
+     * Remove a device from both secondary indexes.
+     * @param device The device to remove
+     */
+    private void unindex(Device device) {
+        unindex(byType, device.getType(), device.getId());
+        unindex(byOwner, device.getOwner(), device.getId());
+    }
+
+    /**
+     * Remove a device ID from a secondary index, dropping the key once empty.
+     * @param index The index to remove from
+     * @param key The key to remove under, skipped if null
+     * @param id The device ID
+     */
+    private static void unindex(ConcurrentMap<String, Set<Integer>> index, String key, int id) {
+        if (key != null) {
+            index.computeIfPresent(key, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    /**
+     * Resolve the device IDs under a secondary index key.
+     * @param index The index to look in
+     * @param key The key to look for
+     * @return the devices under that key
+     */
+    private List<Device> lookup(ConcurrentMap<String, Set<Integer>> index, String key) {
+        Set<Integer> ids = (key == null) ? null : index.get(key);
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        List<Device> result = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            Device device = byId.get(id);
+            if (device != null) {
+                result.add(device);
+            }
+        }
+        return result;
+    }
+}
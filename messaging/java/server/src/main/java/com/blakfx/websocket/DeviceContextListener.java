@@ -0,0 +1,29 @@
+package com.blakfx.websocket;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Releases what the <code>/actions</code> endpoint holds once the application is undeployed.
+ * Without it, the threads, files and ports of the old deployment outlive it, and get in the way of the next one.
+ * Registered in <code>web.xml</code>.
+ */
+public class DeviceContextListener implements ServletContextListener {
+
+    /**
+     * Nothing to do, the endpoint starts along with its first session.
+     * @param event The event
+     */
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+    }
+
+    /**
+     * Close the session handler, once the container stopped taking requests; nothing is created if no session ever came.
+     * @param event The event
+     */
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        DeviceWebSocketServer.closeSessionHandler();
+    }
+}
@@ -3,22 +3,38 @@ package com.blakfx.websocket;
 import javax.enterprise.context.*;
 import java.util.*;
 import javax.websocket.*;
-import javax.json.*;
-import javax.json.spi.*;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.logging.log4j.*;
 
+import com.blakfx.cluster.ClusterNode;
+import com.blakfx.journal.DeviceJournal;
+import com.blakfx.loop.EventLoopGroup;
+import com.blakfx.mailbox.Mailbox;
+import com.blakfx.metrics.LatencyHistogram;
+import com.blakfx.metrics.Metrics;
 import com.blakfx.model.Device;
+import com.blakfx.model.DeviceRegistry;
 
 import com.blakfx.protocols.DeviceProtocol;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
  * Handles most of the work dispatched to it by the <code>DeviceWebSocketServer</code>.
  * It keeps track of <code>UserSession</code>s, which consist of a session and a username,
  * as well as all the active devices on the server, and provides operations for managing these.
+ * <p>
+ * It is called from many websocket threads at once. Compound changes to shared state never run on those threads:
+ * they are handed to the event loop that owns the state, by device ID for devices, by username for
+ * bindings and stored private messages, and by name for room members, so each piece of state has a single writer.
+ * The indexes stay concurrent maps only so the websocket threads can read them.
  */
 @ApplicationScoped
 public class DeviceSessionHandler {
@@ -35,7 +51,38 @@ public class DeviceSessionHandler {
         /**
          * The user connected to the session.
          */
-        public String username;
+        public volatile String username;
+        /**
+         * Whether the session negotiated global chat messages via PB, rather than JSON.
+         */
+        public volatile boolean binaryChat;
+        /**
+         * The username this session is bound to, or being bound to.
+         * Claimed before binding, as two identifications with different names run on different loops.
+         */
+        public final AtomicReference<String> claimed = new AtomicReference<>();
+        /**
+         * Whether the session was removed. Checked by the loops after adding it anywhere,
+         * so a session closed meanwhile is not left behind.
+         */
+        public volatile boolean closed;
+        /**
+         * The queue of frames waiting to be sent to this session.
+         */
+        public final SessionOutbox outbox;
+        /**
+         * Bounds how fast this session can send.
+         */
+        public final SessionRateLimiter limiter = new SessionRateLimiter();
+        /**
+         * The rooms this session has joined. Only changed by the session's own messages, and when removed.
+         */
+        public final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        /**
+         * The IDs of the devices this session subscribed to. Only changed by the session's own messages,
+         * and when the devices or the session are removed.
+         */
+        public final Set<Integer> subscriptions = ConcurrentHashMap.newKeySet();
 
         /**
          * Constructs a partially complete user session.
@@ -45,86 +92,483 @@ public class DeviceSessionHandler {
          */
         public UserSession(Session session) {
             this.session = session;
+            this.outbox = new SessionOutbox(session, DeviceSessionHandler.this::unbindSession);
         }
     }
 
     /**
-     * Latest active device ID, used for assigning specific device IDs.
+     * Max number of devices sent per snapshot frame when a session opens.
+     */
+    private static final int SNAPSHOT_CHUNK_SIZE = Integer.getInteger("com.blakfx.server.snapshot.chunkSize", 256);
+    /**
+     * The active user sessions on this server, indexed by their websocket session ID.
+     */
+    private final ConcurrentMap<String, UserSession> sessionsById = new ConcurrentHashMap<>();
+    /**
+     * The identified user sessions on this server, indexed by their bound username.
+     * Used to route private messages without scanning every session.
+     */
+    private final ConcurrentMap<String, UserSession> sessionsByUsername = new ConcurrentHashMap<>();
+    /**
+     * The members of every room on this server, indexed by room name.
+     * A room only exists while it has members, so room messages only ever cost as much as their audience.
+     * The members of a room are only read and written on the loop that owns the room.
+     */
+    private final ConcurrentMap<String, Set<UserSession>> roomMembers = new ConcurrentHashMap<>();
+    /**
+     * Max number of rooms a single session can be in at once.
+     */
+    private static final int MAX_ROOMS_PER_SESSION = Integer.getInteger("com.blakfx.server.rooms.maxPerSession", 64);
+    /**
+     * Max length of a room name.
+     */
+    private static final int MAX_ROOM_NAME = 64;
+    /**
+     * The sessions subscribed to every device on this server, besides its owner, indexed by device ID.
+     * Changes of an owned device only go to its owner and subscribers, rather than to every session.
+     * The subscribers of a device are only read and written on the loop that owns the device.
+     */
+    private final ConcurrentMap<Integer, Set<UserSession>> deviceSubscribers = new ConcurrentHashMap<>();
+    /**
+     * Max number of devices a single session can subscribe to at once.
+     */
+    private static final int MAX_SUBSCRIPTIONS_PER_SESSION =
+            Integer.getInteger("com.blakfx.server.devices.maxSubscriptions", 1024);
+    /**
+     * Number of event loops the state of this server is partitioned between.
+     */
+    private static final int LOOPS = Integer.getInteger("com.blakfx.server.loops",
+                                                        Runtime.getRuntime().availableProcessors());
+    /**
+     * Max number of tasks waiting on a single event loop before the websocket threads have to wait.
+     */
+    private static final int LOOP_MAX_PENDING = Integer.getInteger("com.blakfx.server.loops.maxPending", 65536);
+    /**
+     * The event loops that apply every compound change to the state of this server.
+     */
+    private final EventLoopGroup loops = new EventLoopGroup("handler-loop", LOOPS, LOOP_MAX_PENDING);
+    /**
+     * How long closing waits for the event loops to run the tasks handed to them, in ms.
+     */
+    private static final long CLOSE_TIMEOUT_MS = 10_000L;
+    /**
+     * Links this server to the other servers of the cluster, if any.
+     */
+    private final ClusterNode cluster = new ClusterNode();
+    /**
+     * The active devices on this server, which also assigns device IDs.
+     * Each node of a cluster assigns its own share of the IDs, so they never collide.
+     */
+    private final DeviceRegistry devices = new DeviceRegistry(cluster.getNodeIndex(), cluster.getNodeCount());
+    /**
+     * Keeps the devices across restarts, as a snapshot plus a log of every device event applied since.
+     */
+    private final DeviceJournal journal = new DeviceJournal(cluster.getNodeId());
+    /**
+     * Holds private messages for users who are offline, delivered when they identify.
+     */
+    private final Mailbox mailbox = new Mailbox(cluster.getNodeId());
+    /**
+     * How long toggles are coalesced for before being sent, in ms; 0 sends every toggle at once.
+     * Only the latest state of a device is sent per window, so a flapping device costs at most a frame per window.
+     */
+    private static final long COALESCE_MS = Long.getLong("com.blakfx.server.devices.coalesceMs", 0L);
+    /**
+     * Sends the toggles coalesced during each window; the handler's own, as closing it stops the thread.
+     */
+    private final ScheduledExecutorService coalescer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "device-coalescer");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * The devices toggled since the last window, by ID, with whether the latest toggle came in via JSON.
+     */
+    private final ConcurrentMap<Integer, Boolean> pendingToggles = new ConcurrentHashMap<>();
+
+    /**
+     * How long queueing a frame for every session takes.
      */
-    private static final AtomicInteger deviceId = new AtomicInteger(0);
+    private static final LatencyHistogram fanoutLatency = Metrics.histogram("blakfx_fanout");
     /**
-     * The list of active user sessions on this server.
+     * The number of messages rejected for going over a session's rate limits.
      */
-    private final List<UserSession> userSessions = new ArrayList<>();
+    private static final LongAdder messagesRejected = Metrics.counter("blakfx_messages_rejected_total");
     /**
-     * The set of active devices on this server.
+     * The number of device toggles never sent on their own, as a later one superseded them within the window.
      */
-    private final Set<Device> devices = new HashSet<>();
+    private static final LongAdder togglesCoalesced = Metrics.counter("blakfx_device_toggles_coalesced_total");
 
     /**
      * This class' Logger instance.
      */
     static Logger log = LogManager.getLogger(DeviceSessionHandler.class.getName());
 
+    /**
+     * Constructs the handler, recovers the devices kept before the last restart,
+     * and joins the cluster if one is configured.
+     */
+    public DeviceSessionHandler() {
+        // recovered before joining the cluster, so peers get the recovered devices with the rest of this state
+        devices.skipTo(journal.recover(this::recoverDeviceEvent));
+        journal.start(this::encodeDeviceState, devices::getLastId);
+        cluster.start(new ClusterListener());
+        Metrics.gauge("blakfx_sessions_active", sessionsById::size);
+        Metrics.gauge("blakfx_users_identified", sessionsByUsername::size);
+        Metrics.gauge("blakfx_devices_active", devices::size);
+        Metrics.gauge("blakfx_device_journal_bytes", journal::getLogBytes);
+        Metrics.gauge("blakfx_rooms_active", roomMembers::size);
+        Metrics.gauge("blakfx_devices_subscribed", deviceSubscribers::size);
+        Metrics.gauge("blakfx_loop_pending_tasks", loops::getPending);
+        Metrics.gauge("blakfx_outbox_queued_frames", () -> sumQueued(false));
+        Metrics.gauge("blakfx_outbox_queued_bytes", () -> sumQueued(true));
+        Metrics.gauge("blakfx_outbox_queued_frames_max", () -> sessionsById.values().stream()
+                .mapToLong(s -> s.outbox.getQueuedFrames()).max().orElse(0));
+        if(COALESCE_MS > 0) {
+            coalescer.scheduleWithFixedDelay(this::flushToggles, COALESCE_MS, COALESCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Add up what is waiting in every session's outbox.
+     * @param bytes Whether to count bytes rather than frames
+     * @return the total
+     */
+    private long sumQueued(boolean bytes) {
+        long total = 0;
+        for (UserSession session : sessionsById.values()) {
+            total += bytes ? session.outbox.getQueuedBytes() : session.outbox.getQueuedFrames();
+        }
+        return total;
+    }
+
+    /**
+     * Applies what the other nodes of the cluster send to this server.
+     */
+    private class ClusterListener implements ClusterNode.Listener {
+
+        @Override
+        public void onRoutedFrame(String sender, String target, byte[] frame) {
+            deliverPrivateFrame(sender, target, frame);
+        }
+
+        @Override
+        public void onBroadcast(byte[] frame) {
+            try {
+                DeviceProtocol.ChatMsg message = DeviceProtocol.Device.parseFrom(frame).getMessage();
+                sendGlobalChat(null, message.getUsername(), message.getContent(), frame);
+            }
+            catch (InvalidProtocolBufferException ex) {
+                log.warn("Dropping malformed global chat message from cluster: " + ex);
+            }
+        }
+
+        @Override
+        public void onRoomMessage(String room, String text) {
+            OutboundFrame frame = OutboundFrame.ofText(text);
+            loops.execute(room, () -> sendToRoom(room, frame, null));
+        }
+
+        @Override
+        public void onDeviceEvent(byte[] event, boolean useJSON) {
+            applyDeviceEvent(event, useJSON);
+        }
+
+        @Override
+        public void onDeviceSync(int peerIndex, List<byte[]> state) {
+            applyDeviceSync(peerIndex, state);
+        }
+
+        @Override
+        public List<byte[]> getDeviceState() {
+            return encodeDeviceState();
+        }
+    }
+
+    /**
+     * Encode every active device as an add message via PB, to send the whole registry to another node or to disk.
+     * @return the encoded add messages
+     */
+    private List<byte[]> encodeDeviceState() {
+        List<Device> all = devices.snapshot();
+        List<byte[]> state = new ArrayList<>(all.size());
+        for (Device device : all) {
+            state.add(createAddMessagePB(device).toByteArray());
+        }
+        return state;
+    }
+
+    /**
+     * Apply a device event kept by the journal, while recovering on startup. Nothing is sent.
+     * The snapshot may already hold the event, so adds and toggles only apply over older versions.
+     * @param event The device event
+     */
+    private void recoverDeviceEvent(DeviceProtocol.Device event) {
+        switch (event.getActionCode()) {
+            case ADD: {
+                Device previous = devices.get(event.getId());
+                if(previous == null || previous.getVersion() <= event.getVersion()) {
+                    devices.put(toDevice(event));
+                }
+                break;
+            }
+            case REMOVE:
+                devices.remove(event.getId());
+                break;
+            case TOGGLE: {
+                Device device = devices.get(event.getId());
+                if(device != null) {
+                    device.advanceStatus(event.getStatus(), event.getVersion());
+                }
+                break;
+            }
+            default:
+                log.warn("Ignoring device event from journal: " + event.getActionCode());
+                break;
+        }
+    }
+
     /**
      * Adds the session to the user sessions list as a partially incomplete user session.
-     * It also creates all active devices from the device list on that session.
+     * It also sends the session a snapshot of all active devices, in as few frames as possible.
      * @param session The session to add
      * @param useJSON Whether to use JSON or PB
      */
     public void addSession(Session session, boolean useJSON) {
         log.info("Adding session: " + session);
-        userSessions.add(new UserSession(session));
-        for (Device device : devices) {
-            if(useJSON) {
-                JsonObject addMessage = createAddMessage(device);
-                sendToSession(session, addMessage);
+        UserSession userSession = new UserSession(session);
+        sessionsById.put(session.getId(), userSession);
+        sendSnapshot(userSession, useJSON);
+    }
+
+    /**
+     * Send the whole device registry to a session as snapshot messages.
+     * Devices are grouped in chunks of <code>SNAPSHOT_CHUNK_SIZE</code>, one frame per chunk.
+     * An empty registry still sends a single empty chunk, so the client can clear stale state.
+     * @param session The user session to send the snapshot to
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void sendSnapshot(UserSession session, boolean useJSON) {
+        List<Device> all = devices.snapshot();
+        int chunkCount = Math.max(1, (all.size() + SNAPSHOT_CHUNK_SIZE - 1) / SNAPSHOT_CHUNK_SIZE);
+        sendSnapshotChunks(session, all, 0, chunkCount, useJSON);
+    }
+
+    /**
+     * Send the next chunks of a snapshot, at the pace of the session's outbound queue.
+     * Like a mailbox backlog, only half of the queue is filled at once, so a large registry can't get
+     * a new session disconnected as a slow consumer; the rest follows, on a loop, once the queue has drained
+     * to its low watermark. Devices are sent as registered when their chunk is, so those removed meanwhile are left out.
+     * @param session The user session to send the snapshot to
+     * @param all The devices in the snapshot
+     * @param first The index of the first chunk to send
+     * @param chunkCount The total number of chunks in the snapshot
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void sendSnapshotChunks(UserSession session, List<Device> all, int first, int chunkCount, boolean useJSON) {
+        int maxFrames = SessionOutbox.MAX_QUEUED_FRAMES / 2 - session.outbox.getQueuedFrames();
+        long maxBytes = SessionOutbox.MAX_QUEUED_BYTES / 2 - session.outbox.getQueuedBytes();
+        int chunk = first;
+        long bytes = 0;
+        while(chunk < chunkCount && (chunk == first || (chunk - first < maxFrames && bytes < maxBytes))) {
+            List<Device> part = new ArrayList<>(SNAPSHOT_CHUNK_SIZE);
+            for (Device device : all.subList(chunk * SNAPSHOT_CHUNK_SIZE,
+                                             Math.min(all.size(), (chunk + 1) * SNAPSHOT_CHUNK_SIZE))) {
+                // as registered now, so a removal or replacement sent meanwhile isn't undone
+                Device current = devices.get(device.getId());
+                if(current != null) {
+                    part.add(current);
+                }
             }
-            else {
-                DeviceProtocol.Device addMessage = createAddMessagePB(device);
-                sendToSession(session, addMessage);
+            OutboundFrame frame = useJSON
+                    ? OutboundFrame.ofText(createSnapshotMessage(part, chunk, chunkCount))
+                    : OutboundFrame.of(createSnapshotMessagePB(part, chunk, chunkCount));
+            if(!session.outbox.offer(frame)) {
+                // the session is going away
+                return;
             }
+            bytes += frame.size();
+            chunk++;
         }
+        if(chunk == chunkCount) {
+            log.debug("Sent snapshot of " + all.size() + " devices in " + chunkCount + " chunks to session: " + session.session);
+            return;
+        }
+        int next = chunk;
+        String key = session.session.getId();
+        session.outbox.whenLowWater("snapshot", () -> loops.execute(key, () -> {
+            if(!session.closed) {
+                sendSnapshotChunks(session, all, next, chunkCount, useJSON);
+            }
+        }));
+    }
+
+    /**
+     * Binds a username to a session for a user session, with global chat messages via JSON.
+     * @param username The username to bind to the session
+     * @param session The session to bind the username to
+     */
+    public void bindUserToSession(String username, Session session) {
+        bindUserToSession(username, session, false);
     }
 
     /**
      * Binds a username to a session for a user session.
-     * Can fail if not unique username, or invalid session specified.
+     * Can fail if the username is taken, or invalid session specified.
+     * The username is unique on this node; across the cluster, it is only checked against the users other nodes have announced,
+     * so two nodes binding the same name at the same moment both succeed (see {@link ClusterNode}).
      * The error is returned as part of the JSON message in its field.
+     * A session asking for global chat messages via PB is told so in the reply, once bound.
      * @param username The username to bind to the session
      * @param session The session to bind the username to
+     * @param binaryChat Whether the session asked for global chat messages via PB
      */
-    public void bindUserToSession(String username, Session session) {
-        UserSession target = null;
+    public void bindUserToSession(String username, Session session, boolean binaryChat) {
+        UserSession target = sessionsById.get(session.getId());
+        if(target == null) {
+            // must bind to a valid session
+            session.getAsyncRemote().sendText(createIdentifyReply("session", false));
+            return;
+        }
+        loops.execute(username, () -> bindOnLoop(username, target, binaryChat));
+    }
+
+    /**
+     * Bind a username to a user session, on the loop that owns the username.
+     * The answer is sent from here, followed by the private messages stored while the user was offline.
+     * @param username The username to bind to the session
+     * @param target The user session to bind the username to
+     * @param binaryChat Whether the session asked for global chat messages via PB
+     */
+    private void bindOnLoop(String username, UserSession target, boolean binaryChat) {
         String error = "";
-        for(UserSession userSession : userSessions) {
-            boolean isUnassignedSession = userSession.username == null;
-            if(!isUnassignedSession && userSession.username.equals(username)) {
-                // usernames must be unique
-               error = "username";
+        String claimed = target.claimed.compareAndExchange(null, username);
+        if(claimed != null) {
+            // a session can only be bound once; a claim for this name was settled on this loop already
+            error = claimed.equals(username) ? "" : "session";
+        }
+        else if(cluster.locate(username) != null || sessionsByUsername.containsKey(username)) {
+            // taken here, or announced by another node; a claim racing on another node isn't seen yet
+            error = "username";
+            target.claimed.set(null);
+        }
+        else {
+            sessionsByUsername.put(username, target);
+            target.username = username;
+            if(target.closed) {
+                // closed while binding: unbindSession may or may not have seen the name, so drop it here
+                sessionsByUsername.remove(username, target);
+                error = "session";
+            }
+            else {
+                cluster.announce(username);
             }
+        }
+        boolean bound = error.isEmpty();
+        if(bound && binaryChat) {
+            target.binaryChat = true;
+        }
+        sendToSession(target, OutboundFrame.ofText(createIdentifyReply(error, bound && binaryChat)));
 
-            if(userSession.session.equals(session)) {
-                // we've found a valid target, assign and break out
-                target = userSession;
+        if(bound) {
+            // messages can be kept for the user from now on
+            mailbox.register(username);
+            // whatever was sent to a previous session of the user without being written goes again
+            mailbox.rewind(username, 0);
+            deliverMailbox(target);
+        }
+    }
+
+    /**
+     * Create the answer to an identification request, via JSON.
+     * @param error Contains the error if any, or empty if none
+     * @param binaryChat Whether to tell the session it gets global chat messages via PB
+     * @return The answer to send
+     */
+    private String createIdentifyReply(String error, boolean binaryChat) {
+        // return a simple JSON message with pass/failed to client
+        JsonCodec.Writer reply = JsonCodec.write()
+                            .field("action", "identify")
+                            .field("error", error);
+        if(binaryChat) {
+            reply.field("chat", "pb");
+        }
+        return reply.end();
+    }
+
+    /**
+     * Send an identified user the private messages stored while they were offline, in one large batch.
+     * Only called on the loop that owns the username, so nothing is stored for the user meanwhile.
+     * The batch only fills half of the session's outbound queue, so a long backlog can't get the user
+     * disconnected as a slow consumer; the rest follows once the queue has drained to its low watermark,
+     * batch after batch until the mailbox is empty.
+     * A message only leaves the mailbox once its frame was written; one the outbox refuses is handed out again later.
+     * @param session The user session, already bound
+     * @return whether no stored messages are left to send to the user, though some may still be on their way
+     */
+    private boolean deliverMailbox(UserSession session) {
+        String username = session.username;
+        int maxFrames = SessionOutbox.MAX_QUEUED_FRAMES / 2 - session.outbox.getQueuedFrames();
+        long maxBytes = SessionOutbox.MAX_QUEUED_BYTES / 2 - session.outbox.getQueuedBytes();
+        List<Mailbox.Message> batch = mailbox.drain(username, maxFrames, maxBytes);
+        int sent = 0;
+        for(Mailbox.Message message : batch) {
+            long sequence = message.getSequence();
+            if(!session.outbox.offer(OutboundFrame.ofBinary(message.getPayload(),
+                                                            () -> mailbox.acknowledge(username, sequence)))) {
+                // kept for the next batch, or the next session
+                mailbox.rewind(username, sequence - 1);
                 break;
             }
+            sent++;
         }
-        if(target == null) {
-            // must bind to a valid session
-            error = "session";
+        if(sent > 0) {
+            log.info("Sent " + sent + " stored messages to " + username);
         }
-        // Assign to session only if there was no error
-        if(error.isEmpty())
-            target.username = username;
+        if(!mailbox.hasUnsent(username)) {
+            return true;
+        }
+        session.outbox.whenLowWater("mailbox", () -> loops.execute(username, () -> {
+            if(sessionsByUsername.get(username) == session) {
+                deliverMailbox(session);
+            }
+        }));
+        return false;
+    }
 
-        // return a simple JSON message with pass/failed to client
-        JsonProvider provider = JsonProvider.provider();
-        JsonObject payload = provider.createObjectBuilder()
-                            .add("action", "identify")
-                            .add("error", error)
-                            .build();
-        sendToSession(session, payload);
+    /**
+     * Charge a received frame to its session's rate limits, before it is parsed.
+     * A rejected frame is answered with a "rate" error, once per run of rejected frames.
+     * @param session The session that sent the frame
+     * @param action The action of the frame
+     * @param size The size of the frame
+     * @param useJSON Whether the frame is JSON or PB
+     * @return whether the frame is to be handled
+     */
+    public boolean admit(Session session, DeviceProtocol.Action action, int size, boolean useJSON) {
+        UserSession source = sessionsById.get(session.getId());
+        if(source == null || source.limiter.admit(action, size)) {
+            return true;
+        }
+        messagesRejected.increment();
+        if(source.limiter.shouldNotify()) {
+            log.warn("Session " + session.getId() + " is over its rate limits, rejecting " + action);
+            if(useJSON) {
+                String payload = JsonCodec.write()
+                        .field("action", action)
+                        .field("error", "rate")
+                        .end();
+                sendToSession(source, OutboundFrame.ofText(payload));
+            }
+            else {
+                DeviceProtocol.Device payload = DeviceProtocol.Device.newBuilder()
+                        .setActionCode(action)
+                        .setError("rate")
+                        .build();
+                sendToSession(source, OutboundFrame.of(payload));
+            }
+        }
+        return false;
     }
 
     /**
@@ -133,128 +577,735 @@ public class DeviceSessionHandler {
      */
     public void removeSession(Session session) {
         log.info("Removing session: " + session);
-        UserSession parent = null;
-        for(UserSession userSession : userSessions) {
-            if(userSession.session.equals(session))
-                parent = userSession;
-        }
-        if(parent != null)
-            userSessions.remove(parent);
-        else {
+        if(!unbindSession(session)) {
             log.error("Error removing session: " + session + " - no suitable parent found");
         }
     }
 
+    /**
+     * Drop a session from both session indexes.
+     * @param session The session to drop
+     * @return whether the session was being tracked
+     */
+    private boolean unbindSession(Session session) {
+        UserSession parent = sessionsById.remove(session.getId());
+        if(parent == null)
+            return false;
+        parent.closed = true;
+        parent.outbox.close();
+        String username = parent.username;
+        if(username != null) {
+            loops.execute(username, () -> {
+                if(sessionsByUsername.remove(username, parent))
+                    cluster.withdraw(username);
+            });
+        }
+        for(String room : parent.rooms) {
+            loops.execute(room, () -> removeRoomMember(room, parent));
+        }
+        for(Integer id : parent.subscriptions) {
+            loops.execute(id, () -> removeSubscriber(id, parent));
+        }
+        return true;
+    }
+
+    /**
+     * Add an identified session to a room, creating the room if it has no members yet.
+     * The session is answered with a join message, carrying an error if it could not join.
+     * @param session The session joining
+     * @param room The name of the room to join
+     */
+    public void joinRoom(Session session, String room) {
+        UserSession source = sessionsById.get(session.getId());
+        if(source == null) {
+            return;
+        }
+        String error = "";
+        if(source.username == null) {
+            // rooms are for identified users only, messages are sent in their name
+            error = "session";
+        }
+        else if(room.isBlank() || room.length() > MAX_ROOM_NAME) {
+            error = "room";
+        }
+        else if(!source.rooms.contains(room) && source.rooms.size() >= MAX_ROOMS_PER_SESSION) {
+            error = "limit";
+        }
+        else if(source.rooms.add(room)) {
+            loops.execute(room, () -> {
+                if(!source.closed) {
+                    // a closed session is left behind by unbindSession, so it must not join after it
+                    roomMembers.computeIfAbsent(room, name -> new HashSet<>()).add(source);
+                }
+            });
+            log.debug(source.username + " joined room " + room);
+        }
+        sendToSession(source, OutboundFrame.ofText(createRoomReply("join", room, error)));
+    }
+
+    /**
+     * Remove a session from a room, dropping the room once it has no members left.
+     * The session is answered with a leave message, carrying an error if it was not in the room.
+     * @param session The session leaving
+     * @param room The name of the room to leave
+     */
+    public void leaveRoom(Session session, String room) {
+        UserSession source = sessionsById.get(session.getId());
+        if(source == null) {
+            return;
+        }
+        String error = source.rooms.remove(room) ? "" : "room";
+        if(error.isEmpty()) {
+            loops.execute(room, () -> removeRoomMember(room, source));
+            log.debug(source.username + " left room " + room);
+        }
+        sendToSession(source, OutboundFrame.ofText(createRoomReply("leave", room, error)));
+    }
+
+    /**
+     * Drop a session from the members of a room, and the room itself if left empty.
+     * Only called on the loop that owns the room.
+     * @param room The name of the room
+     * @param session The user session to drop
+     */
+    private void removeRoomMember(String room, UserSession session) {
+        Set<UserSession> members = roomMembers.get(room);
+        if(members != null && members.remove(session) && members.isEmpty()) {
+            roomMembers.remove(room);
+        }
+    }
+
+    /**
+     * Wait until every change handed to the event loops so far has been applied, e.g. before reading
+     * back state that was just changed. Must not be called from an event loop.
+     * @param timeoutMillis How long to wait at most
+     * @return whether every change was applied in time
+     */
+    public boolean awaitIdle(long timeoutMillis) {
+        try {
+            return loops.awaitIdle(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Release everything this handler holds, e.g. when the application is undeployed:
+     * the cluster links are closed first, so nothing new comes in, and the cluster port freed for the next deployment;
+     * the background threads are stopped, and the journal and mailbox closed once the event loops ran their tasks,
+     * so a handler of the next deployment finds their files as this one left them.
+     */
+    public void close() {
+        log.info("Closing session handler");
+        cluster.stop();
+        coalescer.shutdownNow();
+        try {
+            if(!loops.shutdown(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                log.warn("Event loops still busy after " + CLOSE_TIMEOUT_MS + " ms, closing anyway");
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+        mailbox.close();
+    }
+
     /**
      * Get all active devices.
      * @return List of all active devices
      */
     public List<Device> getDevices() {
-        return new ArrayList<>(devices);
+        return devices.snapshot();
     }
 
     /**
      * Add a device, either via JSON or PB, and send it
      * to all active sessions in the server.
+     * The device is assigned its ID at once, and added on the loop that owns the ID.
      * @param device The device to add
      * @param useJSON Whether to use JSON or PB
      */
     public void addDevice(Device device, boolean useJSON) {
+        addDevice(null, device, useJSON);
+    }
+
+    /**
+     * Add a device, either via JSON or PB, and send it
+     * to all active sessions in the server, so they can subscribe to it.
+     * A device added by an identified session is owned by its user, and only its changes
+     * go to the owner and subscribers from then on; one added anonymously has no owner.
+     * @param session The session adding the device, or null if none
+     * @param device The device to add
+     * @param useJSON Whether to use JSON or PB
+     */
+    public void addDevice(Session session, Device device, boolean useJSON) {
+        UserSession source = (session == null) ? null : sessionsById.get(session.getId());
+        if(source != null && source.username != null) {
+            device.setOwner(source.username);
+        }
         log.info("Adding device: " + device);
-        device.setId(deviceId.incrementAndGet());
-        devices.add(device);
+        device.setId(devices.nextId());
+        loops.execute(device.getId(), () -> {
+            devices.put(device);
+            DeviceProtocol.Device event = createAddMessagePB(device);
+            byte[] encoded = event.toByteArray();
+            journal.append(encoded);
+            sendAdded(device, event, useJSON);
+            cluster.publishDevice(encoded, useJSON);
+        });
+    }
+
+    /**
+     * Send an added device to all active sessions in the server.
+     * Adds are rare, and they are how dashboards find the devices to subscribe to.
+     * @param device The added device
+     * @param event The add message via PB
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void sendAdded(Device device, DeviceProtocol.Device event, boolean useJSON) {
         if(useJSON) {
-            JsonObject addMessage = createAddMessage(device);
-            sendToAllConnectedSessions(addMessage);
+            String addMessage = createAddMessage(device);
+            sendToAllConnectedSessions(OutboundFrame.ofText(addMessage));
         }
         else {
-            DeviceProtocol.Device addMessage = createAddMessagePB(device);
-            sendToAllConnectedSessions(addMessage);
+            sendToAllConnectedSessions(OutboundFrame.of(event));
         }
     }
 
     /**
      * Remove a device, either via JSON or PB, and send its
-     * removal to all active sessions in the server.
+     * removal to its owner and subscribers.
      * @param id The id of the device to remove
      * @param useJSON Whether to use JSON or PB
      */
     public void removeDevice(int id, boolean useJSON) {
         log.info("Removing device with id: " + id);
-        Device device = getDeviceById(id);
+        loops.execute(id, () -> removeOnLoop(id, useJSON));
+    }
+
+    /**
+     * Remove a device, on the loop that owns its ID.
+     * @param id The id of the device to remove
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void removeOnLoop(int id, boolean useJSON) {
+        Device device = devices.remove(id);
         if (device != null) {
-            devices.remove(device);
-            if(useJSON) {
-                JsonProvider provider = JsonProvider.provider();
-                JsonObject removeMessage = provider.createObjectBuilder()
-                        .add("action", "remove")
-                        .add("id", id)
-                        .build();
-                sendToAllConnectedSessions(removeMessage);
-            }
-            else {
-                DeviceProtocol.Device.Builder d = DeviceProtocol.Device.newBuilder();
-                d.setAction("remove");
-                d.setId(id);
-                sendToAllConnectedSessions(d.build());
+            DeviceProtocol.Device event = createRemoveMessagePB(id);
+            byte[] encoded = event.toByteArray();
+            journal.append(encoded);
+            sendRemoved(device, event, useJSON);
+            cluster.publishDevice(encoded, useJSON);
+        }
+    }
+
+    /**
+     * Create a device remove message via PB.
+     * @param id The id of the removed device
+     * @return The resulting remove message
+     */
+    private DeviceProtocol.Device createRemoveMessagePB(int id) {
+        return DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.REMOVE)
+                .setId(id)
+                .build();
+    }
+
+    /**
+     * Send a removed device to its owner and subscribers, then drop its subscribers.
+     * Only called on the loop that owns the device.
+     * @param device The removed device
+     * @param event The remove message via PB
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void sendRemoved(Device device, DeviceProtocol.Device event, boolean useJSON) {
+        if(useJSON) {
+            String removeMessage = JsonCodec.write()
+                    .field("action", "remove")
+                    .field("id", device.getId())
+                    .end();
+            sendToDevice(device, OutboundFrame.ofText(removeMessage));
+        }
+        else {
+            sendToDevice(device, OutboundFrame.of(event));
+        }
+        Set<UserSession> subscribers = deviceSubscribers.remove(device.getId());
+        if(subscribers != null) {
+            for(UserSession subscriber : subscribers) {
+                subscriber.subscriptions.remove(device.getId());
             }
         }
     }
 
     /**
      * Toggle a device, either via JSON or PB, and send its
-     * update to all active sessions on the server.
+     * update to its owner and subscribers.
      * @param id The id of the device to toggle
      * @param useJSON Whether to use JSON or PB
      */
     public void toggleDevice(int id, boolean useJSON) {
+        toggleDevice(null, id, -1, useJSON);
+    }
+
+    /**
+     * Toggle a device, either via JSON or PB, if it is still at the version the sender last saw,
+     * and send its update to its owner and subscribers.
+     * A sender that is out of date is answered with the current state and a "version" error instead.
+     * @param session The session asking for the toggle, or null if none
+     * @param id The id of the device to toggle
+     * @param expectedVersion The version the sender last saw, or -1 to toggle whatever the version
+     * @param useJSON Whether to use JSON or PB
+     */
+    public void toggleDevice(Session session, int id, long expectedVersion, boolean useJSON) {
         log.info("Toggling device with id: " + id);
-        JsonProvider provider = JsonProvider.provider();
+        loops.execute(id, () -> toggleOnLoop(session, id, expectedVersion, useJSON));
+    }
+
+    /**
+     * Toggle a device, on the loop that owns its ID.
+     * @param session The session asking for the toggle, or null if none
+     * @param id The id of the device to toggle
+     * @param expectedVersion The version the sender last saw, or -1 to toggle whatever the version
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void toggleOnLoop(Session session, int id, long expectedVersion, boolean useJSON) {
         Device device = getDeviceById(id);
-        if (device != null) {
-            if ("On".equals(device.getStatus())) {
-                device.setStatus("Off");
-            } else {
-                device.setStatus("On");
+        if (device == null) {
+            return;
+        }
+        while (true) {
+            Device.State state = device.getState();
+            long version = state.getVersion();
+            if (expectedVersion >= 0 && version != expectedVersion) {
+                UserSession source = (session == null) ? null : sessionsById.get(session.getId());
+                if (source != null) {
+                    sendToSession(source, createToggledFrame(device, useJSON, "version"));
+                }
+                return;
             }
-            if(useJSON) {
-                JsonObject updateDevMessage = provider.createObjectBuilder()
-                        .add("action", "toggle")
-                        .add("id", device.getId())
-                        .add("status", device.getStatus())
-                        .build();
-                sendToAllConnectedSessions(updateDevMessage);
+            if (device.compareAndSetStatus(version, "On".equals(state.getStatus()) ? "Off" : "On")) {
+                break;
             }
-            else {
-                DeviceProtocol.Device.Builder d = DeviceProtocol.Device.newBuilder();
-                d.setAction("toggle");
-                d.setId(device.getId());
-                d.setStatus(device.getStatus());
-                sendToAllConnectedSessions(d.build());
+        }
+        DeviceProtocol.Device event = createToggleMessagePB(device, null);
+        byte[] encoded = event.toByteArray();
+        journal.append(encoded);
+        if (COALESCE_MS <= 0) {
+            publishToggled(device, event, encoded, useJSON);
+        }
+        else if (pendingToggles.put(id, useJSON) != null) {
+            togglesCoalesced.increment();
+        }
+    }
+
+    /**
+     * Hand the devices toggled during the last window over to their loops, to be sent as they are now.
+     * A device toggled again meanwhile is sent again with the next window, at worst with the same version.
+     */
+    private void flushToggles() {
+        for (Integer id : pendingToggles.keySet()) {
+            Boolean useJSON = pendingToggles.remove(id);
+            if (useJSON != null) {
+                loops.execute(id, () -> {
+                    Device device = getDeviceById(id);
+                    if (device != null) {
+                        DeviceProtocol.Device event = createToggleMessagePB(device, null);
+                        publishToggled(device, event, event.toByteArray(), useJSON);
+                    }
+                });
             }
         }
     }
 
+    /**
+     * Send the current state of a toggled device to its owner and subscribers, and to the rest of the cluster.
+     * Only called on the loop that owns the device.
+     * @param device The toggled device
+     * @param event The toggle message via PB, with the current state
+     * @param encoded The toggle message, encoded
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void publishToggled(Device device, DeviceProtocol.Device event, byte[] encoded, boolean useJSON) {
+        sendToggled(device, event, useJSON);
+        cluster.publishDevice(encoded, useJSON);
+    }
+
+    /**
+     * Send a toggled device to its owner and subscribers.
+     * @param device The toggled device
+     * @param event The toggle message via PB
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void sendToggled(Device device, DeviceProtocol.Device event, boolean useJSON) {
+        if(useJSON) {
+            sendToDevice(device, createToggledFrame(device, true, null));
+        }
+        else {
+            sendToDevice(device, OutboundFrame.of(event));
+        }
+    }
+
+    /**
+     * Create a toggle message, carrying the current status and version of a device.
+     * @param device The toggled device
+     * @param useJSON Whether to use JSON or PB
+     * @param error The error to answer with, or null if none
+     * @return The frame to send
+     */
+    private OutboundFrame createToggledFrame(Device device, boolean useJSON, String error) {
+        if(!useJSON) {
+            return OutboundFrame.of(createToggleMessagePB(device, error));
+        }
+        Device.State state = device.getState();
+        JsonCodec.Writer writer = JsonCodec.write()
+                .field("action", "toggle")
+                .field("id", device.getId())
+                .field("status", state.getStatus())
+                .field("version", state.getVersion());
+        if(error != null) {
+            writer.field("error", error);
+        }
+        return OutboundFrame.ofText(writer.end());
+    }
+
+    /**
+     * Create a toggle message via PB, carrying the current status and version of a device.
+     * @param device The toggled device
+     * @param error The error to answer with, or null if none
+     * @return The resulting toggle message
+     */
+    private DeviceProtocol.Device createToggleMessagePB(Device device, String error) {
+        Device.State state = device.getState();
+        DeviceProtocol.Device.Builder event = DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.TOGGLE)
+                .setId(device.getId())
+                .setStatus(state.getStatus())
+                .setVersion(state.getVersion());
+        if(error != null) {
+            event.setError(error);
+        }
+        return event.build();
+    }
+
+    /**
+     * Apply a device change made on another node of the cluster, and send it to the sessions on this server following it.
+     * Subscriptions are kept by the node of the subscriber, so each node only sends to its own sessions.
+     * An added device that is already known (state sent again on reconnect) replaces it silently, unless older.
+     * Toggles only apply over an older version, so changes crossing each other between nodes settle the same way.
+     * @param encoded The device event via PB
+     * @param useJSON Whether the change came in via JSON or PB
+     */
+    private void applyDeviceEvent(byte[] encoded, boolean useJSON) {
+        DeviceProtocol.Device event;
+        try {
+            event = DeviceProtocol.Device.parseFrom(encoded);
+        } catch (InvalidProtocolBufferException ex) {
+            log.error("Dropping malformed device event from cluster: " + ex);
+            return;
+        }
+        loops.execute(event.getId(), () -> applyDeviceEventOnLoop(event, encoded, useJSON));
+    }
+
+    /**
+     * Apply the whole device state another node sends when it (re)connects, making up for changes lost while the link was down.
+     * Only the node that assigns an ID can add a device under it, so each node is the authority over its own stripe of IDs:
+     * a device of the sender's stripe missing from the state was removed there, and is removed here too,
+     * while a device of this node's stripe that is no longer here was removed here, and is not added back.
+     * Devices of other stripes are only updated here if known, and left to the sync of the node that assigns them otherwise.
+     * @param peerIndex The stripe of IDs the sending node assigns
+     * @param state The add messages via PB, one per device of the sending node
+     */
+    private void applyDeviceSync(int peerIndex, List<byte[]> state) {
+        Set<Integer> synced = new HashSet<>();
+        for (byte[] encoded : state) {
+            DeviceProtocol.Device event;
+            try {
+                event = DeviceProtocol.Device.parseFrom(encoded);
+            } catch (InvalidProtocolBufferException ex) {
+                log.error("Dropping malformed device state from cluster: " + ex);
+                continue;
+            }
+            if (devices.getStripe(event.getId()) == peerIndex) {
+                synced.add(event.getId());
+            }
+            loops.execute(event.getId(), () -> applySyncedDeviceOnLoop(event, encoded, peerIndex));
+        }
+        for (Device device : devices.snapshot()) {
+            int id = device.getId();
+            if (devices.getStripe(id) == peerIndex && !synced.contains(id)) {
+                // queued after the state above, and before any change the node makes from now on
+                loops.execute(id, () -> removeOnLoop(id, false));
+            }
+        }
+        log.info("Applied device state of " + state.size() + " devices from cluster node " + (peerIndex + 1));
+    }
+
+    /**
+     * Apply a device of the state another node sent on (re)connecting, on the loop that owns the device ID.
+     * @param event The add message via PB
+     * @param encoded The add message, encoded
+     * @param peerIndex The stripe of IDs the sending node assigns
+     */
+    private void applySyncedDeviceOnLoop(DeviceProtocol.Device event, byte[] encoded, int peerIndex) {
+        int id = event.getId();
+        if (devices.get(id) != null || devices.getStripe(id) == peerIndex) {
+            applyDeviceEventOnLoop(event, encoded, false);
+        }
+        else if (devices.getStripe(id) == cluster.getNodeIndex() && id <= devices.getLastId()) {
+            // removed here while the link was down: send the removal again, rather than add the device back
+            cluster.publishDevice(createRemoveMessagePB(id).toByteArray(), false);
+        }
+    }
+
+    /**
+     * Apply a device change made on another node of the cluster, on the loop that owns the device ID.
+     * @param event The device event
+     * @param encoded The device event, encoded
+     * @param useJSON Whether the change came in via JSON or PB
+     */
+    private void applyDeviceEventOnLoop(DeviceProtocol.Device event, byte[] encoded, boolean useJSON) {
+        switch (event.getActionCode()) {
+            case ADD: {
+                Device device = toDevice(event);
+                Device previous = devices.get(device.getId());
+                if(previous != null && previous.getVersion() >= device.getVersion()) {
+                    // state sent again on reconnect, no newer than what was applied since
+                    break;
+                }
+                devices.put(device);
+                journal.append(encoded);
+                if(previous == null) {
+                    sendAdded(device, event, useJSON);
+                }
+                else {
+                    // toggled on the other node while the link was down
+                    sendToggled(device, createToggleMessagePB(device, null), useJSON);
+                }
+                break;
+            }
+            case REMOVE: {
+                Device device = devices.remove(event.getId());
+                if(device != null) {
+                    journal.append(encoded);
+                    sendRemoved(device, event, useJSON);
+                }
+                break;
+            }
+            case TOGGLE: {
+                Device device = devices.get(event.getId());
+                // a peer on an older version sends none, and its toggles always apply
+                boolean applied = device != null && (event.hasVersion()
+                        ? device.advanceStatus(event.getStatus(), event.getVersion())
+                        : device.compareAndSetStatus(device.getVersion(), event.getStatus()));
+                if(applied) {
+                    DeviceProtocol.Device current = createToggleMessagePB(device, null);
+                    journal.append(current.toByteArray());
+                    sendToggled(device, current, useJSON);
+                }
+                break;
+            }
+            default:
+                log.warn("Ignoring device event from cluster: " + event.getActionCode());
+                break;
+        }
+    }
+
+    /**
+     * Create a device from an add message via PB.
+     * @param event The add message
+     * @return the device
+     */
+    private static Device toDevice(DeviceProtocol.Device event) {
+        Device device = new Device();
+        device.setId(event.getId());
+        if(event.hasName()) device.setName(event.getName());
+        if(event.hasStatus()) device.setStatus(event.getStatus());
+        if(event.hasType()) device.setType(event.getType());
+        if(event.hasDescription()) device.setDescription(event.getDescription());
+        if(event.hasOwner()) device.setOwner(event.getOwner());
+        device.setVersion(event.getVersion());
+        return device;
+    }
+
+    /**
+     * Subscribe a session to the changes of a device, e.g. a dashboard following a device owned by someone else.
+     * The session is answered with a subscribe message carrying the current state of the device,
+     * or an error if it could not subscribe.
+     * @param session The session subscribing
+     * @param id The id of the device to subscribe to
+     * @param useJSON Whether to use JSON or PB
+     */
+    public void subscribeDevice(Session session, int id, boolean useJSON) {
+        UserSession source = sessionsById.get(session.getId());
+        if(source == null) {
+            return;
+        }
+        if(!source.subscriptions.contains(id) && source.subscriptions.size() >= MAX_SUBSCRIPTIONS_PER_SESSION) {
+            sendToSession(source, createSubscribeReply(DeviceProtocol.Action.SUBSCRIBE, id, null, "limit", useJSON));
+            return;
+        }
+        source.subscriptions.add(id);
+        loops.execute(id, () -> subscribeOnLoop(source, id, useJSON));
+    }
+
+    /**
+     * Subscribe a session to the changes of a device, on the loop that owns the device.
+     * @param source The user session subscribing
+     * @param id The id of the device to subscribe to
+     * @param useJSON Whether to use JSON or PB
+     */
+    private void subscribeOnLoop(UserSession source, int id, boolean useJSON) {
+        Device device = getDeviceById(id);
+        if(device == null) {
+            source.subscriptions.remove(id);
+            sendToSession(source, createSubscribeReply(DeviceProtocol.Action.SUBSCRIBE, id, null, "device", useJSON));
+            return;
+        }
+        if(!source.closed) {
+            // a closed session is left behind by unbindSession, so it must not subscribe after it
+            deviceSubscribers.computeIfAbsent(id, key -> new HashSet<>()).add(source);
+        }
+        sendToSession(source, createSubscribeReply(DeviceProtocol.Action.SUBSCRIBE, id, device, "", useJSON));
+    }
+
+    /**
+     * Stop sending the changes of a device to a session.
+     * The session is answered with an unsubscribe message, carrying an error if it was not subscribed.
+     * @param session The session unsubscribing
+     * @param id The id of the device to unsubscribe from
+     * @param useJSON Whether to use JSON or PB
+     */
+    public void unsubscribeDevice(Session session, int id, boolean useJSON) {
+        UserSession source = sessionsById.get(session.getId());
+        if(source == null) {
+            return;
+        }
+        String error = source.subscriptions.remove(id) ? "" : "device";
+        // answered from the loop, so it can't overtake the answer to an earlier subscribe
+        loops.execute(id, () -> {
+            if(error.isEmpty()) {
+                removeSubscriber(id, source);
+            }
+            sendToSession(source, createSubscribeReply(DeviceProtocol.Action.UNSUBSCRIBE, id, null, error, useJSON));
+        });
+    }
+
+    /**
+     * Drop a session from the subscribers of a device.
+     * Only called on the loop that owns the device.
+     * @param id The id of the device
+     * @param session The user session to drop
+     */
+    private void removeSubscriber(int id, UserSession session) {
+        Set<UserSession> subscribers = deviceSubscribers.get(id);
+        if(subscribers != null && subscribers.remove(session) && subscribers.isEmpty()) {
+            deviceSubscribers.remove(id);
+        }
+    }
+
     /**
      * Dispatch a chat message, via JSON, from a specific sender.
      * Global chat messages are dispatched here.
      * @param sender The session that is sending the message.
-     * @param message the contents to send
+     * @param username The user the message claims to be from, only used until the sender is identified
+     * @param content the contents to send
      */
-    public void dispatchChatMessage(Session sender, JsonObject message) {
-        JsonObject own = createChatMessage(message, true);
-        JsonObject other = createChatMessage(message, false);
-
+    public void dispatchChatMessage(Session sender, String username, String content) {
         // JSON are global messages, these are to be sent to everyone
         // no matter what - no restrictions
+        UserSession source = sessionsById.get(sender.getId());
+        String from = (source == null || source.username == null) ? username : source.username;
+        sendGlobalChat(source, from, ByteString.copyFromUtf8(content), null);
+    }
 
-        for (UserSession session : userSessions) {
-
-            if(session.session.equals(sender)) {
-                sendToSession(session.session, own);
+    /**
+     * Send a global chat message to every session of this server, and of the rest of the cluster.
+     * Each session gets it in the format it negotiated, and each format is encoded at most once,
+     * only if some session uses it: sessions on PB never cost a JSON build, nor sessions on JSON a PB one.
+     * The PB format is always encoded for the cluster, unless the message already came in as such.
+     * @param source The user session that sent the message, or null if it came from another node
+     * @param username The user the message is from
+     * @param content The content of the message, as UTF-8
+     * @param frame The message already encoded as a PB global chat message, or null to encode it here
+     */
+    private void sendGlobalChat(UserSession source, String username, ByteString content, byte[] frame) {
+        long start = System.nanoTime();
+        // no target, that is what tells a global message apart from a private one
+        byte[] encoded = (frame != null) ? frame : DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.CHAT)
+                .setMessage(DeviceProtocol.ChatMsg.newBuilder()
+                                    .setUsername(username)
+                                    .setContent(content))
+                .build()
+                .toByteArray();
+        OutboundFrame binary = OutboundFrame.ofBinary(encoded);
+        OutboundFrame own = null;
+        OutboundFrame other = null;
+        for (UserSession session : sessionsById.values()) {
+            if(session.binaryChat) {
+                sendToSession(session, binary);
+            }
+            else if(session == source) {
+                if(own == null) {
+                    own = OutboundFrame.ofText(createChatMessage(username, content.toStringUtf8(), true));
+                }
+                sendToSession(session, own);
             }
             else {
-                sendToSession(session.session, other);
+                if(other == null) {
+                    other = OutboundFrame.ofText(createChatMessage(username, content.toStringUtf8(), false));
+                }
+                sendToSession(session, other);
+            }
+        }
+        fanoutLatency.recordSince(start);
+        if(source != null) {
+            cluster.broadcast(encoded);
+        }
+    }
+
+    /**
+     * Dispatch a chat message, via JSON, from a specific sender to the members of a room.
+     * Only members can send to a room, and the message is always sent in the sender's bound name.
+     * @param sender The session that is sending the message
+     * @param room The room to send the message to
+     * @param content the contents to send
+     */
+    public void dispatchRoomMessage(Session sender, String room, String content) {
+        UserSession source = sessionsById.get(sender.getId());
+        if(source == null) {
+            return;
+        }
+        if(!source.rooms.contains(room)) {
+            sendToSession(source, OutboundFrame.ofText(createRoomReply("chat", room, "room")));
+            return;
+        }
+        OutboundFrame own = OutboundFrame.ofText(createRoomMessage(room, source.username, content, true));
+        OutboundFrame other = OutboundFrame.ofText(createRoomMessage(room, source.username, content, false));
+        loops.execute(room, () -> {
+            sendToRoom(room, other, source);
+            sendToSession(source, own);
+        });
+        cluster.publishRoom(room, other.getText());
+    }
+
+    /**
+     * Send an encoded frame to the members of a room on this server, on the loop that owns the room.
+     * @param room The name of the room
+     * @param frame The frame to send
+     * @param skip A member not to send the frame to, or null if none
+     */
+    private void sendToRoom(String room, OutboundFrame frame, UserSession skip) {
+        Set<UserSession> members = roomMembers.get(room);
+        if(members == null) {
+            return;
+        }
+        for (UserSession member : members) {
+            if(member != skip) {
+                sendToSession(member, frame);
             }
         }
     }
@@ -266,62 +1317,262 @@ public class DeviceSessionHandler {
      * @param device The content of the message
      */
     public void dispatchChatMessage(Session sender, DeviceProtocol.Device device) {
+        dispatchChatMessage(sender, device, null);
+    }
+
+    /**
+     * Dispatch a chat message, via PB, from a specific sender to the target
+     * specified in the message, relaying the frame as received whenever possible.
+     * The frame is only re-encoded when a routing field has to be rewritten, and even then
+     * the (possibly very large) encrypted content is shared rather than copied.
+     * @param sender The session that is sending the message
+     * @param device The content of the message, parsed from <code>frame</code>
+     * @param frame The frame as received, or null if not available; must not be modified afterwards
+     */
+    public void dispatchChatMessage(Session sender, DeviceProtocol.Device device, byte[] frame) {
         DeviceProtocol.ChatMsg message = device.getMessage();
-        DeviceProtocol.Device other = createChatPBDevice(message, false, null);
+        DeviceProtocol.Action action = DeviceWebSocketServer.resolveAction(device);
 
-        // only send to sender! there will be an error if encryption fails
-        for (UserSession session : userSessions) {
-            if(session.username != null && session.username.equals(message.getTarget())) {
-                sendToSession(session.session, other);
-            }
+        if(action == DeviceProtocol.Action.CHAT && !message.hasTarget()) {
+            // no target, a global chat message from a session that negotiated PB
+            dispatchGlobalChatMessage(sender, device, frame);
+            return;
+        }
+
+        // only send to the target! there will be an error if encryption fails
+        UserSession target = sessionsByUsername.get(message.getTarget());
+        String node = (target == null) ? cluster.locate(message.getTarget()) : null;
+        if(target == null && node == null && action != DeviceProtocol.Action.CHAT) {
+            // file transfer control messages are retried by the sender, no point keeping them
+            return;
+        }
+
+        // the sender can't speak for someone else once identified
+        UserSession source = sessionsById.get(sender.getId());
+        String username = (source == null || source.username == null) ? message.getUsername() : source.username;
+
+        byte[] encoded;
+        if(frame != null && canRelayAsIs(device, username)) {
+            encoded = frame;
+        }
+        else {
+            DeviceProtocol.ChatMsg routed = message.getUsername().equals(username)
+                    ? message : message.toBuilder().setUsername(username).build();
+            encoded = createChatPBDevice(routed, action, false, null).toByteArray();
+        }
+
+        // only chat messages of identified users are worth keeping, so anonymous clients can't fill the mailbox
+        String storedBy = (action == DeviceProtocol.Action.CHAT && source != null && source.username != null)
+                ? source.username : null;
+        if(node != null && cluster.route(node, storedBy, message.getTarget(), encoded)) {
+            return;
+        }
+        deliverPrivateFrame(storedBy, message.getTarget(), encoded);
+    }
+
+    /**
+     * Dispatch a global chat message, via PB, from a specific sender.
+     * The frame is relayed as received to the sessions on PB whenever possible, like a private message.
+     * @param sender The session that is sending the message
+     * @param device The content of the message, parsed from <code>frame</code>
+     * @param frame The frame as received, or null if not available; must not be modified afterwards
+     */
+    private void dispatchGlobalChatMessage(Session sender, DeviceProtocol.Device device, byte[] frame) {
+        DeviceProtocol.ChatMsg message = device.getMessage();
+        UserSession source = sessionsById.get(sender.getId());
+        String username = (source == null || source.username == null) ? message.getUsername() : source.username;
+        boolean relayable = frame != null && canRelayAsIs(device, username) && !message.hasFileName()
+                && !message.hasTransfer() && !message.hasCompression();
+        sendGlobalChat(source, username, message.getContent(), relayable ? frame : null);
+    }
+
+    /**
+     * Send a private frame to a user of this server, or keep it in the mailbox if the user is offline.
+     * Runs on the loop that owns the username, so the frame can't be stored just as the user identifies
+     * and left behind, nor overtake the frames stored before it.
+     * @param sender The identified user who sent the frame, or null if the frame is not worth keeping for later;
+     *               file transfer control messages are retried by the sender
+     * @param username The user the frame is for
+     * @param encoded The encoded frame
+     */
+    private void deliverPrivateFrame(String sender, String username, byte[] encoded) {
+        loops.execute(username, () -> deliverOnLoop(sender, username, encoded));
+    }
+
+    /**
+     * Send a private frame to a user of this server, or keep it in the mailbox, on the loop that owns the username.
+     * @param sender The identified user who sent the frame, or null if the frame is not worth keeping
+     * @param username The user the frame is for
+     * @param encoded The encoded frame
+     */
+    private void deliverOnLoop(String sender, String username, byte[] encoded) {
+        UserSession target = sessionsByUsername.get(username);
+        if(target == null && sender == null) {
+            return;
+        }
+        if(target == null || (sender != null && !deliverMailbox(target))) {
+            // offline, or still catching up: keep it until delivered in order,
+            // so the sender doesn't have to encrypt it again
+            store(sender, username, encoded);
+            return;
         }
+        if(!target.outbox.offer(OutboundFrame.ofBinary(encoded)) && sender != null) {
+            // refused by a closing or overflowing session, keep it for the next one
+            store(sender, username, encoded);
+        }
+    }
+
+    /**
+     * Keep a private frame in the mailbox, until the user identifies.
+     * Only called on the loop that owns the username.
+     * @param sender The identified user who sent the frame
+     * @param username The user the frame is for
+     * @param encoded The encoded frame
+     */
+    private void store(String sender, String username, byte[] encoded) {
+        if(!mailbox.store(sender, username, encoded)) {
+            log.warn("Dropping private message to offline user " + username);
+        }
+    }
+
+    /**
+     * Check whether a received private chat message can be forwarded byte for byte.
+     * That is the case when it carries nothing but the enum action and the chat message,
+     * and the message is in the name of the sender.
+     * @param device The received message
+     * @param username The name the message must be sent as
+     * @return whether the message can be relayed as received
+     */
+    private boolean canRelayAsIs(DeviceProtocol.Device device, String username) {
+        return device.hasActionCode() && !device.hasAction()
+                && device.getPayloadCase() == DeviceProtocol.Device.PayloadCase.MESSAGE
+                && !device.hasId() && !device.hasName() && !device.hasStatus() && !device.hasType()
+                && !device.hasDescription() && !device.hasOwner()
+                && device.getMessage().getUsername().equals(username);
     }
 
     /**
-     * Create a global chat message, via JSON, to be sent in the JSON variant of <code>dispatchChatMessage</code>.
+     * Create a global chat message, via JSON, to be sent to the sessions that did not negotiate PB.
      * Format the message as appropriate, depending on whether sender/receiver.
-     * @param msg The content to prepare the message with
+     * @param username The user the message is from
+     * @param content The content of the message
      * @param isSender Whether intended for sender or receiver
      * @return The chat message to send
      */
-    private JsonObject createChatMessage(JsonObject msg, Boolean isSender) {
-        JsonObject message = msg.getJsonObject("message");
-        String content = message.getString("content");
-        content = (isSender) ? "You said: " + content : message.getString("username") + " said: " + content;
-        JsonProvider provider = JsonProvider.provider();
-
-        JsonObject updated = provider.createObjectBuilder()
-                            .add("username", message.getString("username"))
-                            .add("content", content)
-                            .build();
-        
-        return provider.createObjectBuilder()
-                .add("action", "chat")
-                .add("message", updated)
-                .build();
+    private String createChatMessage(String username, String content, boolean isSender) {
+        content = (isSender) ? "You said: " + content : username + " said: " + content;
+        return JsonCodec.write()
+                .field("action", "chat")
+                .beginObject("message")
+                    .field("username", username)
+                    .field("content", content)
+                .endObject()
+                .end();
+    }
+
+    /**
+     * Create a room chat message, via JSON, to be sent in <code>dispatchRoomMessage</code>.
+     * Format the message as appropriate, depending on whether sender/receiver.
+     * @param room The room the message is sent to
+     * @param username The user sending the message
+     * @param content The content of the message
+     * @param isSender Whether intended for sender or receiver
+     * @return The room message to send
+     */
+    private String createRoomMessage(String room, String username, String content, boolean isSender) {
+        return JsonCodec.write()
+                .field("action", "chat")
+                .field("room", room)
+                .beginObject("message")
+                    .field("username", username)
+                    .field("content", (isSender) ? "You said: " + content : username + " said: " + content)
+                .endObject()
+                .end();
+    }
+
+    /**
+     * Create the answer to a room request, via JSON.
+     * @param action The action answered
+     * @param room The room of the request
+     * @param error Contains the error if any, or empty if none
+     * @return The reply to send
+     */
+    private String createRoomReply(String action, String room, String error) {
+        return JsonCodec.write()
+                .field("action", action)
+                .field("room", room)
+                .field("error", error)
+                .end();
+    }
+
+    /**
+     * Create the answer to a subscription request, carrying the current state of the device if known.
+     * @param action Either <code>SUBSCRIBE</code> or <code>UNSUBSCRIBE</code>
+     * @param id The id of the device of the request
+     * @param device The device subscribed to, or null if none
+     * @param error Contains the error if any, or empty if none
+     * @param useJSON Whether to use JSON or PB
+     * @return The reply to send
+     */
+    private OutboundFrame createSubscribeReply(DeviceProtocol.Action action, int id, Device device,
+                                               String error, boolean useJSON) {
+        if(!useJSON) {
+            DeviceProtocol.Device.Builder reply = DeviceProtocol.Device.newBuilder()
+                    .setActionCode(action)
+                    .setId(id);
+            if(!error.isEmpty()) {
+                reply.setError(error);
+            }
+            if(device != null) {
+                Device.State state = device.getState();
+                reply.setStatus(state.getStatus()).setVersion(state.getVersion());
+            }
+            return OutboundFrame.of(reply.build());
+        }
+        JsonCodec.Writer reply = JsonCodec.write()
+                .field("action", action)
+                .field("id", id);
+        if(device != null) {
+            Device.State state = device.getState();
+            reply.field("status", state.getStatus())
+                    .field("version", state.getVersion());
+        }
+        return OutboundFrame.ofText(reply.field("error", error).end());
     }
 
     /**
      * Create a private chat message, via PB, to be sent in the PB variant of <code>dispatchChatMessage</code>.
      * Format the message as appropriate, depending on whether sender/receiver, and on whether file/text.
      * @param msg The content to prepare the message with
+     * @param action The chat action, either a text/file message or part of a chunked file transfer
      * @param isSender Whether intended for sender or receiver
      * @param error Contains the error if any, or empty if none
      * @return The chat message to send
      */
-    private DeviceProtocol.Device createChatPBDevice(DeviceProtocol.ChatMsg msg, Boolean isSender, String error) {
+    private DeviceProtocol.Device createChatPBDevice(DeviceProtocol.ChatMsg msg, DeviceProtocol.Action action,
+                                                     Boolean isSender, String error) {
         // PRIVATE MESSAGE/FILE CONTENTS IS IN BYTES ONLY, APPEND SENDER/ETC ON CLIENT RECEIVE AFTER DECRYPTION
-        DeviceProtocol.ChatMsg updated = DeviceProtocol.ChatMsg.newBuilder()
+        DeviceProtocol.ChatMsg.Builder updated = DeviceProtocol.ChatMsg.newBuilder()
                                             .setUsername(msg.getUsername())
                                             .setContent(msg.getContent())
                                             .setTarget((msg.hasTarget() ? msg.getTarget() : ""))
-                                            .setFileName(msg.hasFileName() ? msg.getFileName() : "")
-                                            .build();
-        return DeviceProtocol.Device.newBuilder()
-                .setAction("chat")
-                .setMessage(updated)
-                .setError(((error == null || error.isEmpty()) ? "" : error))
-                .build();
+                                            .setFileName(msg.hasFileName() ? msg.getFileName() : "");
+        if (msg.hasTransfer()) {
+            updated.setTransfer(msg.getTransfer());
+        }
+        if (msg.hasCompression()) {
+            updated.setCompression(msg.getCompression());
+        }
+        DeviceProtocol.Device.Builder device = DeviceProtocol.Device.newBuilder()
+                .setActionCode(action);
+        // message and error share the payload, an error replaces the message
+        if (error == null || error.isEmpty()) {
+            device.setMessage(updated);
+        }
+        else {
+            device.setError(error);
+        }
+        return device.build();
     }
 
     /**
@@ -330,14 +1581,11 @@ public class DeviceSessionHandler {
      * @return the device with the specified id
      */
     private Device getDeviceById(int id) {
-        for (Device device : devices) {
-            if (device.getId() == id) {
-                log.debug("Retrieved device with id: " + id);
-                return device;
-            }
+        Device device = devices.get(id);
+        if (device == null) {
+            log.warn("Could not retrieve device with id: " + id);
         }
-        log.warn("Could not retrieve device with id: " + id);
-        return null;
+        return device;
     }
 
     /**
@@ -345,20 +1593,29 @@ public class DeviceSessionHandler {
      * @param device The device to create the add message for
      * @return The resulting add message
      */
-    private JsonObject createAddMessage(Device device) {
-        JsonProvider provider = JsonProvider.provider();
-        JsonObject addMessage = provider.createObjectBuilder()
-                .add("action", "add")
-                .add("id", device.getId())
-                .add("name", device.getName())
-                .add("type", device.getType())
-                .add("status", device.getStatus())
-                .add("description", device.getDescription())
-                .build();
+    private String createAddMessage(Device device) {
+        String addMessage = writeAddMessage(JsonCodec.write(), device).end();
         log.debug("Created add message for device: " + device);
         return addMessage;
     }
 
+    /**
+     * Write the fields of a device add message via JSON, into the object currently open.
+     * @param writer The writer to write with
+     * @param device The device to write the add message for
+     * @return the writer
+     */
+    private JsonCodec.Writer writeAddMessage(JsonCodec.Writer writer, Device device) {
+        Device.State state = device.getState();
+        return writer.field("action", "add")
+                .field("id", device.getId())
+                .field("name", device.getName())
+                .field("type", device.getType())
+                .field("status", state.getStatus())
+                .field("version", state.getVersion())
+                .field("description", device.getDescription());
+    }
+
     /**
      * Create a device add message via PB.
      * @param d The device to create the add message for
@@ -366,78 +1623,110 @@ public class DeviceSessionHandler {
      */
     private DeviceProtocol.Device createAddMessagePB(Device d) {
         DeviceProtocol.Device.Builder device = DeviceProtocol.Device.newBuilder();
-        device.setAction("add");
+        device.setActionCode(DeviceProtocol.Action.ADD);
         device.setId(d.getId());
 
+        // status and version read together, as the device may be toggled meanwhile, e.g. during a snapshot
+        Device.State state = d.getState();
         if(d.getName() != null) device.setName(d.getName());
-        if(d.getStatus() != null) device.setStatus(d.getStatus());
+        if(state.getStatus() != null) device.setStatus(state.getStatus());
         if(d.getType() != null) device.setType(d.getType());
         if(d.getDescription() != null) device.setDescription(d.getDescription());
         if(d.getOwner() != null) device.setOwner(d.getOwner());
+        device.setVersion(state.getVersion());
         log.debug("Created add message (proto-buffer) for device: " + d);
         return device.build();
     }
 
     /**
-     * Send a message to all connected sessions, via JSON.
-     * @param message The message to send
+     * Create a device snapshot message via JSON.
+     * @param part The devices in this chunk
+     * @param chunk The index of this chunk
+     * @param chunkCount The total number of chunks in the snapshot
+     * @return The resulting snapshot message
      */
-    private void sendToAllConnectedSessions(JsonObject message) {
-        for (UserSession session : userSessions) {
-            sendToSession(session.session, message);
+    private String createSnapshotMessage(List<Device> part, int chunk, int chunkCount) {
+        JsonCodec.Writer writer = JsonCodec.write()
+                .field("action", "snapshot")
+                .field("chunk", chunk)
+                .field("chunkCount", chunkCount)
+                .beginArray("devices");
+        for (Device device : part) {
+            writeAddMessage(writer.beginObject(), device).endObject();
         }
-        log.debug("Sent message \'" + message + "\' to all connected sessions");
+        return writer.endArray().end();
     }
 
     /**
-     * Send a message to all connected sessions, via PB.
-     * @param device The message to send
+     * Create a device snapshot message via PB.
+     * @param part The devices in this chunk
+     * @param chunk The index of this chunk
+     * @param chunkCount The total number of chunks in the snapshot
+     * @return The resulting snapshot message
      */
-    private void sendToAllConnectedSessions(DeviceProtocol.Device device) {
-        for (UserSession session : userSessions) {
-            sendToSession(session.session, device);
+    private DeviceProtocol.Device createSnapshotMessagePB(List<Device> part, int chunk, int chunkCount) {
+        DeviceProtocol.DeviceSnapshot.Builder snapshot = DeviceProtocol.DeviceSnapshot.newBuilder();
+        snapshot.setChunk(chunk);
+        snapshot.setChunkCount(chunkCount);
+        for (Device device : part) {
+            snapshot.addDevices(createAddMessagePB(device));
         }
-        log.debug("Sent device \'" + device.toString() + "\' to all connected sessions");
+        return DeviceProtocol.Device.newBuilder()
+                .setActionCode(DeviceProtocol.Action.SNAPSHOT)
+                .setSnapshot(snapshot)
+                .build();
     }
 
     /**
-     * Send a message to a specific session, via JSON.
-     * @param session The session to send the message to
-     * @param message The message to send
+     * Send an encoded frame to all connected sessions.
+     * The frame is shared, so the message is serialized once no matter the number of sessions.
+     * @param frame The frame to send
      */
-    private void sendToSession(Session session, JsonObject message) {
-        try {
-            session.getBasicRemote().sendText(message.toString());
-        } catch (IOException ex) {
-            log.error("Removing session: Exception caught trying to send message \'" + message + "\' to session \'" + session + "\' : " + ex);
-            for(UserSession s : userSessions) {
-                if(s.session == session)  {
-                    userSessions.remove(s);
-                    break;
-                }
-            }
+    private void sendToAllConnectedSessions(OutboundFrame frame) {
+        long start = System.nanoTime();
+        for (UserSession session : sessionsById.values()) {
+            sendToSession(session, frame);
         }
-        log.debug("Sent message \'" + message + "\' to session: " + session);
+        fanoutLatency.recordSince(start);
+        log.debug("Sent " + frame + " to all connected sessions");
     }
 
     /**
-     * Send a message to a specific session, via PB.
-     * @param session The session to send the message to
-     * @param device The message to send
+     * Send an encoded frame about a device to the sessions following it: its owner's, if on this server,
+     * and its subscribers. A device without an owner is followed by every session, as before owners were kept.
+     * Only called on the loop that owns the device.
+     * @param device The device the frame is about
+     * @param frame The frame to send
      */
-    private void sendToSession(Session session, DeviceProtocol.Device device) {
-        try {
-            ByteBuffer buffer = ByteBuffer.wrap(device.toByteArray());
-            session.getBasicRemote().sendBinary(buffer);
-        } catch (IOException ex) {
-            log.error("Removing session: Exception caught trying to send device \'" + device + "\' to session \'" + session + "\' : " + ex);
-            for(UserSession s : userSessions) {
-                if(s.session == session)  {
-                    userSessions.remove(s);
-                    break;
+    private void sendToDevice(Device device, OutboundFrame frame) {
+        String owner = device.getOwner();
+        if(owner == null) {
+            sendToAllConnectedSessions(frame);
+            return;
+        }
+        long start = System.nanoTime();
+        UserSession ownerSession = sessionsByUsername.get(owner);
+        if(ownerSession != null) {
+            sendToSession(ownerSession, frame);
+        }
+        Set<UserSession> subscribers = deviceSubscribers.get(device.getId());
+        if(subscribers != null) {
+            for (UserSession subscriber : subscribers) {
+                if(subscriber != ownerSession) {
+                    sendToSession(subscriber, frame);
                 }
             }
         }
-        log.debug("Sent device \'" + device + "\' to session: " + session);
+        fanoutLatency.recordSince(start);
+    }
+
+    /**
+     * Queue an encoded frame for a specific session.
+     * The send itself happens asynchronously through the session's outbox.
+     * @param session The user session to send the frame to
+     * @param frame The frame to send
+     */
+    private void sendToSession(UserSession session, OutboundFrame frame) {
+        session.outbox.offer(frame);
     }
-}
\ No newline at end of file
+}
@@ -3,35 +3,108 @@ package com.blakfx.websocket;
 import javax.websocket.*; 
 import javax.websocket.server.*;
 import javax.enterprise.context.*;
-import javax.inject.*;
-import java.io.StringReader;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
-import javax.json.*;
 import org.apache.logging.log4j.*;
 
+import com.blakfx.metrics.LatencyHistogram;
+import com.blakfx.metrics.Metrics;
 import com.blakfx.model.Device;
 
 import com.blakfx.protocols.DeviceProtocol;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
 
 /**
  * The server endpoint for chat/device actions.
  * Receives requests from clients, and dispatches them to the <code>DeviceSessionHandler</code> to manage them.
  */
 @ApplicationScoped
-@ServerEndpoint(value = "/actions")
+@ServerEndpoint(value = "/actions", configurator = DeviceWebSocketServer.Configurator.class)
 public class DeviceWebSocketServer {
 
+    /**
+     * Negotiates permessage-deflate with clients that ask for it, unless turned off.
+     * Compressing on the wire mostly pays off for the verbose JSON device and global chat messages;
+     * private payloads are encrypted, and so barely compress.
+     */
+    public static class Configurator extends ServerEndpointConfig.Configurator {
+        /**
+         * Whether to compress frames with clients that support it.
+         */
+        private static final boolean COMPRESSION =
+                Boolean.parseBoolean(System.getProperty("com.blakfx.server.compression", "true"));
+
+        /**
+         * Keep the requested extensions the container supports, in the client's order of preference,
+         * dropping permessage-deflate if compression is turned off.
+         * @param installed The extensions the container supports
+         * @param requested The extensions the client asked for
+         * @return the extensions to use
+         */
+        @Override
+        public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+            List<Extension> negotiated = new ArrayList<>();
+            for (Extension extension : requested) {
+                if (!COMPRESSION && "permessage-deflate".equals(extension.getName())) {
+                    continue;
+                }
+                for (Extension supported : installed) {
+                    if (supported.getName().equals(extension.getName())) {
+                        negotiated.add(extension);
+                        break;
+                    }
+                }
+            }
+            return negotiated;
+        }
+    }
+
     /**
      * This class' Logger instance.
      */
     private static Logger log = LogManager.getLogger(DeviceWebSocketServer.class.getName());
 
     /**
-     * This server's session handler instance.
+     * This server's session handler instance, created along with the first session.
+     */
+    private static volatile DeviceSessionHandler sessionHandler;
+    /**
+     * Whether the session handler was released, after which no other one is created.
+     */
+    private static boolean sessionHandlerClosed;
+
+    /**
+     * Max size of a single binary message, large enough for one encrypted file chunk.
+     */
+    private static final int MAX_BINARY_MESSAGE = Integer.getInteger("com.blakfx.server.maxBinaryMessage", 1024 * 1024);
+
+    /**
+     * The number of messages received, by action.
      */
-    @Inject
-    private static DeviceSessionHandler sessionHandler = new DeviceSessionHandler();
+    private static final Map<DeviceProtocol.Action, LongAdder> messagesReceived = new EnumMap<>(DeviceProtocol.Action.class);
+    /**
+     * The number of bytes received, in chars for text messages.
+     */
+    private static final LongAdder bytesReceived = Metrics.counter("blakfx_bytes_received_total");
+    /**
+     * How long handling a received message takes, fan-out included.
+     */
+    private static final LatencyHistogram dispatchLatency = Metrics.histogram("blakfx_dispatch");
+
+    static {
+        for (DeviceProtocol.Action action : DeviceProtocol.Action.values()) {
+            messagesReceived.put(action, Metrics.counter(
+                    "blakfx_messages_received_total{action=\"" + action.name().toLowerCase() + "\"}"));
+        }
+    }
 
     /**
      * Called when a connection is made to the server.
@@ -39,8 +112,9 @@ public class DeviceWebSocketServer {
      */
     @OnOpen
     public void open(Session session) {
-        sessionHandler.addSession(session, false);
-        log.info("Session has been created");
+        session.setMaxBinaryMessageBufferSize(MAX_BINARY_MESSAGE);
+        getSessionHandler().addSession(session, false);
+        log.info("Session has been created with extensions " + session.getNegotiatedExtensions());
     }
 
     /**
@@ -49,10 +123,46 @@ public class DeviceWebSocketServer {
      */
     @OnClose
     public void close(Session session) {
-        sessionHandler.removeSession(session);
+        getSessionHandler().removeSession(session);
         log.info("Session has been closed");
     }
 
+    /**
+     * Get the session handler, creating it on first use.
+     * @return the session handler
+     * @throws IllegalStateException The session handler was already released
+     */
+    static DeviceSessionHandler getSessionHandler() {
+        DeviceSessionHandler handler = sessionHandler;
+        if (handler == null) {
+            synchronized (DeviceWebSocketServer.class) {
+                if (sessionHandlerClosed) {
+                    throw new IllegalStateException("Session handler already closed");
+                }
+                if (sessionHandler == null) {
+                    sessionHandler = new DeviceSessionHandler();
+                }
+                handler = sessionHandler;
+            }
+        }
+        return handler;
+    }
+
+    /**
+     * Release the session handler, once the application is undeployed, if any session ever created it.
+     * Called by <code>DeviceContextListener</code>.
+     */
+    static void closeSessionHandler() {
+        DeviceSessionHandler handler;
+        synchronized (DeviceWebSocketServer.class) {
+            sessionHandlerClosed = true;
+            handler = sessionHandler;
+        }
+        if (handler != null) {
+            handler.close();
+        }
+    }
+
     /**
      * Called when an error is met in the server.
      * @param error The error met
@@ -64,48 +174,105 @@ public class DeviceWebSocketServer {
 
     /**
      * Text message handler.
+     * The action is peeked at and charged to the session's rate limits first, so a rejected message is never read;
+     * admitted messages are read with <code>JsonCodec</code>, straight into the fields of the known schemas.
      * @param message The message received
      * @param session The session that sent it
      */
     @OnMessage
     public void handleTextMessage(String message, Session session) {
-        try (JsonReader reader = Json.createReader(new StringReader(message))) {
-            JsonObject jsonMessage = reader.readObject();
-
-            // User identification - through JSON on connect only
-            if ("identify".equals(jsonMessage.getString("action"))) {
-                sessionHandler.bindUserToSession(jsonMessage.getString("username"), session);
+        long start = System.nanoTime();
+        bytesReceived.add(message.length());
+        try {
+            // malformed messages are charged too, as unknown, so malformed floods are bounded alike
+            DeviceProtocol.Action action = JsonCodec.peekAction(message);
+            messagesReceived.get(action).increment();
+            if (!getSessionHandler().admit(session, action, message.length(), true)) {
+                return;
             }
-
-            if ("add".equals(jsonMessage.getString("action"))) {
-                Device device = new Device();
-                device.setName(jsonMessage.getString("name"));
-                device.setDescription(jsonMessage.getString("description"));
-                device.setType(jsonMessage.getString("type"));
-                device.setStatus("Off");
-                sessionHandler.addDevice(device, true);
-                log.info("Device has been added");
+            JsonCodec.Message jsonMessage;
+            try {
+                jsonMessage = JsonCodec.read(message);
             }
-
-            if ("remove".equals(jsonMessage.getString("action"))) {
-                int id = (int) jsonMessage.getInt("id");
-                sessionHandler.removeDevice(id, true);
-                log.info("Device has been removed");
+            catch (IllegalArgumentException e) {
+                log.warn("Malformed message \'" + message + "\' from session \'" + session + "\': " + e.getMessage());
+                return;
             }
-
-            if ("toggle".equals(jsonMessage.getString("action"))) {
-                int id = (int) jsonMessage.getInt("id");
-                sessionHandler.toggleDevice(id, true);
-                log.info("Device with id " + id + " has been toggled");
+            if (jsonMessage.getAction() != action) {
+                // the action was charged as something else, don't let it through as this
+                log.warn("Ambiguous action in message \'" + message + "\' from session \'" + session + "\'");
+                return;
             }
 
-            if("chat".equals(jsonMessage.getString("action"))) {
-                sessionHandler.dispatchChatMessage(session, jsonMessage);
+            switch (action) {
+                // User identification - through JSON on connect only
+                case IDENTIFY: {
+                    // a session can ask for global chat messages via PB, the browser demo sticks to JSON
+                    getSessionHandler().bindUserToSession(JsonCodec.require(jsonMessage.getUsername(), "username"), session,
+                                                     "pb".equals(jsonMessage.getChat()));
+                    break;
+                }
+                case ADD: {
+                    Device device = new Device();
+                    device.setName(JsonCodec.require(jsonMessage.getName(), "name"));
+                    device.setDescription(JsonCodec.require(jsonMessage.getDescription(), "description"));
+                    device.setType(JsonCodec.require(jsonMessage.getType(), "type"));
+                    device.setStatus("Off");
+                    getSessionHandler().addDevice(session, device, true);
+                    log.info("Device has been added");
+                    break;
+                }
+                case REMOVE: {
+                    int id = (int) jsonMessage.getId();
+                    getSessionHandler().removeDevice(id, true);
+                    log.info("Device has been removed");
+                    break;
+                }
+                case TOGGLE: {
+                    int id = (int) jsonMessage.getId();
+                    getSessionHandler().toggleDevice(session, id, jsonMessage.hasVersion() ? jsonMessage.getVersion() : -1, true);
+                    log.info("Device with id " + id + " has been toggled");
+                    break;
+                }
+                case SUBSCRIBE: {
+                    getSessionHandler().subscribeDevice(session, (int) jsonMessage.getId(), true);
+                    break;
+                }
+                case UNSUBSCRIBE: {
+                    getSessionHandler().unsubscribeDevice(session, (int) jsonMessage.getId(), true);
+                    break;
+                }
+                case JOIN: {
+                    getSessionHandler().joinRoom(session, JsonCodec.require(jsonMessage.getRoom(), "room"));
+                    break;
+                }
+                case LEAVE: {
+                    getSessionHandler().leaveRoom(session, JsonCodec.require(jsonMessage.getRoom(), "room"));
+                    break;
+                }
+                case CHAT: {
+                    String content = JsonCodec.require(jsonMessage.getContent(), "content");
+                    if (jsonMessage.getRoom() != null) {
+                        getSessionHandler().dispatchRoomMessage(session, jsonMessage.getRoom(), content);
+                    }
+                    else {
+                        getSessionHandler().dispatchChatMessage(session,
+                                JsonCodec.require(jsonMessage.getMessageUsername(), "username"), content);
+                    }
+                    break;
+                }
+                default: {
+                    log.warn("Unknown action in message \'" + message + "\' from session \'" + session + "\'");
+                    break;
+                }
             }
         }
         catch(Exception e) {
             log.error("Error while handling message \'" + message + "\' from session \'" + session + "\': " + e);
         }
+        finally {
+            dispatchLatency.recordSince(start);
+        }
     }
 
     /**
@@ -116,39 +283,128 @@ public class DeviceWebSocketServer {
     @OnMessage
     public void handleBinaryMessage(ByteBuffer buffer, Session session) {
         log.debug("Binary handler called!");
+        long start = System.nanoTime();
+        bytesReceived.add(buffer.remaining());
         try {
-            DeviceProtocol.Device device = DeviceProtocol.Device.parseFrom(buffer);
-            String action = device.getAction();
-           
-            if("add".equals(action)) {
-                Device d = new Device();
-                d.setName(device.getName());
-                d.setDescription(device.getDescription());
-                d.setType(device.getType());
-                d.setStatus("Off");
-                sessionHandler.addDevice(d, false);
-                log.info("Device has been added (via PB)");
+            // peek and charge the action off the container's buffer, so a refused frame is never copied
+            DeviceProtocol.Action action = peekAction(buffer.duplicate());
+            messagesReceived.get(action).increment();
+            if (!getSessionHandler().admit(session, action, buffer.remaining(), false)) {
+                return;
             }
-
-            if("remove".equals(action)) {
-                int id = device.getId();
-                sessionHandler.removeDevice(id, false);
-                log.info("Device has been removed (via PB)");
+            // The container reuses its buffer once we return, so take the one copy here.
+            // Parsing aliases bytes fields into this copy, so chat contents are never copied again.
+            byte[] frame = new byte[buffer.remaining()];
+            buffer.duplicate().get(frame);
+            CodedInputStream input = UnsafeByteOperations.unsafeWrap(frame).newCodedInput();
+            input.enableAliasing(true);
+            DeviceProtocol.Device device = DeviceProtocol.Device.parseFrom(input);
+            if (resolveAction(device) != action) {
+                // the action was charged as something else, don't let it through as this
+                log.warn("Ambiguous action in buffer \'" + buffer + "\' from session \'" + session + "\'");
+                return;
             }
 
-            if("toggle".equals(action)) {
-                int id = device.getId();
-                sessionHandler.toggleDevice(id, false);
-                log.info("Device with id " + id + " has been toggled (via PB)");
+            switch (action) {
+                case ADD: {
+                    Device d = new Device();
+                    d.setName(device.getName());
+                    d.setDescription(device.getDescription());
+                    d.setType(device.getType());
+                    d.setStatus("Off");
+                    getSessionHandler().addDevice(session, d, false);
+                    log.info("Device has been added (via PB)");
+                    break;
+                }
+                case REMOVE: {
+                    int id = device.getId();
+                    getSessionHandler().removeDevice(id, false);
+                    log.info("Device has been removed (via PB)");
+                    break;
+                }
+                case TOGGLE: {
+                    int id = device.getId();
+                    getSessionHandler().toggleDevice(session, id, device.hasVersion() ? device.getVersion() : -1, false);
+                    log.info("Device with id " + id + " has been toggled (via PB)");
+                    break;
+                }
+                case SUBSCRIBE: {
+                    getSessionHandler().subscribeDevice(session, device.getId(), false);
+                    break;
+                }
+                case UNSUBSCRIBE: {
+                    getSessionHandler().unsubscribeDevice(session, device.getId(), false);
+                    break;
+                }
+                case CHAT:
+                case FILE_OFFER:
+                case FILE_CHUNK:
+                case FILE_ACK: {
+                    // chunked file transfers are routed like any other private message
+                    getSessionHandler().dispatchChatMessage(session, device, frame);
+                    break;
+                }
+                default: {
+                    log.warn("Unsupported action in buffer \'" + buffer + "\' from session \'" + session + "\'");
+                    break;
+                }
             }
-
-            if("chat".equals(action)) {
-                sessionHandler.dispatchChatMessage(session, device);
-            }
-
         }
         catch(Exception e) {
             log.error("Error while handling buffer \'" + buffer + "\' from session \'" + session + "\': " + e);
         }
+        finally {
+            dispatchLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Get the action of a PB message.
+     * Uses the enum action if set, and falls back to the legacy string action otherwise.
+     * @param device The message to get the action of
+     * @return The action, or <code>UNKNOWN</code> if none could be resolved
+     */
+    static DeviceProtocol.Action resolveAction(DeviceProtocol.Device device) {
+        if (device.hasActionCode()) {
+            return device.getActionCode();
+        }
+        return resolveAction(device.getAction());
+    }
+
+    /**
+     * Get the action named by a JSON or legacy PB action string.
+     * @param action The action string
+     * @return The action, or <code>UNKNOWN</code> if none could be resolved
+     */
+    static DeviceProtocol.Action resolveAction(String action) {
+        return JsonCodec.resolveAction(action, 0, action.length());
+    }
+
+    /**
+     * Get the action of a PB message without parsing it, so it can be rate limited first.
+     * Only the action fields are decoded, every other field is skipped over.
+     * @param frame The encoded message, from its position to its limit; pass a duplicate to leave the buffer as it is
+     * @return The action, or <code>UNKNOWN</code> if none could be found
+     * @throws IOException The message is malformed
+     */
+    static DeviceProtocol.Action peekAction(ByteBuffer frame) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(frame);
+        String legacy = "";
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case DeviceProtocol.Device.ACTIONCODE_FIELD_NUMBER: {
+                    DeviceProtocol.Action action = DeviceProtocol.Action.forNumber(input.readEnum());
+                    return (action == null) ? DeviceProtocol.Action.UNKNOWN : action;
+                }
+                case DeviceProtocol.Device.ACTION_FIELD_NUMBER:
+                    legacy = input.readString();
+                    break;
+                default:
+                    input.skipField(tag);
+                    break;
+            }
+        }
+        return resolveAction(legacy);
     }
-}
\ No newline at end of file
+}
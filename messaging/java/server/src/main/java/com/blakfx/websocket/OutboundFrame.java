@@ -0,0 +1,175 @@
+package com.blakfx.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import com.blakfx.protocols.DeviceProtocol;
+
+/**
+ * A message that has already been encoded for the wire, either as JSON text or PB bytes.
+ * Frames are immutable, so one instance can be encoded once and then queued
+ * for any number of sessions; only frames that want to know when they were written are for a single session.
+ */
+public final class OutboundFrame {
+
+    /**
+     * The encoded text, or null if binary.
+     */
+    private final String text;
+    /**
+     * The encoded bytes, or null if text. Never modified after construction.
+     */
+    private final byte[] bytes;
+    /**
+     * Run once the frame was written to the session, or null if nobody needs to know.
+     */
+    private final Runnable onWritten;
+
+    /**
+     * Constructs a frame from its encoded contents.
+     * @param text The encoded text, or null if binary
+     * @param bytes The encoded bytes, or null if text
+     * @param onWritten Run once the frame was written, or null if none
+     */
+    private OutboundFrame(String text, byte[] bytes, Runnable onWritten) {
+        this.text = text;
+        this.bytes = bytes;
+        this.onWritten = onWritten;
+    }
+
+    /**
+     * Encode a PB message as a binary frame.
+     * @param device The message to encode
+     * @return the encoded frame
+     */
+    public static OutboundFrame of(DeviceProtocol.Device device) {
+        return new OutboundFrame(null, device.toByteArray(), null);
+    }
+
+    /**
+     * Wrap already encoded text as a text frame.
+     * @param text The encoded text
+     * @return the frame
+     */
+    public static OutboundFrame ofText(String text) {
+        return new OutboundFrame(text, null, null);
+    }
+
+    /**
+     * Wrap already encoded bytes as a binary frame.
+     * The array must not be modified afterwards.
+     * @param bytes The encoded bytes
+     * @return the frame
+     */
+    public static OutboundFrame ofBinary(byte[] bytes) {
+        return new OutboundFrame(null, bytes, null);
+    }
+
+    /**
+     * Wrap already encoded bytes as a binary frame, to be told once it was written to the session.
+     * The frame must only be queued for a single session, and the array must not be modified afterwards.
+     * @param bytes The encoded bytes
+     * @param onWritten Run once the frame was written, on whatever thread completed the write;
+     *                  never run if the frame is dropped or the write fails
+     * @return the frame
+     */
+    public static OutboundFrame ofBinary(byte[] bytes, Runnable onWritten) {
+        return new OutboundFrame(null, bytes, onWritten);
+    }
+
+    /**
+     * Combine binary frames into a single <code>BATCH</code> frame.
+     * The frames are copied in as already encoded <code>Device</code> messages, without parsing them again.
+     * @param frames The binary frames to combine, in order
+     * @return the batch frame
+     */
+    public static OutboundFrame batch(List<OutboundFrame> frames) {
+        int devicesSize = 0;
+        List<Runnable> callbacks = null;
+        for (OutboundFrame frame : frames) {
+            devicesSize += CodedOutputStream.computeByteArraySize(DeviceProtocol.DeviceBatch.DEVICES_FIELD_NUMBER, frame.bytes);
+            if (frame.onWritten != null) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<>();
+                }
+                callbacks.add(frame.onWritten);
+            }
+        }
+        int size = CodedOutputStream.computeEnumSize(DeviceProtocol.Device.ACTIONCODE_FIELD_NUMBER,
+                                                     DeviceProtocol.Action.BATCH.getNumber())
+                + CodedOutputStream.computeTagSize(DeviceProtocol.Device.BATCH_FIELD_NUMBER)
+                + CodedOutputStream.computeUInt32SizeNoTag(devicesSize)
+                + devicesSize;
+        byte[] bytes = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            out.writeEnum(DeviceProtocol.Device.ACTIONCODE_FIELD_NUMBER, DeviceProtocol.Action.BATCH.getNumber());
+            out.writeTag(DeviceProtocol.Device.BATCH_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeUInt32NoTag(devicesSize);
+            for (OutboundFrame frame : frames) {
+                out.writeByteArray(DeviceProtocol.DeviceBatch.DEVICES_FIELD_NUMBER, frame.bytes);
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException ex) {
+            // sizes were computed up front, so writing to the array can't run out of space
+            throw new IllegalStateException("Could not encode batch of " + frames.size() + " frames", ex);
+        }
+        List<Runnable> written = callbacks;
+        return new OutboundFrame(null, bytes, (written == null) ? null : () -> written.forEach(Runnable::run));
+    }
+
+    /**
+     * Check whether this is a text frame.
+     * @return whether the frame is text
+     */
+    public boolean isText() {
+        return text != null;
+    }
+
+    /**
+     * Get the encoded text of a text frame.
+     * @return the text, or null if binary
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Get a fresh read-only view of a binary frame's bytes.
+     * Each send needs its own view, as the websocket consumes the buffer's position.
+     * @return the view, or null if text
+     */
+    public ByteBuffer getBinary() {
+        return (bytes == null) ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Tell whoever asked that the frame was written to the session.
+     */
+    void written() {
+        if (onWritten != null) {
+            onWritten.run();
+        }
+    }
+
+    /**
+     * Get the encoded size of this frame.
+     * @return the size, in bytes for binary frames and in chars for text frames
+     */
+    public int size() {
+        return (text != null) ? text.length() : bytes.length;
+    }
+
+    /**
+     * Define how to print a frame, without dumping its contents.
+     */
+    @Override
+    public String toString() {
+        return (isText() ? "text" : "binary") + " frame of " + size() + " bytes";
+    }
+}
@@ -0,0 +1,488 @@
+package com.blakfx.websocket;
+
+import javax.websocket.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.*;
+
+import com.blakfx.metrics.Metrics;
+
+/**
+ * A bounded outbound queue for a single websocket session.
+ * Frames are written through the session's async remote, one at a time, so that
+ * the thread fanning a message out never blocks on a slow client.
+ * Once the queue goes past its frame or byte limit, the <code>OverflowPolicy</code>
+ * decides what happens to the slow consumer.
+ * Binary frames queued back to back are written as a single <code>BATCH</code> frame,
+ * up to a max count and size, and may be held for a short delay to let a batch fill up.
+ */
+public class SessionOutbox {
+
+    /**
+     * What to do with a session whose outbound queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the frame being queued.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest queued frames until the new one fits.
+         */
+        DROP_OLDEST,
+        /**
+         * Close the session, the client will get a fresh registry on reconnect.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Max number of frames queued for a session before the overflow policy applies.
+     */
+    static final int MAX_QUEUED_FRAMES = Integer.getInteger("com.blakfx.server.outbox.maxFrames", 1024);
+    /**
+     * Max number of bytes queued for a session before the overflow policy applies.
+     */
+    static final long MAX_QUEUED_BYTES = Long.getLong("com.blakfx.server.outbox.maxBytes", 16L * 1024 * 1024);
+    /**
+     * The policy applied to slow consumers.
+     */
+    static final OverflowPolicy POLICY = OverflowPolicy.valueOf(
+            System.getProperty("com.blakfx.server.outbox.policy", OverflowPolicy.DISCONNECT.name()));
+
+    /**
+     * Number of frames the queue has to fall to before a <code>whenLowWater</code> task runs.
+     */
+    static final int LOW_WATER_FRAMES = MAX_QUEUED_FRAMES / 4;
+    /**
+     * Number of bytes the queue has to fall to before a <code>whenLowWater</code> task runs.
+     */
+    static final long LOW_WATER_BYTES = MAX_QUEUED_BYTES / 4;
+
+    /**
+     * Max number of binary frames combined into one batch frame; 1 turns batching off.
+     */
+    static final int BATCH_MAX_FRAMES = Integer.getInteger("com.blakfx.server.batch.maxFrames", 64);
+    /**
+     * Max size of a batch frame, in bytes. Larger frames are still sent, on their own.
+     */
+    static final int BATCH_MAX_BYTES = Integer.getInteger("com.blakfx.server.batch.maxBytes", 64 * 1024);
+    /**
+     * How long a binary frame may wait for others to batch with, in ms; 0 only batches frames already queued.
+     */
+    static final long BATCH_MAX_DELAY_MS = Long.getLong("com.blakfx.server.batch.maxDelayMs", 0L);
+
+    /**
+     * Runs the delayed flushes of all outboxes.
+     */
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "outbox-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Closes the sessions of slow consumers, as closing may block on the network
+     * and the offering thread is often an event loop.
+     */
+    private static final ExecutorService closer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "outbox-closer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The outbox whose frame is being written on the current thread, if any.
+     * Lets a send callback that completes inline hand control back to <code>drain</code>
+     * instead of recursing once per frame.
+     */
+    private static final ThreadLocal<SessionOutbox> writing = new ThreadLocal<>();
+
+    /**
+     * The number of frames written to all sessions, a batch counting as one.
+     */
+    private static final LongAdder framesSent = Metrics.counter("blakfx_frames_sent_total");
+    /**
+     * The number of bytes written to all sessions, in chars for text frames.
+     */
+    private static final LongAdder bytesSent = Metrics.counter("blakfx_bytes_sent_total");
+    /**
+     * The number of writes that failed.
+     */
+    private static final LongAdder sendFailures = Metrics.counter("blakfx_send_failures_total");
+    /**
+     * The number of frames dropped by the overflow policy, across all sessions.
+     */
+    private static final LongAdder framesDropped = Metrics.counter("blakfx_frames_dropped_total");
+    /**
+     * The number of sessions closed for not keeping up.
+     */
+    private static final LongAdder slowConsumerDisconnects = Metrics.counter("blakfx_slow_consumer_disconnects_total");
+
+    /**
+     * This class' Logger instance.
+     */
+    private static Logger log = LogManager.getLogger(SessionOutbox.class.getName());
+
+    /**
+     * The session this outbox writes to.
+     */
+    private final Session session;
+    /**
+     * Called when a write fails, so the owner can stop routing to the session.
+     */
+    private final Consumer<Session> onFailure;
+    /**
+     * The frames waiting to be written.
+     */
+    private final Queue<OutboundFrame> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * The number of frames waiting in the queue.
+     */
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    /**
+     * The number of bytes waiting in the queue.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+    /**
+     * The number of frames dropped by the overflow policy.
+     */
+    private final AtomicLong droppedFrames = new AtomicLong();
+    /**
+     * Whether a frame is currently being written.
+     */
+    private final AtomicBoolean sending = new AtomicBoolean();
+    /**
+     * Whether a delayed flush is pending.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /**
+     * Run once the queue falls to the low watermark, by what they are for.
+     */
+    private final ConcurrentMap<String, Runnable> onLowWater = new ConcurrentHashMap<>();
+    /**
+     * A frame taken off the queue that didn't fit in the last batch; written next.
+     * Only touched by the thread currently draining.
+     */
+    private volatile OutboundFrame carry;
+    /**
+     * Whether the outbox stopped accepting frames.
+     */
+    private volatile boolean closed;
+    /**
+     * Whether the last write completed on the thread that started it.
+     */
+    private volatile boolean completedInline;
+
+    /**
+     * Constructs an outbox for a session.
+     * @param session The session to write to
+     * @param onFailure Called once if a write to the session fails
+     */
+    public SessionOutbox(Session session, Consumer<Session> onFailure) {
+        this.session = session;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Queue a frame, applying the overflow policy if the queue is full, and start draining.
+     * The same frame may be queued on any number of outboxes.
+     * @param frame The frame to queue
+     * @return whether the frame was queued
+     */
+    public boolean offer(OutboundFrame frame) {
+        if (closed) {
+            return false;
+        }
+        if (isFull(frame)) {
+            switch (POLICY) {
+                case DROP_NEWEST:
+                    droppedFrames.incrementAndGet();
+                    framesDropped.increment();
+                    log.warn("Outbound queue full for session " + session.getId() + " - dropping newest frame");
+                    return false;
+                case DROP_OLDEST:
+                    while (isFull(frame) && poll() != null) {
+                        droppedFrames.incrementAndGet();
+                        framesDropped.increment();
+                    }
+                    log.warn("Outbound queue full for session " + session.getId() + " - dropped oldest frames");
+                    break;
+                case DISCONNECT:
+                default:
+                    disconnect();
+                    return false;
+            }
+        }
+        queuedFrames.incrementAndGet();
+        queuedBytes.addAndGet(frame.size());
+        queue.add(frame);
+        if (shouldHold(frame)) {
+            if (flushScheduled.compareAndSet(false, true)) {
+                flusher.schedule(() -> {
+                    flushScheduled.set(false);
+                    drain();
+                }, BATCH_MAX_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Get the number of frames waiting to be written.
+     * @return the queue depth
+     */
+    public int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /**
+     * Get the number of bytes waiting to be written.
+     * @return the queued bytes
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Get the number of frames dropped by the overflow policy so far.
+     * @return the dropped frame count
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Run a task once the queue has fallen to its low watermark, e.g. to queue more of a long backlog
+     * without the session going past its limits. Runs at once if the queue is already there.
+     * One task is kept per key, a later one replaces it; it runs on whatever thread takes the frame off,
+     * so it must be quick and must not block.
+     * @param key What the task is for, e.g. <code>"mailbox"</code>
+     * @param task The task to run
+     */
+    public void whenLowWater(String key, Runnable task) {
+        onLowWater.put(key, task);
+        // the queue may have drained before the task was set
+        if (isLowWater()) {
+            runLowWater();
+        }
+    }
+
+    /**
+     * Stop accepting frames and discard anything still queued.
+     */
+    public void close() {
+        closed = true;
+        carry = null;
+        onLowWater.clear();
+        while (poll() != null) {
+            // discard
+        }
+    }
+
+    /**
+     * Check whether queueing a frame would go past the limits.
+     * @param frame The frame to check
+     * @return whether the queue is full for this frame
+     */
+    private boolean isFull(OutboundFrame frame) {
+        return queuedFrames.get() >= MAX_QUEUED_FRAMES
+                || queuedBytes.get() + frame.size() > MAX_QUEUED_BYTES;
+    }
+
+    /**
+     * Check whether the queue is at or below its low watermark.
+     * @return whether it is
+     */
+    private boolean isLowWater() {
+        return queuedFrames.get() <= LOW_WATER_FRAMES && queuedBytes.get() <= LOW_WATER_BYTES;
+    }
+
+    /**
+     * Run the low watermark tasks still set, unless closed. Each runs at most once per <code>whenLowWater</code>.
+     */
+    private void runLowWater() {
+        for (String key : onLowWater.keySet()) {
+            Runnable task = onLowWater.remove(key);
+            if (task != null && !closed) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Check whether a newly queued frame should wait for a delayed flush instead of being written now.
+     * Text frames and full batches are never held.
+     * @param frame The frame just queued
+     * @return whether to hold the frame
+     */
+    private boolean shouldHold(OutboundFrame frame) {
+        return BATCH_MAX_DELAY_MS > 0 && !frame.isText()
+                && queuedFrames.get() < BATCH_MAX_FRAMES && queuedBytes.get() < BATCH_MAX_BYTES;
+    }
+
+    /**
+     * Take the next frame to write, combining binary frames queued back to back into a batch.
+     * @return the frame to write, or null if none
+     */
+    private OutboundFrame next() {
+        OutboundFrame first = carry;
+        if (first != null) {
+            carry = null;
+        } else {
+            first = poll();
+        }
+        if (first == null || first.isText() || BATCH_MAX_FRAMES <= 1 || first.size() >= BATCH_MAX_BYTES) {
+            return first;
+        }
+        List<OutboundFrame> batch = null;
+        int bytes = first.size();
+        while (batch == null || batch.size() < BATCH_MAX_FRAMES) {
+            OutboundFrame frame = poll();
+            if (frame == null) {
+                break;
+            }
+            if (frame.isText() || bytes + frame.size() > BATCH_MAX_BYTES) {
+                carry = frame;
+                break;
+            }
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batch.add(first);
+            }
+            batch.add(frame);
+            bytes += frame.size();
+        }
+        return (batch == null) ? first : OutboundFrame.batch(batch);
+    }
+
+    /**
+     * Take the next frame from the queue, keeping the counters in step.
+     * @return the next frame, or null if none
+     */
+    private OutboundFrame poll() {
+        OutboundFrame frame = queue.poll();
+        if (frame != null) {
+            queuedFrames.decrementAndGet();
+            queuedBytes.addAndGet(-frame.size());
+            if (!onLowWater.isEmpty() && isLowWater()) {
+                runLowWater();
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Write queued frames until the queue is empty or a write is pending.
+     * Only one frame is ever in flight per session, as required by the async remote.
+     */
+    private void drain() {
+        while (!closed && sending.compareAndSet(false, true)) {
+            OutboundFrame next = next();
+            if (next == null) {
+                sending.set(false);
+                // a frame may have been queued between the poll and the release
+                if (queue.isEmpty() && carry == null) {
+                    return;
+                }
+                continue;
+            }
+            completedInline = false;
+            writing.set(this);
+            try {
+                write(next);
+            } finally {
+                writing.remove();
+            }
+            if (!completedInline) {
+                // the send callback will resume draining
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start writing a frame through the async remote.
+     * @param frame The frame to write
+     */
+    private void write(OutboundFrame frame) {
+        SendHandler handler = result -> {
+            if (!result.isOK()) {
+                fail(result.getException());
+                return;
+            }
+            framesSent.increment();
+            bytesSent.add(frame.size());
+            frame.written();
+            if (writing.get() == this) {
+                completedInline = true;
+                sending.set(false);
+            } else {
+                sending.set(false);
+                drain();
+            }
+        };
+        try {
+            RemoteEndpoint.Async remote = session.getAsyncRemote();
+            if (frame.isText()) {
+                remote.sendText(frame.getText(), handler);
+            } else {
+                remote.sendBinary(frame.getBinary(), handler);
+            }
+        } catch (RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Handle a failed write: stop the outbox and let the owner drop the session.
+     * @param ex The reason for the failure
+     */
+    private void fail(Throwable ex) {
+        if (closed) {
+            return;
+        }
+        sendFailures.increment();
+        log.error("Removing session: Exception caught trying to send to session \'" + session + "\' : " + ex);
+        close();
+        onFailure.accept(session);
+    }
+
+    /**
+     * Close a session that can't keep up with its outbound traffic.
+     * The outbox stops taking frames right away; the session itself is closed on the closer thread.
+     */
+    private void disconnect() {
+        if (closed) {
+            return;
+        }
+        slowConsumerDisconnects.increment();
+        log.warn("Disconnecting slow consumer session " + session.getId() + " with " + queuedFrames.get()
+                + " frames (" + queuedBytes.get() + " bytes) queued");
+        close();
+        closer.execute(() -> {
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Outbound queue limit reached"));
+            } catch (IOException ex) {
+                log.error("Error closing slow consumer session " + session.getId() + ": " + ex);
+            }
+        });
+    }
+}
@@ -0,0 +1,162 @@
+package com.blakfx.websocket;
+
+import com.blakfx.protocols.DeviceProtocol;
+
+/**
+ * Bounds how fast a single session can send, with token buckets for chat messages,
+ * device mutations and inbound bytes. Every frame is charged to the byte budget,
+ * and chat and device actions to their own budget as well.
+ * Checked before a frame is parsed or fanned out, so over-limit traffic costs next to nothing.
+ */
+class SessionRateLimiter {
+
+    /**
+     * A token bucket: holds up to <code>capacity</code> tokens, refilled at a steady rate.
+     */
+    static class TokenBucket {
+        /**
+         * Max number of tokens, i.e. the allowed burst.
+         */
+        private final double capacity;
+        /**
+         * Tokens added per nanosecond.
+         */
+        private final double refillPerNano;
+        /**
+         * Tokens currently available.
+         */
+        private double tokens;
+        /**
+         * When the tokens were last refilled, as <code>System.nanoTime()</code>.
+         */
+        private long refilledAt;
+
+        /**
+         * Constructs a full bucket.
+         * @param perSecond Tokens added per second
+         * @param burst Max number of tokens
+         */
+        TokenBucket(double perSecond, double burst) {
+            this.capacity = burst;
+            this.refillPerNano = perSecond / 1e9;
+            this.tokens = burst;
+            this.refilledAt = System.nanoTime();
+        }
+
+        /**
+         * Take tokens, if enough are available.
+         * @param amount The number of tokens to take
+         * @return whether they were taken
+         */
+        synchronized boolean tryTake(double amount) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * refillPerNano);
+            refilledAt = now;
+            if (tokens < amount) {
+                return false;
+            }
+            tokens -= amount;
+            return true;
+        }
+    }
+
+    /**
+     * Whether to limit sessions at all.
+     */
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("com.blakfx.server.rate.enabled", "true"));
+    /**
+     * Chat messages allowed per second.
+     */
+    private static final int CHAT_PER_SECOND = Integer.getInteger("com.blakfx.server.rate.chat.perSecond", 10);
+    /**
+     * Chat messages allowed in a burst.
+     */
+    private static final int CHAT_BURST = Integer.getInteger("com.blakfx.server.rate.chat.burst", 20);
+    /**
+     * Device mutations allowed per second.
+     */
+    private static final int DEVICE_PER_SECOND = Integer.getInteger("com.blakfx.server.rate.device.perSecond", 20);
+    /**
+     * Device mutations allowed in a burst.
+     */
+    private static final int DEVICE_BURST = Integer.getInteger("com.blakfx.server.rate.device.burst", 50);
+    /**
+     * Inbound bytes allowed per second.
+     */
+    private static final int BYTES_PER_SECOND = Integer.getInteger("com.blakfx.server.rate.bytes.perSecond", 8 * 1024 * 1024);
+    /**
+     * Inbound bytes allowed in a burst; must fit the largest frame.
+     */
+    private static final int BYTES_BURST = Integer.getInteger("com.blakfx.server.rate.bytes.burst", 16 * 1024 * 1024);
+
+    /**
+     * The session's chat budget.
+     */
+    private final TokenBucket chat = new TokenBucket(CHAT_PER_SECOND, CHAT_BURST);
+    /**
+     * The session's device mutation budget.
+     */
+    private final TokenBucket device = new TokenBucket(DEVICE_PER_SECOND, DEVICE_BURST);
+    /**
+     * The session's byte budget.
+     */
+    private final TokenBucket bytes = new TokenBucket(BYTES_PER_SECOND, BYTES_BURST);
+    /**
+     * Whether the session was told it is over its limits, since it last sent something that was let through.
+     */
+    private volatile boolean notified;
+
+    /**
+     * Charge a frame to the session's budgets.
+     * @param action The action of the frame
+     * @param size The size of the frame
+     * @return whether the frame is within the limits
+     */
+    boolean admit(DeviceProtocol.Action action, int size) {
+        if (!ENABLED) {
+            return true;
+        }
+        boolean admitted = bytes.tryTake(size) && actionBudget(action);
+        if (admitted) {
+            notified = false;
+        }
+        return admitted;
+    }
+
+    /**
+     * Check whether the session should be told a frame was rejected.
+     * Only the first rejection in a row is answered, so a flood doesn't turn into a flood of errors.
+     * @return whether to send the error
+     */
+    boolean shouldNotify() {
+        if (notified) {
+            return false;
+        }
+        notified = true;
+        return true;
+    }
+
+    /**
+     * Charge an action to its own budget, if it has one.
+     * @param action The action
+     * @return whether the action is within its limit
+     */
+    private boolean actionBudget(DeviceProtocol.Action action) {
+        switch (action) {
+            case CHAT:
+            case JOIN:
+            case LEAVE:
+                // joining and leaving rooms is chat traffic too, so churning through them is bounded alike
+                return chat.tryTake(1);
+            case ADD:
+            case REMOVE:
+            case TOGGLE:
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+                return device.tryTake(1);
+            default:
+                // identification and file transfers are bounded by the byte budget alone
+                return true;
+        }
+    }
+}
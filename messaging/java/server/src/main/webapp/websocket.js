@@ -45,10 +45,43 @@ window.onload = function() {
 async function getPBMessageDevice(event) {
     var ab = await new Response(event.data).arrayBuffer();
     ab = new Uint8Array(ab);
-    return Device.decode(ab);
+    // enums as their names, so the action can be read like the JSON one
+    return normalizeAction(Device.toObject(Device.decode(ab), { enums: String, longs: Number }));
+}
+
+function normalizeAction(device) {
+    if (device.actionCode) {
+        device.action = device.actionCode.toLowerCase();
+    }
+    if (device.batch) {
+        (device.batch.devices || []).forEach(normalizeAction);
+    }
+    return device;
+}
+
+function encodePBDevice(payload) {
+    var message = Device.fromObject(payload);
+    return Device.encode(message).finish();
 }
 
 function handleDeviceMessage(device) {
+    if (device.error === "version" && device.action === "toggle") {
+        // toggled from a stale view, the answer carries the current state instead
+        applyToggle(device);
+        return;
+    }
+    if (device.error && device.action !== "identify") {
+        // the server turned down a request, e.g. when sending too fast
+        console.log("DBG: server rejected " + device.action + ": " + device.error);
+        return;
+    }
+    if (device.action === "batch") {
+        // several messages in one frame, handle them in order
+        (device.batch.devices || []).forEach(handleDeviceMessage);
+    }
+    if (device.action === "snapshot") {
+        applySnapshot(device.snapshot || device);
+    }
     if (device.action === "add") {
         printDeviceElement(device);
     }
@@ -57,19 +90,51 @@ function handleDeviceMessage(device) {
         //device.parentNode.removeChild(device);
     }
     if (device.action === "toggle") {
-        var node = document.getElementById(device.id);
-        var statusText = node.children[2];
-        if (device.status === "On") {
-            statusText.innerHTML = "Status: " + device.status + " (<a href=\"#\" OnClick=toggleDevice(" + device.id + ")>Turn off</a>)";
-        } else if (device.status === "Off") {
-            statusText.innerHTML = "Status: " + device.status + " (<a href=\"#\" OnClick=toggleDevice(" + device.id + ")>Turn on</a>)";
-        }
+        applyToggle(device);
+    }
+    if (device.action === "subscribe") {
+        // the answer carries the current state, which may be newer than the one shown
+        applyToggle(device);
     }
     if (device.action === "chat") {
         console.log(device.message.content);
     }
 }
 
+function applyToggle(device) {
+    var node = document.getElementById(device.id);
+    if (!node) {
+        return;
+    }
+    // updates no newer than what is shown are stale, e.g. sent again by a later coalescing window
+    var version = device.version || 0;
+    if (version <= Number(node.getAttribute("data-version"))) {
+        return;
+    }
+    node.setAttribute("data-version", version);
+    var statusText = node.children[2];
+    if (device.status === "On") {
+        statusText.innerHTML = "Status: " + device.status + " (<a href=\"#\" OnClick=toggleDevice(" + device.id + ")>Turn off</a>)";
+    } else if (device.status === "Off") {
+        statusText.innerHTML = "Status: " + device.status + " (<a href=\"#\" OnClick=toggleDevice(" + device.id + ")>Turn on</a>)";
+    }
+}
+
+function applySnapshot(snapshot) {
+    var content = document.getElementById("content");
+    // the first chunk replaces whatever we had before (e.g. after a reconnect)
+    if (!snapshot.chunk) {
+        content.innerHTML = "";
+    }
+    // build the whole chunk off-document, then attach it in one go
+    var fragment = document.createDocumentFragment();
+    var devices = snapshot.devices || [];
+    for (var i = 0; i < devices.length; i++) {
+        printDeviceElement(devices[i], fragment);
+    }
+    content.appendChild(fragment);
+}
+
 function addDevice(name, type, description) {
     if(useJSON) {
         console.log("adding the device..");
@@ -83,9 +148,8 @@ function addDevice(name, type, description) {
     }
     else {
         console.log("adding the device (PB)..")
-        var payload = { action: "add", name: name, type: type, description: description };
-        var message = Device.create(payload);
-        device = Device.encode(message).finish();
+        var payload = { actionCode: "ADD", name: name, type: type, description: description };
+        device = encodePBDevice(payload);
     }
     socket.send(device);
 }
@@ -101,37 +165,62 @@ function removeDevice(element) {
     }
     else {
         console.log("removing the device (PB)..")
-        var payload = { action: "remove", id: element };
-        var message = Device.create(payload);
-        device = Device.encode(message).finish();
+        var payload = { actionCode: "REMOVE", id: element };
+        device = encodePBDevice(payload);
     }
     socket.send(device);
 }
 
 function toggleDevice(element) {
+    // the version shown, so the server turns down a toggle made from a stale view
+    var version = Number(document.getElementById(element).getAttribute("data-version"));
     if(useJSON) {
         console.log("toggling the device..");
         var device = {
             action: "toggle",
-            id: element
+            id: element,
+            version: version
         };
         device = JSON.stringify(device);
     }
     else {
         console.log("toggling the device (PB)..")
-        var payload = { action: "toggle", id: element };
-        var message = Device.create(payload);
-        device = Device.encode(message).finish();
+        var payload = { actionCode: "TOGGLE", id: element, version: version };
+        device = encodePBDevice(payload);
     }
     socket.send(device);
 }
 
-function printDeviceElement(device) {
-    var content = document.getElementById("content");
+function subscribeDevice(element) {
+    // changes of a device owned by someone else only reach its subscribers
+    if(useJSON) {
+        var device = JSON.stringify({ action: "subscribe", id: element });
+    }
+    else {
+        var device = encodePBDevice({ actionCode: "SUBSCRIBE", id: element });
+    }
+    socket.send(device);
+}
+
+function unsubscribeDevice(element) {
+    if(useJSON) {
+        var device = JSON.stringify({ action: "unsubscribe", id: element });
+    }
+    else {
+        var device = encodePBDevice({ actionCode: "UNSUBSCRIBE", id: element });
+    }
+    socket.send(device);
+}
+
+function printDeviceElement(device, parent) {
+    var content = parent || document.getElementById("content");
+    // every device shown is followed, whoever owns it
+    subscribeDevice(device.id);
     
     var deviceDiv = document.createElement("div");
     deviceDiv.setAttribute("id", device.id);
     deviceDiv.setAttribute("class", "device " + device.type);
+    deviceDiv.setAttribute("data-version", device.version || 0);
     content.appendChild(deviceDiv);
 
     var deviceName = document.createElement("span");
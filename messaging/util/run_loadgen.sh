@@ -0,0 +1,20 @@
+#!/bin/bash
+
+# Runs the headless load generator against a chat server.
+# Needs no Helix session nor native library: private payloads are passed through unencrypted.
+# Any extra arguments go to the generator, e.g.: ./run_loadgen.sh -n 5000 --private-rate 2000 -d 120
+# Run with --help for the full list of options.
+
+CLIENT_JAR_PATH="/helix/java/chat/client/artifacts/client-1.0-SNAPSHOT.jar"
+
+# If no client JAR, exit.
+if [ ! -f "$CLIENT_JAR_PATH" ]; then
+    echo "No client JAR found. Ask the admin to add it."
+    exit 1
+fi
+
+HOST="localhost"
+PORT=8080
+
+echo "Launching load generator..."
+java -Xss512k -cp "$CLIENT_JAR_PATH" com.blakfx.load.LoadGenerator -s $HOST -p $PORT "$@"